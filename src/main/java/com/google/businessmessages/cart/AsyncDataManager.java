@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous counterpart of the reads of {@link DataManager}. Every read is issued when it is
+ * called and returns a future, so independent reads, e.g. a cart and its items, are in flight at
+ * the same time. Mutations run in transactions and stay in DataManager.
+ *
+ * <p>While a {@link UnitOfWork} is open, a read it already holds is answered without calling
+ * Datastore, and every read is kept in it once its result is taken.
+ */
+public class AsyncDataManager {
+
+  private static final Logger logger = Logger.getLogger(AsyncDataManager.class.getName());
+
+  private final AsyncDatastoreService datastore;
+  private static AsyncDataManager asyncDataManager = new AsyncDataManager();
+
+  private AsyncDataManager() {
+    datastore =
+        UnitOfWork.counting(
+            DatastoreServiceFactory.getAsyncDatastoreService(), AsyncDatastoreService.class);
+  }
+
+  /**
+   * Returns the existing instance of the AsyncDataManager.
+   *
+   * @return asyncDataManager The single instance of AsyncDataManager.
+   */
+  public static AsyncDataManager getInstance() {
+    return asyncDataManager;
+  }
+
+  /**
+   * Starts looking up the user's cart by its key. Carts not yet moved to their key are not found;
+   * {@link DataManager#getCart} also looks for those.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @return The cart entity, or null if there is none under the cart's key.
+   */
+  public Future<Entity> getCart(String conversationId) {
+    return getByKey(DataManager.getCartKey(conversationId));
+  }
+
+  /**
+   * Starts looking up a specific item in the user's cart.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemId The id of the item we are looking for.
+   * @return The item entity, or null if the item is not in the cart.
+   */
+  public Future<Entity> getExistingItem(String cartId, String itemId) {
+    return getByKey(DataManager.getCartItemKey(cartId, itemId));
+  }
+
+  /**
+   * Starts looking up several items of the user's cart in a single batch get.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemIds The ids of the items we are looking for.
+   * @return The item entities found, by key.
+   */
+  public Future<Map<Key, Entity>> getItems(String cartId, Iterable<String> itemIds) {
+    UnitOfWork work = UnitOfWork.current();
+    List<Key> keys = new ArrayList<>();
+    Map<Key, Entity> known = new HashMap<>();
+    for (String itemId : itemIds) {
+      Key key = DataManager.getCartItemKey(cartId, itemId);
+      if (work != null && work.contains(key)) {
+        Entity item = work.get(key);
+        if (item != null) {
+          known.put(key, item);
+        }
+      } else {
+        keys.add(key);
+      }
+    }
+    if (keys.isEmpty()) {
+      return Futures.immediateFuture(known);
+    }
+    return Futures.lazyTransform(
+        datastore.get(keys),
+        entities -> {
+          Map<Key, Entity> found = new HashMap<>(known);
+          for (Key key : keys) {
+            Entity item = entities.get(key);
+            if (work != null) {
+              work.put(key, item);
+            }
+            if (item != null) {
+              found.put(key, item);
+            }
+          }
+          return found;
+        });
+  }
+
+  /**
+   * Starts the ancestor query for the items in the user's cart. The query is strongly consistent.
+   * At most {@link DataManager#MAX_CART_LIMIT} items are read; a larger cart is logged, and its
+   * other items are only read a page at a time with {@link DataManager#getCartItemIterator}.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @return The first item entities in the order of their keys.
+   */
+  public Future<List<Entity>> getCartFromData(String cartId) {
+    Key cartKey = DataManager.getCartKey(cartId);
+    UnitOfWork work = UnitOfWork.current();
+    List<Entity> known = work == null ? null : work.getItems(cartKey);
+    if (known != null) {
+      return Futures.immediateFuture(known);
+    }
+    final Query q = new Query(DataManager.CART_ITEM_TYPE).setAncestor(cartKey);
+
+    // queries on the async service fetch their results in the background as soon as they are run,
+    // and one item past the limit tells whether the cart has more
+    List<Entity> items =
+        datastore
+            .prepare(q)
+            .asList(FetchOptions.Builder.withLimit(DataManager.MAX_CART_LIMIT + 1));
+    return Futures.lazyTransform(
+        Futures.immediateFuture(items),
+        fetching -> {
+          if (fetching.size() <= DataManager.MAX_CART_LIMIT) {
+            if (work != null) {
+              work.putItems(cartKey, fetching, true);
+            }
+            return fetching;
+          }
+          logger.warning(
+              "Cart "
+                  + cartId
+                  + " has more than "
+                  + DataManager.MAX_CART_LIMIT
+                  + " items, only the first are loaded with the cart.");
+          List<Entity> loaded = fetching.subList(0, DataManager.MAX_CART_LIMIT);
+          if (work != null) {
+            work.putItems(cartKey, loaded, false);
+          }
+          return loaded;
+        });
+  }
+
+  private Future<Entity> getByKey(Key key) {
+    UnitOfWork work = UnitOfWork.current();
+    if (work != null && work.contains(key)) {
+      return Futures.immediateFuture(work.get(key));
+    }
+    return Futures.lazyTransform(
+        datastore.get(Collections.singleton(key)),
+        entities -> {
+          Entity entity = entities.get(key);
+          if (work != null) {
+            work.put(key, entity);
+          }
+          return entity;
+        });
+  }
+
+  /**
+   * Waits for a read to finish, for callers of the synchronous API.
+   *
+   * @param future The read.
+   * @return The result of the read.
+   * @throws RuntimeException The exception the read failed with, e.g. a
+   *     DatastoreFailureException.
+   */
+  static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatastoreFailureException("Interrupted while reading from Datastore.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new DatastoreFailureException("Datastore was not able to read.", e.getCause());
+    }
+  }
+}
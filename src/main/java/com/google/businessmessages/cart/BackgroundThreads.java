@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/** Creates thread factories for work that runs outside of a request. */
+public final class BackgroundThreads {
+
+  private BackgroundThreads() {}
+
+  /**
+   * Whether threads that outlive a request can be started. In production they are App Engine
+   * background threads, which only basic and manual scaling allow, so callers must check this
+   * first and do their work inline or skip it otherwise.
+   *
+   * @return True if background threads are available.
+   */
+  public static boolean isAvailable() {
+    return !isProduction() || BotConfig.isBackgroundThreadsEnabled();
+  }
+
+  /**
+   * Creates a factory for threads that outlive the request that started them. In production these
+   * are App Engine background threads, which are allowed to call App Engine APIs. Elsewhere they
+   * are plain daemon threads.
+   *
+   * @param nameFormat The format used to name threads outside of production.
+   * @return The thread factory.
+   * @throws IllegalStateException If background threads are not available.
+   */
+  public static ThreadFactory newThreadFactory(String nameFormat) {
+    if (!isAvailable()) {
+      throw new IllegalStateException(
+          "Background threads require basic or manual scaling, see cartbot.threads.background.");
+    }
+    if (isProduction()) {
+      return ThreadManager.backgroundThreadFactory();
+    }
+    return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+  }
+
+  /**
+   * Creates a scheduler running on background threads, or null if they are not available.
+   *
+   * @param threads The number of threads of the scheduler.
+   * @param nameFormat The format used to name threads outside of production.
+   * @return The scheduler, or null if the work has to be done inline.
+   */
+  public static ScheduledExecutorService newScheduler(int threads, String nameFormat) {
+    if (!isAvailable()) {
+      return null;
+    }
+    return Executors.newScheduledThreadPool(threads, newThreadFactory(nameFormat));
+  }
+
+  private static boolean isProduction() {
+    return SystemProperty.environment.value() == SystemProperty.Environment.Value.Production;
+  }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import java.util.logging.Logger;
+
+/**
+ * Runtime settings for the bot. Values are read from system properties, which are set in
+ * appengine-web.xml, and fall back to the defaults defined here.
+ */
+public final class BotConfig {
+
+  private static final Logger logger = Logger.getLogger(BotConfig.class.getName());
+
+  // Thread settings
+  static final String BACKGROUND_THREADS = "cartbot.threads.background";
+
+  // Webhook processing settings
+  static final String ASYNC_PROCESSING = "cartbot.async.enabled";
+  static final String WORKER_THREADS = "cartbot.async.workerThreads";
+  static final String QUEUE_CAPACITY = "cartbot.async.queueCapacity";
+  static final String OVERFLOW_POLICY = "cartbot.async.overflowPolicy";
+  static final String DRAIN_TIMEOUT_SECONDS = "cartbot.async.drainTimeoutSeconds";
+
+  // Typing indicator settings
+  static final String TYPING_POLICY = "cartbot.typing.policy";
+  static final String TYPING_DEADLINE_MILLIS = "cartbot.typing.deadlineMillis";
+
+  // Webhook de-dupe settings
+  static final String DEDUPE_TTL_SECONDS = "cartbot.dedupe.ttlSeconds";
+  static final String DEDUPE_LOCAL_CAPACITY = "cartbot.dedupe.localCapacity";
+
+  // Reply coalescing settings
+  static final String COALESCE_WINDOW_MILLIS = "cartbot.coalesce.windowMillis";
+  static final String COALESCE_MAX_DELAY_MILLIS = "cartbot.coalesce.maxDelayMillis";
+
+  // Cart storage settings
+  static final String LEGACY_CART_LOOKUP = "cartbot.carts.legacyLookup";
+  static final String CART_STORAGE_MODE = "cartbot.carts.storageMode";
+  static final String KNOWN_CART_TTL_SECONDS = "cartbot.carts.knownCartTtlSeconds";
+
+  // Cart cache settings
+  static final String CART_CACHE = "cartbot.cache.enabled";
+  static final String CART_CACHE_LOCAL_CAPACITY = "cartbot.cache.localCapacity";
+  static final String CART_CACHE_TTL_SECONDS = "cartbot.cache.ttlSeconds";
+
+  // Cart transaction settings
+  static final String TRANSACTION_MAX_ATTEMPTS = "cartbot.txn.maxAttempts";
+  static final String TRANSACTION_INITIAL_BACKOFF_MILLIS = "cartbot.txn.initialBackoffMillis";
+  static final String TRANSACTION_MAX_BACKOFF_MILLIS = "cartbot.txn.maxBackoffMillis";
+
+  // Cart store settings
+  static final String CART_STORE_BACKEND = "cartbot.store.backend";
+  static final String CART_STORE_FILE = "cartbot.store.file";
+  static final String CART_STORE_COMPACTION_INTERVAL_SECONDS =
+      "cartbot.store.compactionIntervalSeconds";
+  static final String WRITE_BEHIND = "cartbot.store.writeBehind";
+  static final String WRITE_BEHIND_WINDOW_MILLIS = "cartbot.store.writeBehindWindowMillis";
+  static final String WRITE_BEHIND_MAX_CHANGES = "cartbot.store.writeBehindMaxChanges";
+
+  // Abandoned cart sweep settings
+  static final String SWEEP_TTL_DAYS = "cartbot.sweep.ttlDays";
+  static final String SWEEP_MAX_CARTS_PER_SECOND = "cartbot.sweep.maxCartsPerSecond";
+  static final String SWEEP_MAX_RUN_SECONDS = "cartbot.sweep.maxRunSeconds";
+  static final String SWEEP_MARKER_TTL_HOURS = "cartbot.sweep.markerTtlHours";
+
+  private BotConfig() {}
+
+  /**
+   * Whether webhooks are acknowledged immediately and processed on a background worker pool.
+   *
+   * @return True if asynchronous processing is enabled.
+   */
+  public static boolean isAsyncProcessingEnabled() {
+    return getBoolean(ASYNC_PROCESSING, false);
+  }
+
+  /**
+   * Whether the module runs on basic or manual scaling, the only scaling types that allow App
+   * Engine background threads. Without them, work meant for the background is done inline or
+   * skipped. Only consulted in production; background threads are always available elsewhere.
+   *
+   * @return True if background threads may be started.
+   */
+  public static boolean isBackgroundThreadsEnabled() {
+    return getBoolean(BACKGROUND_THREADS, false);
+  }
+
+  /**
+   * Gets the number of worker threads processing queued webhooks.
+   *
+   * @return The number of worker threads.
+   */
+  public static int getWorkerThreads() {
+    return getInt(WORKER_THREADS, 8);
+  }
+
+  /**
+   * Gets the maximum number of webhooks waiting to be processed.
+   *
+   * @return The queue capacity.
+   */
+  public static int getQueueCapacity() {
+    return getInt(QUEUE_CAPACITY, 1000);
+  }
+
+  /**
+   * Gets what happens to a webhook that arrives while the queue is full.
+   *
+   * @return The overflow policy.
+   */
+  public static MessageQueue.OverflowPolicy getOverflowPolicy() {
+    return getEnum(
+        OVERFLOW_POLICY, MessageQueue.OverflowPolicy.class, MessageQueue.OverflowPolicy.REJECT);
+  }
+
+  /**
+   * Gets how long queued webhooks may take to drain when the servlet shuts down.
+   *
+   * @return The drain timeout in seconds.
+   */
+  public static int getDrainTimeoutSeconds() {
+    return getInt(DRAIN_TIMEOUT_SECONDS, 20);
+  }
+
+  /**
+   * Gets how long message and request ids are remembered to detect redelivered webhooks.
+   *
+   * @return The de-dupe TTL in seconds.
+   */
+  public static int getDedupeTtlSeconds() {
+    return getInt(DEDUPE_TTL_SECONDS, 3600);
+  }
+
+  /**
+   * Gets the maximum number of ids remembered on each instance to detect redelivered webhooks.
+   *
+   * @return The number of ids kept in the local de-dupe cache.
+   */
+  public static int getDedupeLocalCapacity() {
+    return getInt(DEDUPE_LOCAL_CAPACITY, 10000);
+  }
+
+  /**
+   * Gets when typing indicators are sent for the bot's replies.
+   *
+   * @return The typing indicator policy.
+   */
+  public static TypingIndicator.Policy getTypingPolicy() {
+    return getEnum(TYPING_POLICY, TypingIndicator.Policy.class, TypingIndicator.Policy.DEADLINE);
+  }
+
+  /**
+   * Gets how long a reply may take before a typing indicator is shown under the DEADLINE policy.
+   *
+   * @return The deadline in milliseconds.
+   */
+  public static int getTypingDeadlineMillis() {
+    return getInt(TYPING_DEADLINE_MILLIS, 1000);
+  }
+
+  /**
+   * Gets how long a text reply is held back waiting for another one to merge with. A value of 0
+   * sends every reply right away.
+   *
+   * @return The coalescing window in milliseconds.
+   */
+  public static int getCoalesceWindowMillis() {
+    return getInt(COALESCE_WINDOW_MILLIS, 0);
+  }
+
+  /**
+   * Gets the longest a text reply may be held back, however many replies follow it.
+   *
+   * @return The maximum delay in milliseconds.
+   */
+  public static int getCoalesceMaxDelayMillis() {
+    return getInt(COALESCE_MAX_DELAY_MILLIS, 1000);
+  }
+
+  /**
+   * Whether a cart not found by its key is looked for with the conversation_id query used before
+   * carts were keyed by conversation. Can be turned off once all carts have been migrated.
+   *
+   * @return True if legacy cart lookup is enabled.
+   */
+  public static boolean isLegacyCartLookupEnabled() {
+    return getBoolean(LEGACY_CART_LOOKUP, true);
+  }
+
+  /**
+   * Gets how the items of a cart are stored. Carts stored the other way are converted when they
+   * are next read.
+   *
+   * @return The cart storage mode.
+   */
+  public static DataManager.StorageMode getCartStorageMode() {
+    return getEnum(
+        CART_STORAGE_MODE, DataManager.StorageMode.class, DataManager.StorageMode.ENTITIES);
+  }
+
+  /**
+   * Gets how long this instance remembers whether a conversation has a cart, so a recently seen
+   * cart is read without the get-or-insert transaction. 0 turns this off.
+   *
+   * @return The TTL of known carts in seconds.
+   */
+  public static int getKnownCartTtlSeconds() {
+    return getInt(KNOWN_CART_TTL_SECONDS, 60);
+  }
+
+  /**
+   * Whether carts are cached on each instance and in memcache. Off unless set, since a cached cart
+   * is served without checking its version in Datastore.
+   *
+   * @return True if the cart cache is enabled.
+   */
+  public static boolean isCartCacheEnabled() {
+    return getBoolean(CART_CACHE, false);
+  }
+
+  /**
+   * Gets the maximum number of carts cached on each instance.
+   *
+   * @return The number of carts kept in the local cart cache.
+   */
+  public static int getCartCacheLocalCapacity() {
+    return getInt(CART_CACHE_LOCAL_CAPACITY, 1000);
+  }
+
+  /**
+   * Gets how long a cart stays cached after it was last written.
+   *
+   * @return The cart cache TTL in seconds.
+   */
+  public static int getCartCacheTtlSeconds() {
+    return getInt(CART_CACHE_TTL_SECONDS, 3600);
+  }
+
+  /**
+   * Gets how many times a cart transaction is attempted when it fails on contention.
+   *
+   * @return The maximum number of attempts.
+   */
+  public static int getTransactionMaxAttempts() {
+    return getInt(TRANSACTION_MAX_ATTEMPTS, 5);
+  }
+
+  /**
+   * Gets the longest wait before retrying a contended cart transaction for the first time. The
+   * wait doubles with every attempt, up to the maximum backoff.
+   *
+   * @return The initial backoff in milliseconds.
+   */
+  public static int getTransactionInitialBackoffMillis() {
+    return getInt(TRANSACTION_INITIAL_BACKOFF_MILLIS, 20);
+  }
+
+  /**
+   * Gets the longest wait before retrying a contended cart transaction.
+   *
+   * @return The maximum backoff in milliseconds.
+   */
+  public static int getTransactionMaxBackoffMillis() {
+    return getInt(TRANSACTION_MAX_BACKOFF_MILLIS, 1000);
+  }
+
+  /**
+   * Gets where carts are kept. Only the Datastore backend is shared by all instances.
+   *
+   * @return The cart store backend.
+   */
+  public static CartStore.Backend getCartStoreBackend() {
+    return getEnum(CART_STORE_BACKEND, CartStore.Backend.class, CartStore.Backend.DATASTORE);
+  }
+
+  /**
+   * Gets the path of the log file carts are kept in by the local file backend.
+   *
+   * @return The path of the cart log.
+   */
+  public static String getCartStoreFile() {
+    String value = System.getProperty(CART_STORE_FILE);
+    return value == null || value.trim().isEmpty() ? "/tmp/cartbot-carts.log" : value.trim();
+  }
+
+  /**
+   * Gets how often the local file backend checks whether its log should be compacted.
+   *
+   * @return The compaction interval in seconds.
+   */
+  public static int getCartStoreCompactionIntervalSeconds() {
+    return getInt(CART_STORE_COMPACTION_INTERVAL_SECONDS, 300);
+  }
+
+  /**
+   * Whether changes to carts kept in Datastore are buffered on the instance and written in the
+   * background, coalesced.
+   *
+   * @return True if write-behind is enabled.
+   */
+  public static boolean isWriteBehindEnabled() {
+    return getBoolean(WRITE_BEHIND, false);
+  }
+
+  /**
+   * Gets the longest time a change to a cart is buffered before it is written. Changes buffered
+   * when an instance dies are lost, so this bounds how much can be lost.
+   *
+   * @return The write-behind window in milliseconds.
+   */
+  public static int getWriteBehindWindowMillis() {
+    return getInt(WRITE_BEHIND_WINDOW_MILLIS, 500);
+  }
+
+  /**
+   * Gets the number of buffered changes at which they are written without waiting for the window.
+   *
+   * @return The maximum number of buffered changes.
+   */
+  public static int getWriteBehindMaxChanges() {
+    return getInt(WRITE_BEHIND_MAX_CHANGES, 500);
+  }
+
+  /**
+   * Gets how long a cart is kept after it was last changed. Should be well above the cart cache
+   * TTL.
+   *
+   * @return The cart TTL in days.
+   */
+  public static int getSweepTtlDays() {
+    return getInt(SWEEP_TTL_DAYS, 30);
+  }
+
+  /**
+   * Gets the most carts deleted per second by a sweep, which leaves Datastore throughput to live
+   * traffic.
+   *
+   * @return The rate limit of sweeps.
+   */
+  public static int getSweepMaxCartsPerSecond() {
+    return getInt(SWEEP_MAX_CARTS_PER_SECOND, 50);
+  }
+
+  /**
+   * Gets how long a sweep reads expired carts before it stops, so it ends within its request.
+   *
+   * @return The time limit of a sweep in seconds.
+   */
+  public static int getSweepMaxRunSeconds() {
+    return getInt(SWEEP_MAX_RUN_SECONDS, 480);
+  }
+
+  /**
+   * Gets how long the mutation marker of a message is kept, which must cover the time the message
+   * can be redelivered. Never less than the de-dupe TTL.
+   *
+   * @return The marker TTL in hours.
+   */
+  public static int getSweepMarkerTtlHours() {
+    int dedupeTtlHours = (getDedupeTtlSeconds() + 3599) / 3600;
+    return Math.max(getInt(SWEEP_MARKER_TTL_HOURS, 24), dedupeTtlHours);
+  }
+
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = System.getProperty(name);
+    return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+  static int getInt(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        logger.warning("Invalid value for " + name + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+    String value = System.getProperty(name);
+    if (value != null) {
+      try {
+        return Enum.valueOf(type, value.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        logger.warning("Unknown value for " + name + ": " + value);
+      }
+    }
+    return defaultValue;
+  }
+}
@@ -32,18 +32,28 @@ public interface BotConstants {
   String SHOP_TEXT = "Shop Our Collection";
   String HOURS_TEXT = "Inquire About Hours";
   String HELP_TEXT = "Help";
+  String CLEAR_CART_TEXT = "Clear Cart";
   String ADD_ITEM_TEXT = "\uD83D\uDED2 Add to Cart";
   String INCREMENT_COUNT_TEXT = "\u2795";
   String DECREMENT_COUNT_TEXT = "\u2796";
+  String MORE_ITEMS_TEXT = "More Items (%d total)";
 
   // List of recognized commands to produce certain responses
   String DELETE_ITEM_COMMAND = "del-cart-";
   String ADD_ITEM_COMMAND = "add-cart-";
   String VIEW_CART_COMMAND = "cart";
+  String VIEW_CART_PAGE_COMMAND = "cart-page-";
+  String CLEAR_CART_COMMAND = "clear-cart";
   String HOURS_COMMAND = "hours";
   String SHOP_COMMAND = "shop";
   String HELP_COMMAND = "^help.*|^commands\\s.*|see the help menu";
 
+  // Separates the item id from the quantity in add and delete commands, e.g. add-cart-<id>:<n>
+  String QUANTITY_SEPARATOR = ":";
+
+  // The most cards a carousel holds, so the most cart items shown at once
+  int CART_PAGE_SIZE = 10;
+
   // List of pre-programmed responses
   String RSP_DEFAULT =
       "Sorry, I didn't quite get that. Perhaps you were looking for one of these options?";
@@ -57,7 +67,8 @@ public interface BotConstants {
           + "Inquire About Hours - Will respond with the times that our store is open.\n\n"
           + "Shop Our Collection/Continue Shopping - Will respond with a collection of mock"
           + " inventory items.\n\n"
-          + "View Cart - Will respond with all of the items in your cart.\n\n";
+          + "View Cart - Will respond with all of the items in your cart.\n\n"
+          + "Clear Cart - Will remove all of the items from your cart.\n\n";
 
   Map<String, String> INVENTORY_IMAGES =
       new HashMap<String, String>() {
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs structured events on the message hot path. Each event is a name and a set of fields,
+ * written as a single {@code key=value} line.
+ *
+ * <p>Every event name has its own sampling rate, read from the {@code cartbot.log.sampleRate.NAME}
+ * system property and defaulting to 1. Events that are sampled out cost one random number and no
+ * formatting. Full payloads are only rendered while payload capture is on, and an event carrying
+ * one is written whatever its sampling rate, so every captured payload is logged. Capture defaults
+ * to the {@code cartbot.log.payloads} system property and can be switched at runtime for all
+ * instances by setting the {@code cartbot.log.payloads} memcache key to true or false.
+ *
+ * <p>Components register the counters they keep as stats sources. The counters of all sources are
+ * written as {@code stats} events at most every {@code cartbot.log.statsIntervalSeconds}, from
+ * whichever request calls {@link #logStatsIfDue()} first once the interval has passed, so no
+ * background thread is needed.
+ */
+public final class BotLog {
+
+  private static final String SAMPLE_RATE_PREFIX = "cartbot.log.sampleRate.";
+  private static final String PAYLOAD_CAPTURE = "cartbot.log.payloads";
+  private static final String STATS_INTERVAL = "cartbot.log.statsIntervalSeconds";
+
+  // How often the payload capture switch is re-read from memcache
+  private static final long PAYLOAD_CAPTURE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private static final ConcurrentHashMap<String, Double> sampleRates = new ConcurrentHashMap<>();
+
+  private static volatile boolean payloadCapture =
+      BotConfig.getBoolean(PAYLOAD_CAPTURE, false);
+  private static volatile long payloadCaptureCheckedAt = System.nanoTime();
+
+  private static final long STATS_INTERVAL_NANOS =
+      TimeUnit.SECONDS.toNanos(BotConfig.getInt(STATS_INTERVAL, 60));
+  private static final Map<String, Consumer<Event>> statsSources = new ConcurrentSkipListMap<>();
+  private static final AtomicLong statsLoggedAt = new AtomicLong(System.nanoTime());
+  private static final BotLog statsLog = forClass(BotLog.class);
+
+  // Shared by all events that are not written
+  private static final Event DISCARDED = new Event(null, null, false);
+
+  private final Logger logger;
+
+  private BotLog(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Creates a BotLog writing to the logger of the class.
+   *
+   * @param type The class logging the events.
+   * @return The new BotLog.
+   */
+  public static BotLog forClass(Class<?> type) {
+    return new BotLog(Logger.getLogger(type.getName()));
+  }
+
+  /**
+   * Starts an event. The event is only written if INFO is enabled and it is either sampled in or
+   * carries a payload.
+   *
+   * @param name The name of the event.
+   * @return The event to add fields to.
+   */
+  public Event event(String name) {
+    if (!logger.isLoggable(Level.INFO)) {
+      return DISCARDED;
+    }
+
+    double rate = sampleRates.computeIfAbsent(name, BotLog::readSampleRate);
+    if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+      // kept in case a payload is added, which bypasses sampling
+      return isPayloadCaptureEnabled() ? new Event(logger, name, false) : DISCARDED;
+    }
+    return new Event(logger, name, true);
+  }
+
+  /**
+   * Switches payload capture on or off for this instance until the next check of memcache.
+   *
+   * @param enabled Whether full payloads are logged.
+   */
+  public static void setPayloadCaptureEnabled(boolean enabled) {
+    payloadCapture = enabled;
+  }
+
+  /**
+   * Whether full payloads are currently logged.
+   *
+   * @return True if payload capture is on.
+   */
+  public static boolean isPayloadCaptureEnabled() {
+    long now = System.nanoTime();
+    if (now - payloadCaptureCheckedAt > PAYLOAD_CAPTURE_REFRESH_NANOS) {
+      payloadCaptureCheckedAt = now;
+      try {
+        Object value = MemcacheServiceFactory.getMemcacheService().get(PAYLOAD_CAPTURE);
+        if (value instanceof Boolean) {
+          payloadCapture = (Boolean) value;
+        }
+      } catch (RuntimeException e) {
+        // keep the current setting
+      }
+    }
+    return payloadCapture;
+  }
+
+  /**
+   * Registers the counters of a component to be written with the periodic stats events. A source
+   * registered again under the same name replaces the earlier one.
+   *
+   * @param source The name of the component, written as the source field.
+   * @param counters Adds the current counters of the component as fields to an event.
+   */
+  public static void registerStats(String source, Consumer<Event> counters) {
+    statsSources.put(source, counters);
+  }
+
+  /**
+   * Writes one stats event per registered source if the stats interval has passed since they were
+   * last written. Cheap enough to call on every request.
+   */
+  public static void logStatsIfDue() {
+    long loggedAt = statsLoggedAt.get();
+    long now = System.nanoTime();
+    if (STATS_INTERVAL_NANOS <= 0
+        || now - loggedAt < STATS_INTERVAL_NANOS
+        || !statsLoggedAt.compareAndSet(loggedAt, now)) {
+      return;
+    }
+    logStats();
+  }
+
+  /** Writes one stats event per registered source now. */
+  public static void logStats() {
+    for (Map.Entry<String, Consumer<Event>> source : statsSources.entrySet()) {
+      Event event = statsLog.event("stats").field("source", source.getKey());
+      try {
+        source.getValue().accept(event);
+      } catch (RuntimeException e) {
+        event.field("error", e);
+      }
+      event.log();
+    }
+  }
+
+  private static double readSampleRate(String name) {
+    String value = System.getProperty(SAMPLE_RATE_PREFIX + name);
+    if (value != null) {
+      try {
+        return Double.parseDouble(value.trim());
+      } catch (NumberFormatException e) {
+        Logger.getLogger(BotLog.class.getName())
+            .warning("Invalid sample rate for " + name + ": " + value);
+      }
+    }
+    return 1;
+  }
+
+  /** A structured log event. Fields are only formatted when the event is written. */
+  public static class Event {
+    private final Logger logger;
+    private final String name;
+    private final List<Object> fields;
+    // Whether the event is written, either sampled in or carrying a payload
+    private boolean written;
+
+    private Event(Logger logger, String name, boolean sampledIn) {
+      this.logger = logger;
+      this.name = name;
+      this.fields = logger == null ? null : new ArrayList<>();
+      this.written = sampledIn;
+    }
+
+    /**
+     * Adds a field to the event.
+     *
+     * @param key The name of the field.
+     * @param value The value of the field, formatted with toString when the event is written.
+     * @return This event.
+     */
+    public Event field(String key, Object value) {
+      if (fields != null) {
+        fields.add(key);
+        fields.add(value);
+      }
+      return this;
+    }
+
+    /**
+     * Adds the full payload to the event, only if payload capture is on. The event is then written
+     * even if it was sampled out.
+     *
+     * @param payload Renders the payload.
+     * @return This event.
+     */
+    public Event payload(Supplier<String> payload) {
+      if (fields != null && isPayloadCaptureEnabled()) {
+        fields.add("payload");
+        fields.add(payload.get());
+        written = true;
+      }
+      return this;
+    }
+
+    /** Writes the event if it was sampled in or carries a payload. */
+    public void log() {
+      if (fields == null || !written) {
+        return;
+      }
+
+      StringBuilder line = new StringBuilder("event=").append(name);
+      for (int i = 0; i < fields.size(); i += 2) {
+        line.append(' ').append(fields.get(i)).append('=').append(fields.get(i + 1));
+      }
+      logger.info(line.toString());
+    }
+  }
+}
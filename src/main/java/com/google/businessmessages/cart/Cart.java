@@ -14,18 +14,35 @@
 package com.google.businessmessages.cart;
 
 import com.google.common.collect.ImmutableList;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * The Cart is responsible for keeping track of all items, CartItems, the user adds to their
  * shopping cart.
  */
-public class Cart {
+public class Cart implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private final String cartId;
   private final ImmutableList<CartItem> cartItems;
+  private final long version;
+  private final boolean complete;
 
   public Cart(String cartId, ImmutableList<CartItem> cartItems) {
+    this(cartId, cartItems, 0);
+  }
+
+  public Cart(String cartId, ImmutableList<CartItem> cartItems, long version) {
+    this(cartId, cartItems, version, true);
+  }
+
+  public Cart(String cartId, ImmutableList<CartItem> cartItems, long version, boolean complete) {
     this.cartId = cartId;
     this.cartItems = cartItems;
+    this.version = version;
+    this.complete = complete;
   }
 
   /**
@@ -45,4 +62,54 @@ public class Cart {
   public ImmutableList<CartItem> getItems() {
     return cartItems;
   }
+
+  /**
+   * Gets the version of the stored cart this instance reflects.
+   *
+   * @return version The version of the cart entity, or 0 if it is not known.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Whether the cart holds all items of the stored cart, rather than only the first ones read with
+   * it.
+   *
+   * @return complete False if the stored cart may have items this instance does not.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Creates the cart that results from changing the counts of items in this one. Items whose count
+   * drops to zero are removed, and items not in the cart are only added by a positive change. The
+   * items are kept in the order of their ids, the order they are stored in. The new cart is only
+   * complete if this one is.
+   *
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items, used for items new to the cart.
+   * @param newVersion The version of the changed cart.
+   * @return The new instance of Cart.
+   */
+  public Cart withDeltas(
+      Map<String, Integer> deltas, Map<String, String> itemTitles, long newVersion) {
+    TreeMap<String, CartItem> items = new TreeMap<>();
+    for (CartItem item : cartItems) {
+      items.put(item.getId(), item);
+    }
+    for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+      String itemId = delta.getKey();
+      CartItem item = items.get(itemId);
+      int count = (item == null ? 0 : item.getCount()) + delta.getValue();
+      if (count > 0) {
+        String title = item == null ? itemTitles.get(itemId) : item.getTitle();
+        items.put(itemId, new CartItem(itemId, title, count));
+      } else {
+        items.remove(itemId);
+      }
+    }
+    return new Cart(cartId, ImmutableList.copyOf(items.values()), newVersion, complete);
+  }
 }
@@ -20,20 +20,21 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.businessmessages.v1.Businessmessages;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesCardContent;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesCarouselCard;
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesEvent;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
 import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
-import com.google.communications.businessmessages.v1.EventType;
+import com.google.common.collect.ImmutableMap;
 import com.google.communications.businessmessages.v1.RepresentativeType;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,27 +46,82 @@ public class CartBot {
 
   private static final Logger logger = Logger.getLogger(CartBot.class.getName());
 
+  private static final BotLog log = BotLog.forClass(CartBot.class);
+
   // Object to maintain OAuth2 credentials to call the BM API
   private GoogleCredential credential;
 
-  // Reference to the BM api builder
-  private Businessmessages.Builder builder;
+  // Renews the credential's access token in the background
+  private CredentialRefresher credentialRefresher;
+
+  // Instance of the BM API, built once and shared across requests
+  private Businessmessages bmApi;
+
+  // Sends typing indicators around replies in the background
+  private TypingIndicator typingIndicator;
+
+  // Merges text replies sent to a conversation in quick succession
+  private ReplyCoalescer replyCoalescer;
 
-  // The current representative
-  private BusinessMessagesRepresentative representative;
+  // The representative used for all messages sent by the bot
+  private final BusinessMessagesRepresentative representative;
 
   // Store inventory object
   private final Inventory storeInventory;
 
-  // User's cart
-  private Cart userCart;
+  // Maps inbound messages to the commands they invoke
+  private final CommandRouter<MessageContext> router;
+
+  /**
+   * The conversation and cart an inbound message is routed with. Only the summary of the cart is
+   * read up front, and the cart itself is read when a command first needs its items.
+   */
+  private static class MessageContext {
+    private final String conversationId;
+    private final CartSummary cartSummary;
+    private final String mutationId;
+    private Cart userCart;
+
+    private MessageContext(String conversationId, CartSummary cartSummary, String mutationId) {
+      this.conversationId = conversationId;
+      this.cartSummary = cartSummary;
+      this.mutationId = mutationId;
+    }
+
+    private Cart getUserCart() {
+      if (userCart == null) {
+        userCart = CartManager.getOrCreateCart(conversationId);
+      }
+      return userCart;
+    }
+  }
+
+  /** Lazily holds the process-wide bot so credentials are only loaded on first use. */
+  private static class InstanceHolder {
+    private static final CartBot INSTANCE =
+        new CartBot(
+            new BusinessMessagesRepresentative()
+                .setRepresentativeType(RepresentativeType.BOT.toString())
+                .setDisplayName(BotConstants.BOT_AGENT_NAME));
+  }
 
   public CartBot(BusinessMessagesRepresentative representative) {
     this.representative = representative;
     this.storeInventory = new MockInventory(BotConstants.INVENTORY_IMAGES);
+    this.router = buildRouter();
     initBmApi();
   }
 
+  /**
+   * Returns the process-wide instance of the CartBot. The instance holds no per-conversation
+   * state and is safe to share across concurrent requests.
+   *
+   * @return The single instance of CartBot.
+   */
+  public static CartBot getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
   /**
    * Routes the message to produce a response based on the incoming message if it matches an
    * existing supported command. Otherwise, the inbound message is echoed back to the user.
@@ -74,80 +130,275 @@ public class CartBot {
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
   public void routeMessage(String message, String conversationId) {
-    // initialize user's cart
-    this.userCart = CartManager.getOrCreateCart(conversationId);
-
-    // begin parsing message
-    String normalizedMessage = message.toLowerCase().trim();
-
-    if (normalizedMessage.matches(BotConstants.HELP_COMMAND)) {
-      sendResponse(BotConstants.RSP_HELP_TEXT, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.HOURS_COMMAND)) {
-      sendResponse(BotConstants.RSP_HOURS_TEXT, conversationId);
-    } else if (normalizedMessage.matches(BotConstants.SHOP_COMMAND)) {
-      sendInventoryCarousel(conversationId);
-    } else if (normalizedMessage.matches(BotConstants.VIEW_CART_COMMAND)) {
-      if (userCart.getItems().size() > 1) {
-        sendCartCarousel(conversationId);
-      } else {
-        sendSingleCartItem(conversationId);
+    routeMessage(message, conversationId, null);
+  }
+
+  /**
+   * Routes the message like {@link #routeMessage(String, String)}. Cart changes made for the
+   * message are applied at most once for its id, however often it is retried or redelivered.
+   *
+   * <p>The message is handled in a {@link UnitOfWork}, so each entity is read at most once, and the
+   * number of calls made to Datastore is logged with the command.
+   *
+   * @param message The received message from a user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param messageId The message or request id of the webhook, or null if it has none.
+   */
+  public void routeMessage(String message, String conversationId, String messageId) {
+    long startNanos = System.nanoTime();
+    if (typingIndicator != null) {
+      typingIndicator.replyStarted(conversationId);
+    }
+
+    String command;
+    int datastoreRpcs;
+    int datastoreReadsSaved;
+    try (UnitOfWork work = UnitOfWork.begin()) {
+      // initialize user's cart, reading only its summary
+      CartSummary cartSummary = CartManager.getCartSummary(conversationId);
+
+      command = router.route(message, new MessageContext(conversationId, cartSummary, messageId));
+      datastoreRpcs = work.getRpcs();
+      datastoreReadsSaved = work.getHits();
+    } finally {
+      // a route that left nothing to post, or failed, must not leave its indicator behind, while a
+      // reply held back by the coalescer finishes the indicator once it is posted
+      if (typingIndicator != null
+          && (replyCoalescer == null || !replyCoalescer.isHoldingBack(conversationId))) {
+        typingIndicator.replyFinished(conversationId, false);
       }
-    } else if (normalizedMessage.startsWith(BotConstants.ADD_ITEM_COMMAND)) {
-      addItemToCart(normalizedMessage, conversationId);
-    } else if (normalizedMessage.startsWith(BotConstants.DELETE_ITEM_COMMAND)) {
-      deleteItemFromCart(normalizedMessage, conversationId);
-    } else {
-      sendResponse(BotConstants.RSP_DEFAULT, conversationId);
     }
+
+    log.event("message.routed")
+        .field("conversationId", conversationId)
+        .field("command", command == null ? "default" : command)
+        .field("datastoreRpcs", datastoreRpcs)
+        .field("datastoreReadsSaved", datastoreReadsSaved)
+        .field("latencyMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+        .log();
+  }
+
+  /**
+   * Builds the router mapping supported commands to their responses.
+   *
+   * @return The command router.
+   */
+  private CommandRouter<MessageContext> buildRouter() {
+    CommandRouter.Handler<MessageContext> help =
+        (context, argument) ->
+            sendResponse(BotConstants.RSP_HELP_TEXT, context.conversationId, context.cartSummary);
+    CommandRouter.Handler<MessageContext> clearCart =
+        (context, argument) ->
+            clearCart(context.conversationId, context.getUserCart(), context.mutationId);
+
+    return CommandRouter.<MessageContext>builder()
+        .exact(BotConstants.HELP_TEXT.toLowerCase(), help)
+        .exact(
+            BotConstants.HOURS_COMMAND,
+            (context, argument) ->
+                sendResponse(
+                    BotConstants.RSP_HOURS_TEXT, context.conversationId, context.cartSummary))
+        .exact(
+            BotConstants.SHOP_COMMAND,
+            (context, argument) ->
+                sendInventoryCarousel(context.conversationId, context.cartSummary))
+        .exact(
+            BotConstants.VIEW_CART_COMMAND,
+            (context, argument) -> viewCart(context.conversationId, context.cartSummary, null))
+        .prefix(
+            BotConstants.VIEW_CART_PAGE_COMMAND,
+            (context, argument) ->
+                viewCart(context.conversationId, context.cartSummary, argument))
+        .exact(BotConstants.CLEAR_CART_COMMAND, clearCart)
+        .exact(BotConstants.CLEAR_CART_TEXT.toLowerCase(), clearCart)
+        .prefix(
+            BotConstants.ADD_ITEM_COMMAND,
+            (context, argument) ->
+                addItemToCart(
+                    argument, context.conversationId, context.getUserCart(), context.mutationId))
+        .prefix(
+            BotConstants.DELETE_ITEM_COMMAND,
+            (context, argument) ->
+                deleteItemFromCart(
+                    argument, context.conversationId, context.getUserCart(), context.mutationId))
+        .pattern(BotConstants.HELP_COMMAND, help)
+        .fallback(
+            (context, argument) ->
+                sendResponse(
+                    BotConstants.RSP_DEFAULT, context.conversationId, context.cartSummary))
+        .build();
   }
 
   /**
-   * Adds specified item to the user's cart.
+   * Adds specified item to the user's cart, once or as many times as the quantity after the item
+   * id, e.g. {@code <id>:3}.
    *
-   * @param message The message that contains which item to add to the cart.
+   * @param argument The id of the item to add to the cart, optionally followed by a quantity.
    * @param conversationId The unique id that maps from the agent to the user.
+   * @param userCart The user's cart before the item is added.
+   * @param mutationId The id of the message adding the item, or null.
    */
-  public void addItemToCart(String message, String conversationId) {
-    String itemId = message.substring("add-cart-".length());
+  public void addItemToCart(
+      String argument, String conversationId, Cart userCart, String mutationId) {
+    String itemId = parseItemId(argument);
+    int quantity = parseQuantity(argument);
+    if (quantity < 1) {
+      sendResponse(BotConstants.RSP_DEFAULT, conversationId, CartSummary.of(userCart));
+      return;
+    }
+
     try {
       InventoryItem itemToAdd = storeInventory.getItem(itemId).get();
-      this.userCart =
-          CartManager.addItem(this.userCart.getId(), itemToAdd.getId(), itemToAdd.getTitle());
-      sendResponse(itemToAdd.getTitle() + " have been added to your cart.", conversationId);
+      if (quantity == 1) {
+        userCart =
+            CartManager.addItem(
+                userCart, itemToAdd.getId(), itemToAdd.getTitle(), mutationId);
+      } else {
+        userCart =
+            CartManager.applyItemDeltas(
+                userCart,
+                ImmutableMap.of(itemToAdd.getId(), quantity),
+                ImmutableMap.of(itemToAdd.getId(), itemToAdd.getTitle()),
+                mutationId);
+      }
+      sendResponse(
+          describeQuantity(quantity, itemToAdd) + " have been added to your cart.",
+          conversationId,
+          CartSummary.of(userCart));
     } catch (NoSuchElementException e) {
       logger.log(Level.SEVERE, "Attempted to add item not in inventory.", e);
     }
   }
 
   /**
-   * Deletes specified item from the user's cart.
+   * Deletes specified item from the user's cart, once or as many times as the quantity after the
+   * item id, e.g. {@code <id>:3}.
    *
-   * @param message The message that contains which item to delete from the cart.
+   * @param argument The id of the item to delete from the cart, optionally followed by a quantity.
    * @param conversationId The unique id that maps from the agent to the user.
+   * @param userCart The user's cart before the item is deleted.
+   * @param mutationId The id of the message deleting the item, or null.
    */
-  public void deleteItemFromCart(String message, String conversationId) {
-    String itemId = message.substring("del-cart-".length());
+  public void deleteItemFromCart(
+      String argument, String conversationId, Cart userCart, String mutationId) {
+    String itemId = parseItemId(argument);
+    int quantity = parseQuantity(argument);
+    if (quantity < 1) {
+      sendResponse(BotConstants.RSP_DEFAULT, conversationId, CartSummary.of(userCart));
+      return;
+    }
+
     try {
       InventoryItem itemToDelete = storeInventory.getItem(itemId).get();
-      this.userCart = CartManager.deleteItem(this.userCart.getId(), itemToDelete.getId());
-      sendResponse(itemToDelete.getTitle() + " have been deleted from your cart.", conversationId);
+      if (quantity == 1) {
+        userCart = CartManager.deleteItem(userCart, itemToDelete.getId(), mutationId);
+      } else {
+        userCart =
+            CartManager.applyItemDeltas(
+                userCart,
+                ImmutableMap.of(itemToDelete.getId(), -quantity),
+                ImmutableMap.of(),
+                mutationId);
+      }
+      sendResponse(
+          describeQuantity(quantity, itemToDelete) + " have been deleted from your cart.",
+          conversationId,
+          CartSummary.of(userCart));
     } catch (NoSuchElementException e) {
       logger.log(Level.SEVERE, "Attempted to delete item not in inventory.", e);
     }
   }
 
   /**
-   * Used when the user's cart contains only one item.
+   * Deletes all items from the user's cart.
+   *
+   * @param conversationId The unique id that maps from the agent to the user.
+   * @param userCart The user's cart before it is cleared.
+   * @param mutationId The id of the message clearing the cart, or null.
+   */
+  public void clearCart(String conversationId, Cart userCart, String mutationId) {
+    userCart = CartManager.clearCart(userCart, mutationId);
+    sendResponse("Your cart has been cleared.", conversationId, CartSummary.of(userCart));
+  }
+
+  private static String parseItemId(String argument) {
+    int separator = argument.lastIndexOf(BotConstants.QUANTITY_SEPARATOR);
+    return separator < 0 ? argument : argument.substring(0, separator);
+  }
+
+  /**
+   * Parses the quantity after the item id of an add or delete command.
+   *
+   * @param argument The argument of the command.
+   * @return The quantity, 1 if there is none, or -1 if it is not a positive number.
+   */
+  private static int parseQuantity(String argument) {
+    int separator = argument.lastIndexOf(BotConstants.QUANTITY_SEPARATOR);
+    if (separator < 0) {
+      return 1;
+    }
+    try {
+      int quantity = Integer.parseInt(argument.substring(separator + 1).trim());
+      return quantity > 0 ? quantity : -1;
+    } catch (NumberFormatException e) {
+      logger.log(Level.WARNING, "Invalid quantity in command argument: " + argument);
+      return -1;
+    }
+  }
+
+  private static String describeQuantity(int quantity, InventoryItem item) {
+    return quantity == 1 ? item.getTitle() : quantity + " x " + item.getTitle();
+  }
+
+  /**
+   * Shows a page of the user's cart, only reading the items on it. A page with more items after it
+   * offers a suggestion showing the next page.
    *
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param cartSummary The summary of the user's cart.
+   * @param cursor The cursor of the page, or null for the first page.
    */
-  private void sendSingleCartItem(String conversationId) {
+  private void viewCart(String conversationId, CartSummary cartSummary, String cursor) {
+    CartPage page =
+        CartManager.getCartPage(conversationId, cursor, BotConstants.CART_PAGE_SIZE);
+    if (page.getItems().size() > 1) {
+      sendCartCarousel(conversationId, cartSummary, page);
+    } else {
+      sendSingleCartItem(conversationId, cartSummary, page);
+    }
+  }
+
+  /**
+   * Gets the default menu, led by the suggestion showing the next page of the cart if there is
+   * one.
+   *
+   * @param cartSummary The summary of the user's cart.
+   * @param page The page of the cart being shown.
+   * @return List of suggestions to form a menu.
+   */
+  private List<BusinessMessagesSuggestion> getCartPageMenu(
+      CartSummary cartSummary, CartPage page) {
+    List<BusinessMessagesSuggestion> suggestions =
+        UIManager.getDefaultMenu(this.representative, cartSummary);
+    if (page.hasMore()) {
+      suggestions.add(0, UIManager.getMoreItemsSuggestion(page));
+    }
+    return suggestions;
+  }
+
+  /**
+   * Used when the page of the user's cart contains only one item.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param cartSummary The summary of the user's cart.
+   * @param page The page of the cart to show.
+   */
+  private void sendSingleCartItem(String conversationId, CartSummary cartSummary, CartPage page) {
     try {
-      List<BusinessMessagesSuggestion> suggestions =
-          UIManager.getDefaultMenu(this.representative, this.userCart);
+      List<BusinessMessagesSuggestion> suggestions = getCartPageMenu(cartSummary, page);
 
       BusinessMessagesStandaloneCard standaloneCard =
-          UIManager.getCartCard(this.storeInventory, this.userCart);
+          UIManager.getCartCard(this.storeInventory, page);
       String fallbackText =
           standaloneCard.getCardContent().getTitle()
               + "\n\n"
@@ -173,11 +424,12 @@ public class CartBot {
    * Sends the inventory rich card carousel to the user.
    *
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param cartSummary The summary of the user's cart.
    */
-  private void sendInventoryCarousel(String conversationId) {
+  private void sendInventoryCarousel(String conversationId, CartSummary cartSummary) {
     try {
       List<BusinessMessagesSuggestion> suggestions =
-          UIManager.getDefaultMenu(this.representative, this.userCart);
+          UIManager.getDefaultMenu(this.representative, cartSummary);
 
       BusinessMessagesCarouselCard carouselCard = UIManager.getShopCarousel(this.storeInventory);
 
@@ -207,14 +459,15 @@ public class CartBot {
    * Sends the cart rich card carousel to the user.
    *
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param cartSummary The summary of the user's cart.
+   * @param page The page of the cart to show.
    */
-  private void sendCartCarousel(String conversationId) {
+  private void sendCartCarousel(String conversationId, CartSummary cartSummary, CartPage page) {
     try {
-      List<BusinessMessagesSuggestion> suggestions =
-          UIManager.getDefaultMenu(this.representative, this.userCart);
+      List<BusinessMessagesSuggestion> suggestions = getCartPageMenu(cartSummary, page);
 
       BusinessMessagesCarouselCard carouselCard =
-          UIManager.getCartCarousel(this.storeInventory, this.userCart);
+          UIManager.getCartCarousel(this.storeInventory, page);
 
       StringBuilder fallbackTextBuilder = new StringBuilder();
       for (BusinessMessagesCardContent cardContent : carouselCard.getCardContents()) {
@@ -243,8 +496,9 @@ public class CartBot {
    *
    * @param message The message text to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param cartSummary The summary of the user's cart, used to build the default menu.
    */
-  private void sendResponse(String message, String conversationId) {
+  private void sendResponse(String message, String conversationId, CartSummary cartSummary) {
     try {
       // Send plaintext message with default menu to user
       sendResponse(
@@ -253,7 +507,7 @@ public class CartBot {
               .setText(message)
               .setRepresentative(representative)
               .setFallback(message)
-              .setSuggestions(UIManager.getDefaultMenu(this.representative, this.userCart)),
+              .setSuggestions(UIManager.getDefaultMenu(this.representative, cartSummary)),
           conversationId);
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Exception thrown while sending response.", e);
@@ -261,47 +515,76 @@ public class CartBot {
   }
 
   /**
-   * Posts a message to the Business Messages API, first sending a typing indicator event and
-   * sending a stop typing event after the message has been sent.
+   * Sends a message to the user through the reply coalescer, which may merge it with other text
+   * replies sent to the conversation in quick succession.
    *
    * @param message The message object to send the user.
    * @param conversationId The conversation ID that uniquely maps to the user and agent.
    */
   private void sendResponse(BusinessMessagesMessage message, String conversationId) {
-    try {
-      // Send typing indicator
-      BusinessMessagesEvent event =
-          new BusinessMessagesEvent().setEventType(EventType.TYPING_STARTED.toString());
-
-      Businessmessages.Conversations.Events.Create request =
-          builder.build().conversations().events().create("conversations/" + conversationId, event);
-
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
-
-      logger.info("message id: " + message.getMessageId());
-      logger.info("message body: " + message.toPrettyString());
+    replyCoalescer.send(message, conversationId);
+  }
 
+  /**
+   * Posts a message to the Business Messages API. Typing indicator events are left to the typing
+   * indicator, which sends them in the background as needed.
+   *
+   * @param message The message object to send the user.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  private void postMessage(BusinessMessagesMessage message, String conversationId) {
+    boolean delivered = false;
+    long startNanos = System.nanoTime();
+    if (typingIndicator != null) {
+      typingIndicator.replySending(conversationId);
+    }
+    try {
       // Send the message
       Businessmessages.Conversations.Messages.Create messageRequest =
-          builder
-              .build()
-              .conversations()
-              .messages()
-              .create("conversations/" + conversationId, message);
+          bmApi.conversations().messages().create("conversations/" + conversationId, message);
 
       messageRequest.execute();
+      delivered = true;
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Exception thrown while sending response.", e);
+    } finally {
+      if (typingIndicator != null) {
+        typingIndicator.replyFinished(conversationId, delivered);
+      }
+    }
 
-      // Stop typing indicator
-      event = new BusinessMessagesEvent().setEventType(EventType.TYPING_STOPPED.toString());
+    log.event("message.sent")
+        .field("conversationId", conversationId)
+        .field("messageId", message.getMessageId())
+        .field("delivered", delivered)
+        .field("latencyMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+        .payload(() -> toJson(message))
+        .log();
+  }
 
-      request =
-          builder.build().conversations().events().create("conversations/" + conversationId, event);
+  private static String toJson(BusinessMessagesMessage message) {
+    try {
+      return message.toPrettyString();
+    } catch (IOException e) {
+      return message.toString();
+    }
+  }
 
-      request.setEventId(UUID.randomUUID().toString());
-      request.execute();
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Exception thrown while sending response.", e);
+  /**
+   * Sends the replies the reply coalescer still holds back and stops the background work of the
+   * typing indicator and the credential refresher, e.g. while the instance shuts down. Should be
+   * called once no more messages are routed.
+   */
+  public void shutdown() {
+    // the held back replies are posted with the indicator and credential still working
+    if (replyCoalescer != null) {
+      replyCoalescer.shutdown();
+    }
+    if (typingIndicator != null) {
+      typingIndicator.shutdown();
+    }
+    if (credentialRefresher != null) {
+      credentialRefresher.shutdown();
     }
   }
 
@@ -329,13 +612,24 @@ public class CartBot {
           credential.createScoped(
               Arrays.asList("https://www.googleapis.com/auth/businessmessages"));
 
-      this.credential.refreshToken();
+      // fetch the first token now and keep it fresh off the request path
+      CredentialRefresher refresher = new CredentialRefresher(this.credential);
+      BotLog.registerStats(
+          "credentialRefresher",
+          event ->
+              event
+                  .field("refreshes", refresher.getRefreshCount())
+                  .field("failures", refresher.getFailureCount())
+                  .field("lastLatencyMillis", refresher.getLastLatencyMillis())
+                  .field("averageLatencyMillis", refresher.getAverageLatencyMillis()));
+      this.credentialRefresher = refresher;
+      refresher.start();
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Exception thrown while initializing credentials.", e);
     }
   }
 
-  /** Initializes the BM API object. */
+  /** Initializes the BM API object. The client is thread-safe and shared by all requests. */
   private void initBmApi() {
     if (this.credential == null) {
       initCredentials(BotConstants.CREDENTIALS_FILE_NAME);
@@ -346,13 +640,32 @@ public class CartBot {
       JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
 
       // create instance of the BM API
-      builder =
+      Businessmessages.Builder builder =
           new Businessmessages.Builder(httpTransport, jsonFactory, null)
               .setApplicationName(credential.getServiceAccountProjectId());
 
       // set the API credentials and endpoint
       builder.setHttpRequestInitializer(credential);
       builder.setRootUrl(BotConstants.BM_API_URL);
+
+      bmApi = builder.build();
+
+      typingIndicator =
+          new TypingIndicator(
+              bmApi, BotConfig.getTypingPolicy(), BotConfig.getTypingDeadlineMillis());
+      TypingIndicator indicator = typingIndicator;
+      BotLog.registerStats(
+          "typingIndicator",
+          event ->
+              event
+                  .field("callsMade", indicator.getCallsMade())
+                  .field("callsSaved", indicator.getCallsSaved()));
+
+      replyCoalescer =
+          new ReplyCoalescer(
+              this::postMessage,
+              BotConfig.getCoalesceWindowMillis(),
+              BotConfig.getCoalesceMaxDelayMillis());
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Exception thrown while initializing BM API.", e);
     }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Write-through cache of carts, keyed by cart id, with a bounded tier on this instance and a tier
+ * in memcache shared by all instances.
+ *
+ * <p>Every entry carries the version of the cart entity it was read from or written as. The
+ * version is bumped in the transaction of every mutation, so an entry with a lower version than
+ * another is stale. Memcache is the reference: an entry on this instance is only served if memcache
+ * does not hold a newer version, and memcache is only ever replaced by a newer version. When
+ * memcache has no entry, a local entry is only used if its version matches the one just read from
+ * Datastore.
+ */
+public class CartCache {
+
+  // Prefix for cart entries in memcache
+  private static final String KEY_PREFIX = "cart:";
+
+  // Attempts at replacing the memcache entry when another instance writes it concurrently
+  private static final int MAX_SHARED_WRITE_ATTEMPTS = 3;
+
+  private final Cache<String, CachedCart> localCarts;
+  private final MemcacheService sharedCarts;
+  private final int ttlSeconds;
+
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong staleRejections = new AtomicLong();
+
+  /** A cart and the version of the cart entity it reflects. */
+  public static class CachedCart implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Cart cart;
+    private final long version;
+
+    public CachedCart(Cart cart, long version) {
+      this.cart = cart;
+      this.version = version;
+    }
+
+    public Cart getCart() {
+      return cart;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+  }
+
+  /** Lazily holds the process-wide cache. */
+  private static class InstanceHolder {
+    private static final CartCache INSTANCE =
+        new CartCache(BotConfig.getCartCacheLocalCapacity(), BotConfig.getCartCacheTtlSeconds());
+
+    static {
+      BotLog.registerStats(
+          "cartCache",
+          event ->
+              event
+                  .field("hitRatio", String.format("%.3f", INSTANCE.getHitRatio()))
+                  .field("localHits", INSTANCE.getLocalHits())
+                  .field("sharedHits", INSTANCE.getSharedHits())
+                  .field("misses", INSTANCE.getMisses())
+                  .field("evictions", INSTANCE.getEvictions())
+                  .field("staleRejections", INSTANCE.getStaleRejections()));
+    }
+  }
+
+  /**
+   * Creates a CartCache.
+   *
+   * @param localCapacity The maximum number of carts kept on this instance.
+   * @param ttlSeconds How long a cart is kept after it was last written.
+   */
+  public CartCache(int localCapacity, int ttlSeconds) {
+    this.ttlSeconds = ttlSeconds;
+    this.localCarts =
+        CacheBuilder.newBuilder()
+            .maximumSize(localCapacity)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .<String, CachedCart>removalListener(
+                notification -> {
+                  if (notification.getCause() == RemovalCause.SIZE) {
+                    evictions.incrementAndGet();
+                  }
+                })
+            .build();
+    this.sharedCarts = MemcacheServiceFactory.getMemcacheService();
+    this.sharedCarts.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+  }
+
+  /**
+   * Returns the process-wide cart cache.
+   *
+   * @return The single instance of CartCache.
+   */
+  public static CartCache getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  /**
+   * Gets the newest cached version of the cart.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The cached cart, or null if it has to be read from Datastore.
+   */
+  public CachedCart get(String cartId) {
+    CachedCart shared = (CachedCart) sharedCarts.get(KEY_PREFIX + cartId);
+    if (shared == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    CachedCart local = localCarts.getIfPresent(cartId);
+    if (local != null && local.version >= shared.version) {
+      localHits.incrementAndGet();
+      return local;
+    }
+    if (local != null) {
+      staleRejections.incrementAndGet();
+    }
+    localCarts.put(cartId, shared);
+    sharedHits.incrementAndGet();
+    return shared;
+  }
+
+  /**
+   * Gets the cart from this instance if it is at the given version, e.g. the version of the cart
+   * entity just read from Datastore.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param version The current version of the cart.
+   * @return The cached cart, or null if there is none at that version.
+   */
+  public Cart getIfVersion(String cartId, long version) {
+    CachedCart local = localCarts.getIfPresent(cartId);
+    if (local == null) {
+      return null;
+    }
+    if (local.version != version) {
+      staleRejections.incrementAndGet();
+      localCarts.invalidate(cartId);
+      return null;
+    }
+    localHits.incrementAndGet();
+    return local.cart;
+  }
+
+  /**
+   * Whether this instance holds an entry for the cart, at any version.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return True if there is a local entry.
+   */
+  public boolean hasLocal(String cartId) {
+    return localCarts.getIfPresent(cartId) != null;
+  }
+
+  /**
+   * Stores the cart at the given version in both tiers, unless they already hold a newer version.
+   *
+   * @param cart The cart.
+   * @param version The version of the cart entity the cart reflects.
+   */
+  public void put(Cart cart, long version) {
+    CachedCart cached = new CachedCart(cart, version);
+    localCarts
+        .asMap()
+        .merge(cart.getId(), cached, (old, update) -> old.version > update.version ? old : update);
+
+    String key = KEY_PREFIX + cart.getId();
+    Expiration expiration = Expiration.byDeltaSeconds(ttlSeconds);
+    for (int attempt = 0; attempt < MAX_SHARED_WRITE_ATTEMPTS; attempt++) {
+      IdentifiableValue current = sharedCarts.getIdentifiable(key);
+      if (current == null || current.getValue() == null) {
+        if (sharedCarts.put(key, cached, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+          return;
+        }
+      } else if (((CachedCart) current.getValue()).version >= version) {
+        return;
+      } else if (sharedCarts.putIfUntouched(key, current, cached, expiration)) {
+        return;
+      }
+    }
+    // give up rather than risk leaving an older version in memcache
+    sharedCarts.delete(key);
+  }
+
+  /**
+   * Drops the cart from both tiers, e.g. after a mutation whose outcome is unknown.
+   *
+   * @param cartId The unique identifier of the cart.
+   */
+  public void invalidate(String cartId) {
+    localCarts.invalidate(cartId);
+    sharedCarts.delete(KEY_PREFIX + cartId);
+  }
+
+  /**
+   * Drops several carts from both tiers with one call to memcache, e.g. after they were deleted.
+   *
+   * @param cartIds The unique identifiers of the carts.
+   */
+  public void invalidateAll(Collection<String> cartIds) {
+    List<String> keys = new ArrayList<>();
+    for (String cartId : cartIds) {
+      localCarts.invalidate(cartId);
+      keys.add(KEY_PREFIX + cartId);
+    }
+    sharedCarts.deleteAll(keys);
+  }
+
+  /**
+   * Gets the share of lookups served from either tier.
+   *
+   * @return The hit ratio, between 0 and 1.
+   */
+  public double getHitRatio() {
+    long hits = localHits.get() + sharedHits.get();
+    long total = hits + misses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Gets the number of lookups served from this instance.
+   *
+   * @return The number of local hits.
+   */
+  public long getLocalHits() {
+    return localHits.get();
+  }
+
+  /**
+   * Gets the number of lookups served from memcache.
+   *
+   * @return The number of shared hits.
+   */
+  public long getSharedHits() {
+    return sharedHits.get();
+  }
+
+  /**
+   * Gets the number of lookups that had to go to Datastore.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the number of carts evicted from this instance to stay within capacity.
+   *
+   * @return The number of evictions.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Gets the number of entries on this instance found to be older than the current version.
+   *
+   * @return The number of staleness rejections.
+   */
+  public long getStaleRejections() {
+    return staleRejections.get();
+  }
+}
@@ -13,11 +13,15 @@
  */
 package com.google.businessmessages.cart;
 
+import java.io.Serializable;
+
 /**
  * The CartItem instance encapsulates relevant metadata about an item the user has added to their
  * shopping cart. Each CartItem's itemId corresponds to an InventoryItem's itemId.
  */
-public class CartItem {
+public class CartItem implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private final String id;
   private final String title;
   private final int count;
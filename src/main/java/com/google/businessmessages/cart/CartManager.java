@@ -13,62 +13,43 @@
  */
 package com.google.businessmessages.cart;
 
-import com.google.appengine.api.datastore.Entity;
 import com.google.common.collect.ImmutableList;
-import java.util.List;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.Map;
 
 /**
- * Manages communication between the Cart object and the data layer. Updates Cart data within the
- * data layer and returns a new and updated Cart instance.
+ * Manages communication between the Cart object and the cart store. Updates Cart data within the
+ * store configured by {@link BotConfig#getCartStoreBackend} and returns a new and updated Cart
+ * instance.
  */
 public class CartManager {
 
   /**
    * Gets the existing Cart data associated with the given conversationId if it exists. Otherwise,
-   * creates new Cart data. Returns new instance of Cart based on data.
+   * creates new Cart data. Returns new instance of Cart based on data. The id of the cart is the
+   * conversation ID its entity is keyed by.
    *
    * @param conversationId The unique id that maps between the agent and the user.
    * @return The new Cart instance constructed with persisted data, if any.
    */
   public static Cart getOrCreateCart(String conversationId) {
-    DataManager dataManager = DataManager.getInstance();
-    Entity cartEntity = dataManager.getCart(conversationId);
-    String cartId;
-    if (cartEntity == null) {
-      cartId = UUID.randomUUID().toString();
-      dataManager.saveCart(conversationId, cartId);
-    } else {
-      cartId = (String) cartEntity.getProperty(DataManager.PROPERTY_CART_ID);
-    }
-    return new Cart(cartId, getCartItems(cartId));
+    return CartStores.getInstance().getOrCreateCart(conversationId);
   }
 
   /**
-   * Gets the collection of items associated with the given cartId. Can be invoked upon the
-   * initialization of a user's cart, or when items are added or deleted from the cart.
+   * Gets how many items the cart holds without reading them, creating the cart if it does not
+   * exist. Commands that do not render the items of the cart only need its summary.
    *
-   * @param cartId The unique identifier of the cart whose items will be returned.
-   * @return The immutable collection of items associated with the given cartId.
+   * @param conversationId The unique id that maps between the agent and the user.
+   * @return The summary of the cart.
    */
-  private static ImmutableList<CartItem> getCartItems(String cartId) {
-    ImmutableList.Builder<CartItem> builder = new ImmutableList.Builder<>();
-    DataManager dataManager = DataManager.getInstance();
-    List<Entity> itemList = dataManager.getCartFromData(cartId);
-    if (itemList != null) {
-      for (Entity ent : itemList) {
-        String id = (String) ent.getProperty(DataManager.PROPERTY_ITEM_ID);
-        String title = (String) ent.getProperty(DataManager.PROPERTY_ITEM_TITLE);
-        int count = ((Long) ent.getProperty(DataManager.PROPERTY_COUNT)).intValue();
-        builder.add(new CartItem(id, title, count));
-      }
-    }
-    return builder.build();
+  public static CartSummary getCartSummary(String conversationId) {
+    return CartStores.getInstance().getCartSummary(conversationId);
   }
 
   /**
    * Adds the specified item to the cart and then returns a new instance of cart with an updated
-   * collection of items in it.
+   * collection of items in it. The cart is read back from the store afterwards.
    *
    * @param cartId the unique identifier of the cart this item will be added to.
    * @param itemId The unique identifier of the item being added.
@@ -76,22 +57,155 @@ public class CartManager {
    * @return The new instance of Cart with the updated collection of items.
    */
   public static Cart addItem(String cartId, String itemId, String itemTitle) {
-    DataManager dataManager = DataManager.getInstance();
-    dataManager.addItemToCart(cartId, itemId, itemTitle);
-    return new Cart(cartId, getCartItems(cartId));
+    return addItem(new Cart(cartId, ImmutableList.of()), itemId, itemTitle);
+  }
+
+  /**
+   * Adds the specified item to the cart and then returns a new instance of cart with an updated
+   * collection of items in it, derived from the given cart unless the stored cart has diverged.
+   *
+   * @param cart The cart this item will be added to, as last read or returned by a mutation.
+   * @param itemId The unique identifier of the item being added.
+   * @param itemTitle The title of the item being added.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart addItem(Cart cart, String itemId, String itemTitle) {
+    return addItem(cart, itemId, itemTitle, null);
+  }
+
+  /**
+   * Adds the specified item to the cart at most once for the given mutation id, however often the
+   * inbound message is retried or redelivered.
+   *
+   * @param cart The cart this item will be added to, as last read or returned by a mutation.
+   * @param itemId The unique identifier of the item being added.
+   * @param itemTitle The title of the item being added.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart addItem(Cart cart, String itemId, String itemTitle, String mutationId) {
+    return applyItemDeltas(
+        cart,
+        Collections.singletonMap(itemId, 1),
+        Collections.singletonMap(itemId, itemTitle),
+        mutationId);
   }
 
   /**
    * Deletes the specified item from the cart and then returns a new instance of cart with an
-   * updated collection of items in it.
+   * updated collection of items in it. The cart is read back from the store afterwards.
    *
    * @param cartId The unique identifier of the cart this item will be deleted from.
    * @param itemId The unique identifier of the item being deleted.
    * @return The new instance of Cart with the updated collection of items.
    */
   public static Cart deleteItem(String cartId, String itemId) {
-    DataManager dataManager = DataManager.getInstance();
-    dataManager.deleteItemFromCart(cartId, itemId);
-    return new Cart(cartId, getCartItems(cartId));
+    return deleteItem(new Cart(cartId, ImmutableList.of()), itemId);
+  }
+
+  /**
+   * Deletes the specified item from the cart and then returns a new instance of cart with an
+   * updated collection of items in it, derived from the given cart unless the stored cart has
+   * diverged.
+   *
+   * @param cart The cart this item will be deleted from, as last read or returned by a mutation.
+   * @param itemId The unique identifier of the item being deleted.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart deleteItem(Cart cart, String itemId) {
+    return deleteItem(cart, itemId, null);
+  }
+
+  /**
+   * Deletes the specified item from the cart at most once for the given mutation id, however
+   * often the inbound message is retried or redelivered.
+   *
+   * @param cart The cart this item will be deleted from, as last read or returned by a mutation.
+   * @param itemId The unique identifier of the item being deleted.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart deleteItem(Cart cart, String itemId, String mutationId) {
+    return applyItemDeltas(
+        cart, Collections.singletonMap(itemId, -1), Collections.emptyMap(), mutationId);
+  }
+
+  /**
+   * Changes the counts of several items in the cart and returns a new
+   * instance of cart, derived from the given cart unless the stored cart has diverged. Items whose
+   * count drops to zero are removed, and items not in the cart are only added by a positive change.
+   *
+   * @param cart The cart the items will be changed in, as last read or returned by a mutation.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart applyItemDeltas(
+      Cart cart, Map<String, Integer> deltas, Map<String, String> itemTitles) {
+    return applyItemDeltas(cart, deltas, itemTitles, null);
+  }
+
+  /**
+   * Changes the counts of several items in the cart at most once for the given mutation id. A
+   * change already made for the mutation id is not made again, and the cart is read again unless
+   * the given cart is the one it was made from.
+   *
+   * @param cart The cart the items will be changed in, as last read or returned by a mutation.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The new instance of Cart with the updated collection of items.
+   */
+  public static Cart applyItemDeltas(
+      Cart cart,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId) {
+    return CartStores.getInstance().applyItemDeltas(cart, deltas, itemTitles, mutationId);
+  }
+
+  /**
+   * Deletes all items from the cart and returns the empty cart.
+   *
+   * @param cart The cart to clear.
+   * @return The new instance of Cart without items.
+   */
+  public static Cart clearCart(Cart cart) {
+    return clearCart(cart, null);
+  }
+
+  /**
+   * Deletes all items from the cart at most once for the given mutation id and returns the empty
+   * cart, or the cart read again if it changed since it was cleared for the mutation id.
+   *
+   * @param cart The cart to clear.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The new instance of Cart without items.
+   */
+  public static Cart clearCart(Cart cart, String mutationId) {
+    return CartStores.getInstance().clearCart(cart, mutationId);
+  }
+
+  /**
+   * Gets a page of the items in the cart, so a view only reads the items it renders.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param cursor The cursor of the page, from the previous page, or null for the first page.
+   * @param pageSize The maximum number of items on the page.
+   * @return The page, with the cursor of the next page and the number of items in the cart.
+   */
+  public static CartPage getCartPage(String cartId, String cursor, int pageSize) {
+    return CartStores.getInstance().getCartPage(cartId, cursor, pageSize);
+  }
+
+  /**
+   * Gets all items in the cart, however many there are. Unlike the items of a Cart, which are
+   * limited to the first ones of a large cart, the items are read as they are iterated over.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The items of the cart, in the order of their ids.
+   */
+  public static Iterable<CartItem> getAllItems(String cartId) {
+    return CartStores.getInstance().getAllItems(cartId);
   }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites cart data stored in an older layout into the current one. Migrations only touch
+ * entities still in the old layout, so they can be stopped and run again until nothing is left.
+ *
+ * <p>Entities are read in pages, and each cart is rewritten in its own transactions, which delete
+ * the entities in the old layout along with writing their copies.
+ */
+public class CartMigration {
+
+  private static final Logger logger = Logger.getLogger(CartMigration.class.getName());
+
+  private final AsyncDatastoreService datastore;
+
+  /** The outcome of a migration run. */
+  public static class Result {
+    private int migrated;
+    private int skipped;
+    private int failed;
+
+    public int getMigrated() {
+      return migrated;
+    }
+
+    public int getSkipped() {
+      return skipped;
+    }
+
+    public int getFailed() {
+      return failed;
+    }
+
+    @Override
+    public String toString() {
+      return "migrated=" + migrated + " skipped=" + skipped + " failed=" + failed;
+    }
+  }
+
+  public CartMigration() {
+    this.datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+  }
+
+  /**
+   * Moves carts stored under an allocated id to a key named after their conversation, along with
+   * their items. A cart whose conversation already had a keyed cart before the migration is
+   * skipped and left in place. Several legacy carts of the same conversation are merged: the first
+   * is moved to the key, and the items of the others are added to it.
+   *
+   * @param batchSize The number of carts read at a time.
+   * @return The number of carts migrated, skipped and failed.
+   */
+  public Result migrateCarts(int batchSize) {
+    Result result = new Result();
+    DataManager dataManager = DataManager.getInstance();
+    // conversations whose keyed cart was created by this migration, so duplicates are merged
+    Set<String> movedConversations = new HashSet<>();
+    PreparedQuery query = datastore.prepare(new Query(DataManager.CART_TYPE));
+
+    Cursor cursor = null;
+    QueryResultList<Entity> page;
+    do {
+      FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      page = query.asQueryResultList(options);
+      cursor = page.getCursor();
+
+      Map<String, List<Entity>> legacyCarts = groupLegacyCarts(page, movedConversations, result);
+      for (Map.Entry<String, List<Entity>> duplicates : legacyCarts.entrySet()) {
+        for (Entity legacyCart : duplicates.getValue()) {
+          if (dataManager.moveLegacyCart(legacyCart)) {
+            movedConversations.add(duplicates.getKey());
+            result.migrated++;
+          } else {
+            result.failed++;
+          }
+        }
+      }
+    } while (page.size() == batchSize);
+
+    logger.info("Cart migration finished: " + result);
+    return result;
+  }
+
+  /**
+   * Groups the legacy carts of a page by their conversation, skipping conversations that already
+   * had a keyed cart before the migration.
+   *
+   * @return The legacy carts to move, by conversation.
+   */
+  private Map<String, List<Entity>> groupLegacyCarts(
+      List<Entity> page, Set<String> movedConversations, Result result) {
+    Map<String, List<Entity>> legacyCarts = new LinkedHashMap<>();
+    for (Entity cart : page) {
+      String conversationId = (String) cart.getProperty(DataManager.PROPERTY_CONVERSATION_ID);
+      if (cart.getKey().getName() == null && conversationId != null) {
+        legacyCarts.computeIfAbsent(conversationId, id -> new ArrayList<>()).add(cart);
+      }
+    }
+
+    // never overwrite a cart created under the new key by anything but this migration
+    List<Key> keys = new ArrayList<>();
+    for (String conversationId : legacyCarts.keySet()) {
+      if (!movedConversations.contains(conversationId)) {
+        keys.add(DataManager.getCartKey(conversationId));
+      }
+    }
+    if (keys.isEmpty()) {
+      return legacyCarts;
+    }
+    Map<Key, Entity> existing = await(datastore.get(keys));
+    if (existing == null) {
+      for (Key key : keys) {
+        result.failed += legacyCarts.remove(key.getName()).size();
+      }
+      return legacyCarts;
+    }
+    for (Key key : existing.keySet()) {
+      result.skipped += legacyCarts.remove(key.getName()).size();
+    }
+    return legacyCarts;
+  }
+
+  /**
+   * Moves cart items stored before items were children of their cart under the key of the cart
+   * they refer to by cart_id, adding to the count of an item already under the cart's key. The
+   * items of a cart are moved in transactions that also update the summary and version of the
+   * cart and delete the legacy items, so items can be moved while the bot is running and a
+   * migration run again never adds them twice. Items whose cart cannot be found are skipped and
+   * left in place.
+   *
+   * @param batchSize The number of items read at a time.
+   * @return The number of items migrated, skipped and failed.
+   */
+  public Result migrateItems(int batchSize) {
+    Result result = new Result();
+    DataManager dataManager = DataManager.getInstance();
+    Map<String, String> conversationIds = new HashMap<>();
+    PreparedQuery query = datastore.prepare(new Query(DataManager.CART_ITEM_TYPE));
+
+    Cursor cursor = null;
+    QueryResultList<Entity> page;
+    do {
+      FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      page = query.asQueryResultList(options);
+      cursor = page.getCursor();
+
+      for (Map.Entry<String, List<Key>> cartItems :
+          groupLegacyItems(page, conversationIds, result).entrySet()) {
+        for (List<Key> chunk : Lists.partition(cartItems.getValue(), DataManager.MAX_MOVED_ITEMS)) {
+          int moved = dataManager.moveLegacyItems(cartItems.getKey(), null, chunk);
+          if (moved < 0) {
+            result.failed += chunk.size();
+          } else {
+            result.migrated += moved;
+          }
+        }
+      }
+    } while (page.size() == batchSize);
+
+    logger.info("Cart item migration finished: " + result);
+    return result;
+  }
+
+  /**
+   * Converts keyed carts to the given storage mode. Each cart is converted in its own transaction,
+   * so carts can be converted while the bot is running.
+   *
+   * @param mode The storage mode to convert carts to.
+   * @param batchSize The number of carts read at a time.
+   * @return The number of carts converted, already in the mode, and failed.
+   */
+  public Result convertCarts(DataManager.StorageMode mode, int batchSize) {
+    Result result = new Result();
+    DataManager dataManager = DataManager.getInstance();
+    boolean toDocument = mode == DataManager.StorageMode.DOCUMENT;
+    PreparedQuery query = datastore.prepare(new Query(DataManager.CART_TYPE));
+
+    Cursor cursor = null;
+    QueryResultList<Entity> page;
+    do {
+      FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      page = query.asQueryResultList(options);
+      cursor = page.getCursor();
+
+      for (Entity cart : page) {
+        String cartId = cart.getKey().getName();
+        if (cartId == null || DataManager.isCartDocument(cart) == toDocument) {
+          result.skipped++;
+          continue;
+        }
+
+        Entity converted =
+            toDocument
+                ? dataManager.convertToDocument(cartId)
+                : dataManager.convertToEntities(cartId);
+        if (converted == null) {
+          result.failed++;
+        } else {
+          result.migrated++;
+        }
+      }
+    } while (page.size() == batchSize);
+
+    logger.info("Cart conversion to " + mode + " finished: " + result);
+    return result;
+  }
+
+  /**
+   * Groups the legacy items of a page by the conversation of the cart they refer to, skipping items
+   * whose cart cannot be found or that have no id or count.
+   *
+   * @return The keys of the legacy items, by conversation.
+   */
+  private Map<String, List<Key>> groupLegacyItems(
+      List<Entity> page, Map<String, String> conversationIds, Result result) {
+    Map<String, List<Key>> legacyItems = new LinkedHashMap<>();
+    for (Entity item : page) {
+      if (item.getParent() != null) {
+        continue;
+      }
+
+      String cartId = (String) item.getProperty(DataManager.PROPERTY_CART_ID);
+      String conversationId = findConversationId(cartId, conversationIds);
+      if (conversationId == null
+          || item.getProperty(DataManager.PROPERTY_ITEM_ID) == null
+          || item.getProperty(DataManager.PROPERTY_COUNT) == null) {
+        result.skipped++;
+        continue;
+      }
+      legacyItems.computeIfAbsent(conversationId, id -> new ArrayList<>()).add(item.getKey());
+    }
+    return legacyItems;
+  }
+
+  private String findConversationId(String cartId, Map<String, String> conversationIds) {
+    if (cartId == null) {
+      return null;
+    }
+    if (conversationIds.containsKey(cartId)) {
+      return conversationIds.get(cartId);
+    }
+
+    final Query q =
+        new Query(DataManager.CART_TYPE)
+            .setFilter(
+                new Query.FilterPredicate(
+                    DataManager.PROPERTY_CART_ID, Query.FilterOperator.EQUAL, cartId));
+    List<Entity> carts = datastore.prepare(q).asList(FetchOptions.Builder.withLimit(1));
+    String conversationId =
+        carts.isEmpty()
+            ? null
+            : (String) carts.get(0).getProperty(DataManager.PROPERTY_CONVERSATION_ID);
+    conversationIds.put(cartId, conversationId);
+    return conversationId;
+  }
+
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Interrupted while migrating cart data.", e);
+    } catch (ExecutionException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to migrate a batch.", e);
+    }
+    return null;
+  }
+}
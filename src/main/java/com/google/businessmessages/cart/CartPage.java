@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A page of the items in a cart, with the cursor of the next page and the number of items in the
+ * whole cart, so a view can render one page without reading the others.
+ */
+public class CartPage {
+
+  private final ImmutableList<CartItem> items;
+  private final String nextCursor;
+  private final int totalCount;
+
+  public CartPage(ImmutableList<CartItem> items, String nextCursor, int totalCount) {
+    this.items = items;
+    this.nextCursor = nextCursor;
+    this.totalCount = totalCount;
+  }
+
+  /**
+   * Creates a page of items already in memory. The cursor of the page is the position of its first
+   * item.
+   *
+   * @param allItems All items of the cart.
+   * @param cursor The cursor of the page, or null for the first page. A cursor that cannot be read
+   *     is taken as the first page.
+   * @param pageSize The maximum number of items on the page.
+   * @return The page.
+   */
+  public static CartPage of(ImmutableList<CartItem> allItems, String cursor, int pageSize) {
+    int start = 0;
+    if (cursor != null) {
+      try {
+        start = Math.max(0, Math.min(Integer.parseInt(cursor), allItems.size()));
+      } catch (NumberFormatException e) {
+        start = 0;
+      }
+    }
+    int end = Math.min(start + pageSize, allItems.size());
+    return new CartPage(
+        allItems.subList(start, end),
+        end < allItems.size() ? String.valueOf(end) : null,
+        allItems.size());
+  }
+
+  /**
+   * Gets the items on this page.
+   *
+   * @return items The items, in the order of their ids.
+   */
+  public ImmutableList<CartItem> getItems() {
+    return items;
+  }
+
+  /**
+   * Gets the cursor the next page starts at.
+   *
+   * @return nextCursor The cursor of the next page, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * Whether the cart has items after this page.
+   *
+   * @return True if there is a next page.
+   */
+  public boolean hasMore() {
+    return nextCursor != null;
+  }
+
+  /**
+   * Gets the number of distinct items in the whole cart.
+   *
+   * @return totalCount The number of items in the cart.
+   */
+  public int getTotalCount() {
+    return totalCount;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import java.util.Map;
+
+/**
+ * Keeps carts and applies changes to them. Every change returns a new instance of Cart, so a Cart
+ * held by a caller never changes.
+ *
+ * <p>A change made with a mutation id is made at most once for that id, however often it is
+ * attempted, e.g. when the webhook carrying it is delivered again.
+ */
+public interface CartStore {
+
+  /** Where carts are kept. */
+  enum Backend {
+    // Datastore, shared by all instances
+    DATASTORE,
+    // the memory of this instance, lost on restart
+    MEMORY,
+    // the memory of this instance, with every change logged to a local file
+    LOCAL_FILE
+  }
+
+  /**
+   * Gets the cart with the given id, creating an empty one if there is none. The id of the cart is
+   * the conversation ID that maps between the agent and the user.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The cart.
+   */
+  Cart getOrCreateCart(String cartId);
+
+  /**
+   * Changes the counts of several items in the cart. Items whose count drops to zero are removed.
+   *
+   * @param cart The cart to change.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items, used for items new to the cart.
+   * @param mutationId The id the change is made at most once for, or null.
+   * @return The cart after the change.
+   */
+  Cart applyItemDeltas(
+      Cart cart, Map<String, Integer> deltas, Map<String, String> itemTitles, String mutationId);
+
+  /**
+   * Removes all items from the cart.
+   *
+   * @param cart The cart to clear.
+   * @param mutationId The id the cart is cleared at most once for, or null.
+   * @return The cart after clearing it.
+   */
+  Cart clearCart(Cart cart, String mutationId);
+
+  /**
+   * Gets the summary of the cart, creating an empty cart if there is none. Stores that do not hold
+   * carts in memory read the summary without the items.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The summary of the cart.
+   */
+  default CartSummary getCartSummary(String cartId) {
+    return CartSummary.of(getOrCreateCart(cartId));
+  }
+
+  /**
+   * Gets a page of the items in the cart, in the order of their ids. Cursors are only valid for
+   * the store that returned them.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param cursor The cursor of the page, from the previous page, or null for the first page.
+   * @param pageSize The maximum number of items on the page.
+   * @return The page.
+   */
+  default CartPage getCartPage(String cartId, String cursor, int pageSize) {
+    return CartPage.of(getOrCreateCart(cartId).getItems(), cursor, pageSize);
+  }
+
+  /**
+   * Gets all items in the cart, in the order of their ids. Stores that do not hold carts in memory
+   * read the items as they are iterated over, so a large cart is never read at once.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The items of the cart.
+   */
+  default Iterable<CartItem> getAllItems(String cartId) {
+    return getOrCreateCart(cartId).getItems();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Creates the cart store of the configured backend. */
+public final class CartStores {
+
+  private static final Logger logger = Logger.getLogger(CartStores.class.getName());
+
+  private CartStores() {}
+
+  /** Lazily holds the process-wide store. */
+  private static class InstanceHolder {
+    private static final CartStore INSTANCE = create(BotConfig.getCartStoreBackend());
+  }
+
+  /**
+   * Returns the process-wide cart store, of the backend configured when it is first used.
+   *
+   * @return The single instance of CartStore.
+   */
+  public static CartStore getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  /**
+   * Creates a cart store.
+   *
+   * @param backend Where the store keeps carts.
+   * @return The new store.
+   * @throws UncheckedIOException If the log file of the local file backend cannot be opened.
+   */
+  public static CartStore create(CartStore.Backend backend) {
+    switch (backend) {
+      case MEMORY:
+        return new InMemoryCartStore();
+      case LOCAL_FILE:
+        try {
+          return new LocalFileCartStore(
+              Paths.get(BotConfig.getCartStoreFile()),
+              BotConfig.getCartStoreCompactionIntervalSeconds());
+        } catch (IOException e) {
+          throw new UncheckedIOException("Unable to open the cart log.", e);
+        }
+      case DATASTORE:
+      default:
+        if (BotConfig.isWriteBehindEnabled() && !BackgroundThreads.isAvailable()) {
+          logger.warning("Write-behind needs background threads to flush, writing through.");
+        } else if (BotConfig.isWriteBehindEnabled()) {
+          WriteBehindCartStore store =
+              new WriteBehindCartStore(
+                  new DatastoreCartStore(),
+                  BotConfig.getWriteBehindWindowMillis(),
+                  BotConfig.getWriteBehindMaxChanges());
+          BotLog.registerStats(
+              "writeBehind",
+              event ->
+                  event
+                      .field("bufferedChanges", store.getBufferedChanges())
+                      .field("flushes", store.getFlushes())
+                      .field(
+                          "averageFlushMillis",
+                          String.format("%.1f", store.getAverageFlushMillis()))
+                      .field("maxFlushMillis", store.getMaxFlushMillis())
+                      .field(
+                          "averageBatchSize", String.format("%.1f", store.getAverageBatchSize()))
+                      .field("changesSaved", store.getChangesSaved())
+                      .field("failedWrites", store.getFailedWrites())
+                      .field("droppedBatches", store.getDroppedBatches())
+                      .field("remoteWaits", store.getRemoteWaits()));
+          return store;
+        }
+        return new DatastoreCartStore();
+    }
+  }
+
+  /**
+   * Closes the process-wide store if it holds resources or buffered changes, e.g. while the
+   * instance shuts down.
+   */
+  public static void shutdown() {
+    CartStore store = getInstance();
+    if (store instanceof Closeable) {
+      try {
+        ((Closeable) store).close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to close the cart store.", e);
+      }
+    }
+  }
+}
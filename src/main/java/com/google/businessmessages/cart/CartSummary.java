@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+/**
+ * What a cart holds without its items: how many distinct items and how many units there are, and
+ * the version of the cart it reflects. Commands that do not render items, e.g. the default menu,
+ * only need the summary, which is stored on the cart entity and read without the items.
+ */
+public class CartSummary {
+
+  private final String cartId;
+  private final int itemCount;
+  private final long totalQuantity;
+  private final long version;
+
+  public CartSummary(String cartId, int itemCount, long totalQuantity, long version) {
+    this.cartId = cartId;
+    this.itemCount = itemCount;
+    this.totalQuantity = totalQuantity;
+    this.version = version;
+  }
+
+  /**
+   * Creates the summary of a cart whose items are already in memory.
+   *
+   * @param cart The cart.
+   * @return The summary of the cart.
+   */
+  public static CartSummary of(Cart cart) {
+    return of(cart.getId(), cart.getItems(), cart.getVersion());
+  }
+
+  /**
+   * Creates the summary of items, counting each of them once.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param items The items of the cart.
+   * @param version The version of the cart the items were read at.
+   * @return The summary of the items.
+   */
+  public static CartSummary of(String cartId, Iterable<CartItem> items, long version) {
+    int itemCount = 0;
+    long totalQuantity = 0;
+    for (CartItem item : items) {
+      itemCount++;
+      totalQuantity += item.getCount();
+    }
+    return new CartSummary(cartId, itemCount, totalQuantity, version);
+  }
+
+  /**
+   * Gets the unique id of the cart this summary belongs to.
+   *
+   * @return The unique id of the cart.
+   */
+  public String getCartId() {
+    return cartId;
+  }
+
+  /**
+   * Gets the number of distinct items in the cart.
+   *
+   * @return The number of items.
+   */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  /**
+   * Gets the sum of the counts of all items in the cart.
+   *
+   * @return The total quantity.
+   */
+  public long getTotalQuantity() {
+    return totalQuantity;
+  }
+
+  /**
+   * Gets the version of the stored cart this summary reflects.
+   *
+   * @return The version of the cart entity, or 0 if it is not known.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Whether the cart holds no items.
+   *
+   * @return True if the cart is empty.
+   */
+  public boolean isEmpty() {
+    return itemCount == 0;
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes abandoned carts, those not changed since a cutoff, along with their items and mutation
+ * markers.
+ *
+ * <p>Expired carts are found with a keys-only query on their last_touched time, read in pages with
+ * a cursor. Each cart of a page is deleted along with everything under it in its own transaction,
+ * which first reads the cart again and skips it if it was changed since the query. A user coming
+ * back while their cart is being deleted makes the transaction fail, so the cart and its items are
+ * kept. The transactions of a page run at once and are left to commit while the following pages are
+ * read, so up to the given number of batches are deleted in parallel. Deletes are paced by a rate
+ * limit so the sweep does not take Datastore throughput away from live traffic.
+ *
+ * <p>Carts saved before they had a last_touched time are only swept once they are changed again.
+ *
+ * <p>The mutation markers of carts that are kept are pruned separately, once the messages they
+ * record can no longer be redelivered. They are found by their applied_at time in the same way.
+ */
+public class CartSweeper {
+
+  private static final Logger logger = Logger.getLogger(CartSweeper.class.getName());
+
+  // The most entities Datastore deletes in one call or one commit
+  private static final int MAX_KEYS_PER_DELETE = 500;
+
+  private final AsyncDatastoreService datastore;
+
+  /** The outcome of a sweep. */
+  public static class Result {
+    private int sweptCarts;
+    private int sweptEntities;
+    private int prunedMarkers;
+    private int skipped;
+    private int failed;
+    private boolean finished = true;
+    private long elapsedMillis;
+
+    /** The number of carts deleted. */
+    public int getSweptCarts() {
+      return sweptCarts;
+    }
+
+    /** The number of entities deleted, the carts along with their items and markers. */
+    public int getSweptEntities() {
+      return sweptEntities;
+    }
+
+    /** The number of mutation markers deleted from carts that are kept. */
+    public int getPrunedMarkers() {
+      return prunedMarkers;
+    }
+
+    /** The number of expired carts found to have been changed before they were deleted. */
+    public int getSkipped() {
+      return skipped;
+    }
+
+    /** The number of carts whose deletion failed. */
+    public int getFailed() {
+      return failed;
+    }
+
+    /** Whether all expired carts were visited, rather than the sweep running out of time. */
+    public boolean isFinished() {
+      return finished;
+    }
+
+    /** The number of carts deleted per second of the sweep. */
+    public double getCartsPerSecond() {
+      return elapsedMillis == 0 ? 0 : sweptCarts * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "swept="
+          + sweptCarts
+          + " entities="
+          + sweptEntities
+          + " pruned="
+          + prunedMarkers
+          + " skipped="
+          + skipped
+          + " failed="
+          + failed
+          + " finished="
+          + finished
+          + " cartsPerSecond="
+          + String.format("%.1f", getCartsPerSecond());
+    }
+  }
+
+  /** A batch of expired carts, each being deleted with everything under it in a transaction. */
+  private static class Batch {
+    private final List<Deletion> deletions = new ArrayList<>();
+  }
+
+  /** The transaction deleting one expired cart. */
+  private static class Deletion {
+    private final Key cartKey;
+    private final Transaction transaction;
+    private final int entities;
+    private final Future<Void> delete;
+
+    private Deletion(Key cartKey, Transaction transaction, int entities, Future<Void> delete) {
+      this.cartKey = cartKey;
+      this.transaction = transaction;
+      this.entities = entities;
+      this.delete = delete;
+    }
+  }
+
+  public CartSweeper() {
+    this.datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+  }
+
+  /**
+   * Deletes the carts not changed since the cutoff.
+   *
+   * @param cutoff Carts last changed before this time are deleted.
+   * @param batchSize The number of carts read and deleted at a time.
+   * @param parallelism The maximum number of batches being deleted at once.
+   * @param maxCartsPerSecond The rate carts are deleted at, at most.
+   * @param maxRunMillis The time after which no more pages are read, so the sweep ends within its
+   *     request. A sweep that runs out of time can simply be started again.
+   * @return The number of carts and entities swept, skipped and failed.
+   */
+  public Result sweep(
+      Date cutoff, int batchSize, int parallelism, double maxCartsPerSecond, long maxRunMillis) {
+    Result result = new Result();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxRunMillis);
+    RateLimiter rateLimiter = RateLimiter.create(maxCartsPerSecond);
+    PreparedQuery query =
+        datastore.prepare(
+            new Query(DataManager.CART_TYPE)
+                .setFilter(
+                    new Query.FilterPredicate(
+                        DataManager.PROPERTY_LAST_TOUCHED,
+                        Query.FilterOperator.LESS_THAN,
+                        cutoff))
+                .setKeysOnly());
+    Deque<Batch> inFlight = new ArrayDeque<>();
+
+    Cursor cursor = null;
+    QueryResultList<Entity> page;
+    do {
+      if (System.nanoTime() > deadline) {
+        result.finished = false;
+        break;
+      }
+
+      FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      page = query.asQueryResultList(options);
+      cursor = page.getCursor();
+
+      if (!page.isEmpty()) {
+        rateLimiter.acquire(page.size());
+        Batch batch = startBatch(page, cutoff, result);
+        if (batch != null) {
+          inFlight.add(batch);
+        }
+      }
+      while (inFlight.size() >= parallelism) {
+        finishBatch(inFlight.remove(), result);
+      }
+    } while (page.size() == batchSize);
+
+    while (!inFlight.isEmpty()) {
+      finishBatch(inFlight.remove(), result);
+    }
+
+    result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info("Cart sweep finished: " + result);
+    return result;
+  }
+
+  /**
+   * Deletes the mutation markers written before the cutoff. A marker only has to outlive the
+   * redeliveries of its message, so markers older than the redelivery window are removed from
+   * carts that are still in use.
+   *
+   * @param cutoff Markers written before this time are deleted.
+   * @param maxMarkersPerSecond The rate markers are deleted at, at most.
+   * @param maxRunMillis The time after which no more markers are read. A prune that runs out of
+   *     time can simply be started again.
+   * @return The number of markers pruned and failed.
+   */
+  public Result pruneMarkers(Date cutoff, double maxMarkersPerSecond, long maxRunMillis) {
+    Result result = new Result();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxRunMillis);
+    RateLimiter rateLimiter = RateLimiter.create(maxMarkersPerSecond);
+    PreparedQuery query =
+        datastore.prepare(
+            new Query(DataManager.CART_MUTATION_TYPE)
+                .setFilter(
+                    new Query.FilterPredicate(
+                        DataManager.PROPERTY_APPLIED_AT, Query.FilterOperator.LESS_THAN, cutoff))
+                .setKeysOnly());
+
+    Cursor cursor = null;
+    QueryResultList<Entity> page;
+    do {
+      if (System.nanoTime() > deadline) {
+        result.finished = false;
+        break;
+      }
+
+      FetchOptions options = FetchOptions.Builder.withLimit(MAX_KEYS_PER_DELETE);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      page = query.asQueryResultList(options);
+      cursor = page.getCursor();
+      if (page.isEmpty()) {
+        break;
+      }
+
+      List<Key> keys = new ArrayList<>();
+      for (Entity marker : page) {
+        keys.add(marker.getKey());
+      }
+      // markers are never changed once written, so they need no re-read before being deleted
+      rateLimiter.acquire(keys.size());
+      if (succeeded(datastore.delete(keys))) {
+        result.prunedMarkers += keys.size();
+      } else {
+        result.failed += keys.size();
+      }
+    } while (page.size() == MAX_KEYS_PER_DELETE);
+
+    result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    logger.info("Mutation marker prune finished: " + result);
+    return result;
+  }
+
+  private Batch startBatch(List<Entity> page, Date cutoff, Result result) {
+    // the query may be slightly behind and a user may come back at any time, so each cart is read
+    // again in the transaction that deletes it, with the transactions of the page running at once
+    List<Key> cartKeys = new ArrayList<>();
+    List<Future<Transaction>> begun = new ArrayList<>();
+    for (Entity cart : page) {
+      cartKeys.add(cart.getKey());
+      begun.add(datastore.beginTransaction());
+    }
+
+    List<Transaction> transactions = new ArrayList<>();
+    List<Future<Entity>> reads = new ArrayList<>();
+    for (int i = 0; i < cartKeys.size(); i++) {
+      Transaction transaction = await(begun.get(i));
+      transactions.add(transaction);
+      reads.add(transaction == null ? null : datastore.get(transaction, cartKeys.get(i)));
+    }
+
+    // everything under the expired carts, their items and mutation markers, with the queries of
+    // all carts fetching in the background at the same time
+    List<List<Entity>> descendants = new ArrayList<>();
+    for (int i = 0; i < cartKeys.size(); i++) {
+      Transaction transaction = transactions.get(i);
+      descendants.add(null);
+      if (transaction == null) {
+        result.failed++;
+        continue;
+      }
+
+      Entity cart = awaitCart(reads.get(i));
+      Date lastTouched =
+          cart == null ? null : (Date) cart.getProperty(DataManager.PROPERTY_LAST_TOUCHED);
+      if (lastTouched == null || !lastTouched.before(cutoff)) {
+        // changed since the query, or already gone
+        transaction.rollbackAsync();
+        result.skipped++;
+        continue;
+      }
+      Query q = new Query().setAncestor(cartKeys.get(i)).setKeysOnly();
+      descendants.set(
+          i, datastore.prepare(transaction, q).asList(FetchOptions.Builder.withDefaults()));
+    }
+
+    Batch batch = new Batch();
+    for (int i = 0; i < cartKeys.size(); i++) {
+      if (descendants.get(i) == null) {
+        continue;
+      }
+      Transaction transaction = transactions.get(i);
+      // the cart itself is returned by its ancestor query
+      List<Key> keys = new ArrayList<>();
+      for (Entity entity : descendants.get(i)) {
+        keys.add(entity.getKey());
+      }
+      if (keys.size() > MAX_KEYS_PER_DELETE) {
+        // mostly mutation markers, left for pruning to bring the cart within one commit
+        transaction.rollbackAsync();
+        result.failed++;
+        logger.warning(
+            "Cart " + cartKeys.get(i).getName() + " has too many entities to delete at once.");
+        continue;
+      }
+      batch.deletions.add(
+          new Deletion(
+              cartKeys.get(i), transaction, keys.size(), datastore.delete(transaction, keys)));
+    }
+    return batch.deletions.isEmpty() ? null : batch;
+  }
+
+  private void finishBatch(Batch batch, Result result) {
+    List<String> cartIds = new ArrayList<>();
+    for (Deletion deletion : batch.deletions) {
+      // a cart touched after it was read fails to commit and is kept along with its items
+      if (!succeeded(deletion.delete)) {
+        deletion.transaction.rollbackAsync();
+        result.failed++;
+        continue;
+      }
+      if (!succeeded(deletion.transaction.commitAsync())) {
+        result.failed++;
+        continue;
+      }
+      cartIds.add(deletion.cartKey.getName());
+      result.sweptCarts++;
+      result.sweptEntities += deletion.entities;
+    }
+
+    if (BotConfig.isCartCacheEnabled() && !cartIds.isEmpty()) {
+      CartCache.getInstance().invalidateAll(cartIds);
+    }
+  }
+
+  private static Entity awaitCart(Future<Entity> read) {
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Interrupted while sweeping carts.", e);
+    } catch (ExecutionException e) {
+      if (!(e.getCause() instanceof EntityNotFoundException)) {
+        logger.log(Level.SEVERE, "Datastore was not able to read a cart.", e);
+      }
+    }
+    return null;
+  }
+
+  private static boolean succeeded(Future<Void> delete) {
+    try {
+      delete.get();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Interrupted while sweeping carts.", e);
+    } catch (ExecutionException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to delete a batch of carts.", e);
+    }
+    return false;
+  }
+
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.log(Level.SEVERE, "Interrupted while sweeping carts.", e);
+    } catch (ExecutionException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to start sweeping a cart.", e);
+    }
+    return null;
+  }
+}
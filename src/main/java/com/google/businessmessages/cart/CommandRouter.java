@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Maps inbound messages to the handlers of the commands they invoke. The router is built once and
+ * then shared; dispatch does not depend on the number of exact or prefix commands registered.
+ *
+ * <p>A message is matched, in order, against exact commands with a hash lookup, against prefix
+ * commands with a trie walk, and against free-text patterns. Postbacks usually match as sent. Only
+ * if they do not is the message lower-cased and trimmed and matched again.
+ *
+ * @param <T> The type of the context passed to handlers.
+ */
+public class CommandRouter<T> {
+
+  /** Handles a routed command. */
+  public interface Handler<T> {
+
+    /**
+     * Handles the command.
+     *
+     * @param context The context of the message.
+     * @param argument The rest of the message after a prefix command, otherwise the message.
+     */
+    void handle(T context, String argument);
+  }
+
+  /** A node of the prefix trie. */
+  private static class TrieNode<T> {
+    private final Map<Character, TrieNode<T>> children = new HashMap<>();
+    private Handler<T> handler;
+    private String prefix;
+  }
+
+  /** A free-text pattern and its handler. */
+  private static class PatternRoute<T> {
+    private final Pattern pattern;
+    private final Handler<T> handler;
+
+    private PatternRoute(Pattern pattern, Handler<T> handler) {
+      this.pattern = pattern;
+      this.handler = handler;
+    }
+  }
+
+  private final ImmutableMap<String, Handler<T>> exactCommands;
+  private final TrieNode<T> prefixCommands;
+  private final ImmutableList<PatternRoute<T>> patternCommands;
+  private final Handler<T> fallback;
+
+  private CommandRouter(Builder<T> builder) {
+    this.exactCommands = builder.exactCommands.build();
+    this.prefixCommands = builder.prefixCommands;
+    this.patternCommands = builder.patternCommands.build();
+    this.fallback = builder.fallback;
+  }
+
+  /**
+   * Creates a builder for a router.
+   *
+   * @return The new builder.
+   */
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Routes the message to the handler of the first command it matches, or to the fallback handler.
+   *
+   * @param message The message received from the user.
+   * @param context The context passed to the handler.
+   * @return The command the message was routed to: the exact command, the prefix or the regular
+   *     expression it matched, or null if it was routed to the fallback handler.
+   */
+  public String route(String message, T context) {
+    String command = routeCommand(message, context);
+    if (command != null) {
+      return command;
+    }
+
+    String normalizedMessage = message.toLowerCase().trim();
+    if (!normalizedMessage.equals(message)) {
+      command = routeCommand(normalizedMessage, context);
+      if (command != null) {
+        return command;
+      }
+    }
+
+    for (PatternRoute<T> route : patternCommands) {
+      if (route.pattern.matcher(normalizedMessage).matches()) {
+        route.handler.handle(context, normalizedMessage);
+        return route.pattern.pattern();
+      }
+    }
+
+    fallback.handle(context, message);
+    return null;
+  }
+
+  private String routeCommand(String message, T context) {
+    Handler<T> handler = exactCommands.get(message);
+    if (handler != null) {
+      handler.handle(context, message);
+      return message;
+    }
+
+    // find the longest registered prefix of the message
+    TrieNode<T> node = prefixCommands;
+    TrieNode<T> match = null;
+    for (int i = 0; i < message.length(); i++) {
+      node = node.children.get(message.charAt(i));
+      if (node == null) {
+        break;
+      }
+      if (node.handler != null) {
+        match = node;
+      }
+    }
+
+    if (match == null) {
+      return null;
+    }
+    match.handler.handle(context, message.substring(match.prefix.length()));
+    return match.prefix;
+  }
+
+  /** Builds a CommandRouter. */
+  public static class Builder<T> {
+    private final ImmutableMap.Builder<String, Handler<T>> exactCommands = ImmutableMap.builder();
+    private final TrieNode<T> prefixCommands = new TrieNode<>();
+    private final ImmutableList.Builder<PatternRoute<T>> patternCommands = ImmutableList.builder();
+    private Handler<T> fallback = (context, argument) -> {};
+
+    private Builder() {}
+
+    /**
+     * Registers a command that matches a message equal to it.
+     *
+     * @param command The command, in lower case.
+     * @param handler The handler of the command.
+     * @return This builder.
+     */
+    public Builder<T> exact(String command, Handler<T> handler) {
+      exactCommands.put(command, handler);
+      return this;
+    }
+
+    /**
+     * Registers a command that matches a message starting with it. The handler receives the rest
+     * of the message as its argument.
+     *
+     * @param prefix The prefix, in lower case.
+     * @param handler The handler of the command.
+     * @return This builder.
+     */
+    public Builder<T> prefix(String prefix, Handler<T> handler) {
+      TrieNode<T> node = prefixCommands;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode<>());
+      }
+      node.handler = handler;
+      node.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * Registers a free-text command that matches a lower-cased, trimmed message against the
+     * regular expression.
+     *
+     * @param regex The regular expression, compiled once.
+     * @param handler The handler of the command.
+     * @return This builder.
+     */
+    public Builder<T> pattern(String regex, Handler<T> handler) {
+      patternCommands.add(new PatternRoute<>(Pattern.compile(regex), handler));
+      return this;
+    }
+
+    /**
+     * Sets the handler for messages that match no command.
+     *
+     * @param handler The fallback handler.
+     * @return This builder.
+     */
+    public Builder<T> fallback(Handler<T> handler) {
+      this.fallback = handler;
+      return this;
+    }
+
+    /**
+     * Builds the router.
+     *
+     * @return The new router.
+     */
+    public CommandRouter<T> build() {
+      return new CommandRouter<>(this);
+    }
+  }
+}
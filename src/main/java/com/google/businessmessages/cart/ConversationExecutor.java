@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks for the same conversation one at a time and in the order they were submitted, while
+ * tasks for different conversations run in parallel on the underlying executor.
+ *
+ * <p>Each conversation with pending tasks has a mailbox that is drained by a single task on the
+ * underlying executor. A mailbox is removed as soon as it is empty, so memory grows with the number
+ * of conversations that currently have work rather than with every conversation ever seen.
+ */
+public class ConversationExecutor {
+
+  private static final Logger logger = Logger.getLogger(ConversationExecutor.class.getName());
+
+  private final Executor executor;
+
+  // Mailboxes of the conversations that have pending or running tasks
+  private final ConcurrentHashMap<String, Queue<Runnable>> mailboxes = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a ConversationExecutor.
+   *
+   * @param executor The executor that drains mailboxes.
+   */
+  public ConversationExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Runs the task after all tasks previously submitted for the same conversation.
+   *
+   * @param conversationId The conversation the task belongs to.
+   * @param task The task to run.
+   * @throws RejectedExecutionException If the underlying executor refuses to drain a new mailbox.
+   */
+  public void execute(String conversationId, Runnable task) {
+    Queue<Runnable> created = new ConcurrentLinkedQueue<>();
+    Queue<Runnable> mailbox =
+        mailboxes.compute(
+            conversationId,
+            (id, existing) -> {
+              Queue<Runnable> tasks = existing == null ? created : existing;
+              tasks.add(task);
+              return tasks;
+            });
+
+    // only the submitter that opened the mailbox schedules its drain
+    if (mailbox == created) {
+      try {
+        executor.execute(() -> drain(conversationId, mailbox));
+      } catch (RejectedExecutionException e) {
+        mailboxes.remove(conversationId, mailbox);
+        throw e;
+      }
+    }
+  }
+
+  private void drain(String conversationId, Queue<Runnable> mailbox) {
+    boolean retired = false;
+    try {
+      while (true) {
+        Runnable task = mailbox.poll();
+        if (task == null) {
+          if (retire(conversationId, mailbox)) {
+            retired = true;
+            return;
+          }
+          continue;
+        }
+
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          logger.log(Level.SEVERE, "Exception thrown while running conversation task.", e);
+        }
+      }
+    } finally {
+      if (!retired) {
+        // an error escaped a task, hand the rest of the mailbox to a new drain
+        redrain(conversationId, mailbox);
+      }
+    }
+  }
+
+  private void redrain(String conversationId, Queue<Runnable> mailbox) {
+    if (retire(conversationId, mailbox)) {
+      return;
+    }
+    try {
+      executor.execute(() -> drain(conversationId, mailbox));
+    } catch (RejectedExecutionException e) {
+      mailboxes.remove(conversationId, mailbox);
+      logger.log(
+          Level.SEVERE,
+          "Dropping " + mailbox.size() + " tasks of conversation " + conversationId + ".",
+          e);
+    }
+  }
+
+  /**
+   * Removes the mailbox unless a task was added to it since it was last polled.
+   *
+   * @return True if the mailbox was removed.
+   */
+  private boolean retire(String conversationId, Queue<Runnable> mailbox) {
+    boolean[] retired = {true};
+    mailboxes.computeIfPresent(
+        conversationId,
+        (id, tasks) -> {
+          if (tasks != mailbox) {
+            return tasks;
+          }
+          if (tasks.isEmpty()) {
+            return null;
+          }
+          retired[0] = false;
+          return tasks;
+        });
+    return retired[0];
+  }
+
+  /**
+   * Gets the number of conversations that currently have pending or running tasks.
+   *
+   * @return The number of open mailboxes.
+   */
+  public int getActiveConversationCount() {
+    return mailboxes.size();
+  }
+}
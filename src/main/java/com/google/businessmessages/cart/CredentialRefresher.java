@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the OAuth2 credential used by the BM API fresh by renewing its access token on a
+ * background thread some time before it expires.
+ *
+ * <p>Without background threads, as on automatic scaling, only the first token is fetched here.
+ * The credential then refreshes an expiring token itself, inline on the request that finds it
+ * expiring, so roughly once an hour one request waits on the token endpoint. A warning is logged
+ * when the refresher starts in this mode.
+ *
+ * <p>The token endpoint is only ever called through a private copy of the credential. New tokens
+ * are then published to the credential used by requests, so request threads never wait on a
+ * refresh in progress.
+ */
+public class CredentialRefresher {
+
+  private static final Logger logger = Logger.getLogger(CredentialRefresher.class.getName());
+
+  // How long before expiry the token is renewed
+  private static final long REFRESH_MARGIN_SECONDS = 5 * 60;
+
+  // Bounds for the delay before retrying a failed refresh
+  private static final long MIN_RETRY_DELAY_SECONDS = 5;
+  private static final long MAX_RETRY_DELAY_SECONDS = 60;
+
+  // The credential attached to outbound API requests
+  private final GoogleCredential requestCredential;
+
+  // Copy of the credential used to call the token endpoint
+  private final GoogleCredential refreshCredential;
+
+  // Schedules the refreshes, or null if they cannot run in the background
+  private final ScheduledExecutorService scheduler;
+
+  // The next scheduled refresh, replaced every time a refresh completes
+  private ScheduledFuture<?> nextRefresh;
+
+  // Guards against concurrent refresh attempts
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  private final AtomicLong refreshCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private final AtomicLong consecutiveFailures = new AtomicLong();
+  private final AtomicLong lastLatencyMillis = new AtomicLong();
+  private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+  public CredentialRefresher(GoogleCredential requestCredential) {
+    this.requestCredential = requestCredential;
+    this.refreshCredential =
+        requestCredential.createScoped(requestCredential.getServiceAccountScopes());
+    this.scheduler = BackgroundThreads.newScheduler(1, "credential-refresher-%d");
+  }
+
+  /**
+   * Obtains the first access token and schedules all following refreshes. Should be called once,
+   * while the bot is being initialized rather than from a request.
+   */
+  public void start() {
+    if (scheduler == null) {
+      logger.warning(
+          "Background threads are not available, the BM API token is refreshed inline on the "
+              + "request that finds it expiring.");
+    }
+    refreshNow();
+  }
+
+  /** Stops scheduling refreshes. */
+  public void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Refreshes the access token unless a refresh is already in flight, then schedules the next
+   * refresh. If the next refresh cannot be scheduled, the token is left to be refreshed on demand
+   * by the credential.
+   *
+   * @return True if this call performed the refresh, false if another one was in flight.
+   */
+  public boolean refreshNow() {
+    if (!refreshing.compareAndSet(false, true)) {
+      return false;
+    }
+
+    long delaySeconds;
+    long start = System.nanoTime();
+    try {
+      if (!refreshCredential.refreshToken()) {
+        throw new IOException("Token endpoint did not return an access token.");
+      }
+
+      requestCredential.setAccessToken(refreshCredential.getAccessToken());
+      requestCredential.setExpirationTimeMilliseconds(
+          refreshCredential.getExpirationTimeMilliseconds());
+
+      long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      lastLatencyMillis.set(latency);
+      totalLatencyMillis.addAndGet(latency);
+      refreshCount.incrementAndGet();
+      consecutiveFailures.set(0);
+
+      Long expiresIn = refreshCredential.getExpiresInSeconds();
+      delaySeconds =
+          expiresIn == null
+              ? MAX_RETRY_DELAY_SECONDS
+              : Math.max(expiresIn - REFRESH_MARGIN_SECONDS, MIN_RETRY_DELAY_SECONDS);
+
+      logger.info("Refreshed BM credential in " + latency + " ms, next in " + delaySeconds + " s.");
+    } catch (IOException | RuntimeException e) {
+      failureCount.incrementAndGet();
+      long failures = consecutiveFailures.incrementAndGet();
+      delaySeconds =
+          Math.min(MIN_RETRY_DELAY_SECONDS << Math.min(failures - 1, 4), MAX_RETRY_DELAY_SECONDS);
+
+      logger.log(Level.SEVERE, "Exception thrown while refreshing credentials.", e);
+    } finally {
+      refreshing.set(false);
+    }
+
+    scheduleNext(delaySeconds);
+    return true;
+  }
+
+  private synchronized void scheduleNext(long delaySeconds) {
+    if (scheduler == null || scheduler.isShutdown()) {
+      return;
+    }
+    if (nextRefresh != null) {
+      nextRefresh.cancel(false);
+    }
+    try {
+      nextRefresh = scheduler.schedule(this::refreshNow, delaySeconds, TimeUnit.SECONDS);
+    } catch (RuntimeException e) {
+      // as without background threads, the credential refreshes an expiring token itself
+      nextRefresh = null;
+      logger.log(
+          Level.WARNING,
+          "Unable to schedule the next credential refresh, refreshing on demand instead.",
+          e);
+    }
+  }
+
+  /**
+   * Gets the number of successful refreshes.
+   *
+   * @return The number of successful refreshes.
+   */
+  public long getRefreshCount() {
+    return refreshCount.get();
+  }
+
+  /**
+   * Gets the number of failed refreshes.
+   *
+   * @return The number of failed refreshes.
+   */
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /**
+   * Gets the latency of the most recent successful refresh.
+   *
+   * @return The latency in milliseconds.
+   */
+  public long getLastLatencyMillis() {
+    return lastLatencyMillis.get();
+  }
+
+  /**
+   * Gets the average latency of all successful refreshes.
+   *
+   * @return The average latency in milliseconds, or 0 if no refresh has succeeded.
+   */
+  public long getAverageLatencyMillis() {
+    long count = refreshCount.get();
+    return count == 0 ? 0 : totalLatencyMillis.get() / count;
+  }
+}
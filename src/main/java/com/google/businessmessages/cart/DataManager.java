@@ -14,21 +14,46 @@
 package com.google.businessmessages.cart;
 
 import com.google.appengine.api.datastore.*;
-import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-/** Wrapper layer to manage all Datastore queries and storage requests. */
+/**
+ * Wrapper layer to manage all Datastore queries and storage requests. Reads block on their
+ * counterparts in {@link AsyncDataManager}.
+ */
 public class DataManager {
 
-  private static final int MAX_CART_LIMIT = 50;
+  /** How the items of a cart are stored. */
+  public enum StorageMode {
+    // Each item is a CartItem entity, a child of the cart
+    ENTITIES,
+    // The items are embedded in the cart entity, so the whole cart is one get and one put
+    DOCUMENT
+  }
+
+  static final int MAX_CART_LIMIT = 50;
+
+  // Legacy items moved in one transaction. Each is its own entity group, and a transaction spans
+  // at most 25 groups, including the cart and its legacy copy.
+  static final int MAX_MOVED_ITEMS = 23;
 
   // Types of entities in datastore
   protected static final String CART_TYPE = "Cart";
   protected static final String CART_ITEM_TYPE = "CartItem";
+  protected static final String CART_MUTATION_TYPE = "CartMutation";
 
   // Properties of the cart and cart item entities in datastore
   protected static final String PROPERTY_CONVERSATION_ID = "conversation_id";
@@ -36,13 +61,45 @@ public class DataManager {
   protected static final String PROPERTY_ITEM_ID = "item_id";
   protected static final String PROPERTY_ITEM_TITLE = "item_title";
   protected static final String PROPERTY_COUNT = "count";
+  protected static final String PROPERTY_ITEMS = "items";
+  protected static final String PROPERTY_VERSION = "version";
+  protected static final String PROPERTY_APPLIED_AT = "applied_at";
+  protected static final String PROPERTY_LAST_TOUCHED = "last_touched";
+  protected static final String PROPERTY_ITEM_COUNT = "item_count";
+  protected static final String PROPERTY_TOTAL_QUANTITY = "total_quantity";
 
   private static final Logger logger = Logger.getLogger(CartBot.class.getName());
   private final DatastoreService datastore;
+  private final AsyncDataManager asyncDataManager;
+  private final TransactionRunner transactionRunner;
+  // Whether recently seen conversations have a cart at their key (true) or no legacy cart (false)
+  private final Cache<String, Boolean> knownCarts;
   private static DataManager dataManager = new DataManager();
 
   private DataManager() {
-    datastore = DatastoreServiceFactory.getDatastoreService();
+    datastore =
+        UnitOfWork.counting(
+            DatastoreServiceFactory.getDatastoreService(), DatastoreService.class);
+    asyncDataManager = AsyncDataManager.getInstance();
+    transactionRunner =
+        new TransactionRunner(
+            datastore,
+            BotConfig.getTransactionMaxAttempts(),
+            BotConfig.getTransactionInitialBackoffMillis(),
+            BotConfig.getTransactionMaxBackoffMillis());
+    BotLog.registerStats(
+        "transactions",
+        event ->
+            event
+                .field("transactions", transactionRunner.getTransactions())
+                .field("contentions", transactionRunner.getContentions())
+                .field("retries", transactionRunner.getRetries())
+                .field("exhausted", transactionRunner.getExhausted()));
+    knownCarts =
+        CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(BotConfig.getKnownCartTtlSeconds(), TimeUnit.SECONDS)
+            .build();
   }
 
   /**
@@ -54,18 +111,37 @@ public class DataManager {
     return dataManager;
   }
 
+  /**
+   * Gets the runner of the cart transactions, e.g. to read its contention and retry counts.
+   *
+   * @return The transaction runner.
+   */
+  public TransactionRunner getTransactionRunner() {
+    return transactionRunner;
+  }
+
+  /**
+   * Creates the key of the user's cart, which is named after the conversation.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @return The key of the cart entity.
+   */
+  public static Key getCartKey(String conversationId) {
+    return KeyFactory.createKey(CART_TYPE, conversationId);
+  }
+
   /**
    * Saves the user's cart to the datastore if the user has never created one in the past.
    *
    * @param conversationId The unique id that maps between the user and the agent.
    * @param cartId The unique id that maps between the user and their cart.
+   * @return The version of the new cart, or -1 if it could not be saved.
    */
-  public void saveCart(String conversationId, String cartId) {
+  public long saveCart(String conversationId, String cartId) {
     try {
-      Entity cart = new Entity(CART_TYPE);
-      cart.setProperty(PROPERTY_CONVERSATION_ID, conversationId);
-      cart.setProperty(PROPERTY_CART_ID, cartId);
+      Entity cart = newCart(getCartKey(conversationId), conversationId, cartId);
       datastore.put(cart);
+      return getVersion(cart);
     } catch (IllegalArgumentException e) {
       logger.log(Level.SEVERE, "The cart entity is incomplete.", e);
     } catch (ConcurrentModificationException e) {
@@ -73,14 +149,106 @@ public class DataManager {
     } catch (DatastoreFailureException e) {
       logger.log(Level.SEVERE, "Datastore was not able to add the item.", e);
     }
+    return -1;
+  }
+
+  /**
+   * Gets the user's cart, inserting it if it does not exist, in one transaction on the cart's key,
+   * so concurrent first messages of a conversation all get the same cart and none overwrites a
+   * cart another one already changed. While legacy lookup is enabled, a legacy cart is looked for
+   * and moved to its key first, unless this instance saw the conversation recently.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @return The cart entity, or null if it could not be read or inserted.
+   */
+  public Entity getOrInsertCart(String conversationId) {
+    if (BotConfig.isLegacyCartLookupEnabled()
+        && knownCarts.getIfPresent(conversationId) == null) {
+      Entity legacyCart = findLegacyCart(conversationId);
+      if (legacyCart != null) {
+        knownCarts.put(conversationId, true);
+        return legacyCart;
+      }
+      knownCarts.put(conversationId, false);
+    }
+
+    Key cartKey = getCartKey(conversationId);
+    try {
+      Entity cart =
+          transactionRunner.run(
+              transaction -> {
+                try {
+                  return datastore.get(transaction, cartKey);
+                } catch (EntityNotFoundException e) {
+                  Entity newCart = newCart(cartKey, conversationId, conversationId);
+                  datastore.put(transaction, newCart);
+                  return newCart;
+                }
+              });
+      knownCarts.put(conversationId, true);
+      UnitOfWork work = UnitOfWork.current();
+      if (work != null) {
+        work.put(cartKey, cart);
+      }
+      return cart;
+    } catch (IllegalStateException e) {
+      logger.log(Level.SEVERE, "The transaction is not active.", e);
+    } catch (ConcurrentModificationException e) {
+      logger.log(Level.SEVERE, "The cart is still being concurrently created.", e);
+    } catch (DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to get or insert the cart.", e);
+    }
+    return null;
+  }
+
+  /**
+   * Whether this instance recently read or inserted the user's cart at its key, so it can be read
+   * with a plain lookup. A cart deleted since is inserted again by {@link #getOrInsertCart}.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @return True if the cart is known to exist.
+   */
+  public boolean isKnownCart(String conversationId) {
+    return Boolean.TRUE.equals(knownCarts.getIfPresent(conversationId));
+  }
+
+  /**
+   * Remembers that the user's cart was found at its key.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   */
+  public void rememberCart(String conversationId) {
+    knownCarts.put(conversationId, true);
   }
 
   /**
    * Gets the user's cart from the datastore, if there is one. Returns null otherwise.
    *
+   * <p>The cart is looked up by its key, which is strongly consistent. While legacy lookup is
+   * enabled, a cart not found by key is looked for with the old conversation_id query and, if
+   * found, moved to its key along with its items so the query only runs once per legacy cart.
+   *
    * @param conversationId The unique id that maps between the user and the agent.
    */
   public Entity getCart(String conversationId) {
+    Entity cart = AsyncDataManager.getResult(asyncDataManager.getCart(conversationId));
+    if (cart != null) {
+      return cart;
+    }
+    return findLegacyCart(conversationId);
+  }
+
+  /**
+   * Looks for a cart not found by its key with the old conversation_id query, while legacy lookup
+   * is enabled, and moves a cart found that way to its key along with its items.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @return The cart entity now keyed by its conversation, or null if there is none.
+   */
+  Entity findLegacyCart(String conversationId) {
+    if (!BotConfig.isLegacyCartLookupEnabled()) {
+      return null;
+    }
 
     final Query q =
         new Query(CART_TYPE)
@@ -90,137 +258,1084 @@ public class DataManager {
 
     PreparedQuery pq = datastore.prepare(q);
     List<Entity> cart = pq.asList(FetchOptions.Builder.withLimit(1));
-    if (!cart.isEmpty()) {
-      return cart.get(0);
+    if (cart.isEmpty()) {
+      return null;
     }
 
-    return null;
+    Entity legacyCart = cart.get(0);
+    if (legacyCart.getKey().getName() != null) {
+      return legacyCart;
+    }
+
+    if (!moveLegacyCart(legacyCart)) {
+      logger.warning("Unable to move cart " + conversationId + " to its key.");
+      return toKeyedCart(legacyCart);
+    }
+    return AsyncDataManager.getResult(asyncDataManager.getCart(conversationId));
+  }
+
+  /**
+   * Moves a cart stored under an allocated id to the key named after its conversation, along with
+   * all of its items. The cart is inserted at the key in the transaction that deletes it, unless a
+   * cart is already there, in which case only its items are added to that cart.
+   *
+   * @param legacyCart The cart entity with an allocated id.
+   * @return True if the cart and all of its items were moved.
+   */
+  boolean moveLegacyCart(Entity legacyCart) {
+    String conversationId = (String) legacyCart.getProperty(PROPERTY_CONVERSATION_ID);
+    String legacyCartId = (String) legacyCart.getProperty(PROPERTY_CART_ID);
+    Entity unmovedCart = legacyCart;
+    while (true) {
+      List<Key> legacyItemKeys =
+          legacyCartId == null ? Collections.<Key>emptyList() : findLegacyItemKeys(legacyCartId);
+      int moved = moveLegacyItems(conversationId, unmovedCart, legacyItemKeys);
+      if (moved < 0) {
+        return false;
+      }
+      unmovedCart = null;
+      // the query is eventually consistent, so it may still find items that were moved
+      if (legacyItemKeys.size() < MAX_MOVED_ITEMS || moved == 0) {
+        return true;
+      }
+    }
+  }
+
+  private List<Key> findLegacyItemKeys(String legacyCartId) {
+    final Query q =
+        new Query(CART_ITEM_TYPE)
+            .setFilter(
+                new Query.FilterPredicate(
+                    PROPERTY_CART_ID, Query.FilterOperator.EQUAL, legacyCartId))
+            .setKeysOnly();
+    List<Key> legacyItemKeys = new ArrayList<>();
+    for (Entity item :
+        datastore.prepare(q).asIterable(FetchOptions.Builder.withLimit(MAX_MOVED_ITEMS))) {
+      if (item.getParent() == null) {
+        legacyItemKeys.add(item.getKey());
+      }
+    }
+    return legacyItemKeys;
+  }
+
+  /**
+   * Moves items stored before items were children of their cart under the cart's key, in one
+   * transaction on the cart and the legacy entities. The counts of items already under the cart's
+   * key are added to, and the summary and version of the cart are updated. Each legacy item is
+   * deleted in the transaction that adds it to the cart, so items are never added twice.
+   *
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @param legacyCart The cart stored under an allocated id, which is deleted and inserted at the
+   *     key if no cart is there yet, or null to only move items.
+   * @param legacyItemKeys The keys of at most {@link #MAX_MOVED_ITEMS} legacy items.
+   * @return The number of items moved, or -1 if they could not be moved.
+   */
+  int moveLegacyItems(String conversationId, Entity legacyCart, List<Key> legacyItemKeys) {
+    Key cartKey = getCartKey(conversationId);
+    List<Key> keys = new ArrayList<>(legacyItemKeys);
+    keys.add(cartKey);
+    if (legacyCart != null) {
+      keys.add(legacyCart.getKey());
+    }
+
+    try {
+      return transactionRunner.run(
+          TransactionOptions.Builder.withXG(true),
+          transaction -> {
+            Map<Key, Entity> entities = datastore.get(transaction, keys);
+            Map<Key, Entity> childItems = new LinkedHashMap<>();
+            List<Key> deletedKeys = new ArrayList<>();
+            for (Key legacyItemKey : legacyItemKeys) {
+              // an item moved by an earlier attempt is gone
+              Entity legacyItem = entities.get(legacyItemKey);
+              if (legacyItem != null && mergeChildItem(childItems, cartKey, legacyItem)) {
+                deletedKeys.add(legacyItemKey);
+              }
+            }
+            int moved = deletedKeys.size();
+
+            Entity cart = entities.get(cartKey);
+            if (legacyCart != null && entities.containsKey(legacyCart.getKey())) {
+              deletedKeys.add(legacyCart.getKey());
+              if (cart == null) {
+                cart = toKeyedCart(entities.get(legacyCart.getKey()));
+                newVersion(cart);
+                setSummary(cart, 0, 0);
+              }
+            }
+            if (deletedKeys.isEmpty()) {
+              return 0;
+            }
+
+            List<Entity> written = new ArrayList<>();
+            if (cart != null && isCartDocument(cart)) {
+              List<EmbeddedEntity> items = getDocumentItems(cart);
+              for (Entity childItem : childItems.values()) {
+                applyDelta(
+                    items,
+                    (String) childItem.getProperty(PROPERTY_ITEM_ID),
+                    (String) childItem.getProperty(PROPERTY_ITEM_TITLE),
+                    ((Long) childItem.getProperty(PROPERTY_COUNT)).intValue());
+              }
+              cart.setUnindexedProperty(PROPERTY_ITEMS, items);
+              summarizeDocument(cart);
+            } else {
+              long itemCountChange = 0;
+              long quantityChange = 0;
+              Map<Key, Entity> existing = datastore.get(transaction, childItems.keySet());
+              for (Entity childItem : childItems.values()) {
+                long count = (Long) childItem.getProperty(PROPERTY_COUNT);
+                Entity existingItem = existing.get(childItem.getKey());
+                if (existingItem == null) {
+                  itemCountChange++;
+                  written.add(childItem);
+                } else {
+                  existingItem.setProperty(
+                      PROPERTY_COUNT, (Long) existingItem.getProperty(PROPERTY_COUNT) + count);
+                  written.add(existingItem);
+                }
+                quantityChange += count;
+              }
+              if (cart != null) {
+                changeSummary(transaction, cart, itemCountChange, quantityChange);
+              }
+            }
+
+            putWithCart(transaction, cart, Collections.<Key>emptyList(), written);
+            datastore.delete(transaction, deletedKeys);
+            return moved;
+          });
+    } catch (IllegalStateException | ConcurrentModificationException e) {
+      logger.log(Level.WARNING, "Unable to move the legacy items to their cart.", e);
+    } catch (DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to move the legacy items.", e);
+    } finally {
+      forgetCart(conversationId);
+      if (BotConfig.isCartCacheEnabled()) {
+        CartCache.getInstance().invalidate(conversationId);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copies a cart stored under an allocated id to a cart keyed by its conversation.
+   *
+   * @param legacyCart The cart entity with an allocated id.
+   * @return The cart entity keyed by its conversation, not yet saved.
+   */
+  static Entity toKeyedCart(Entity legacyCart) {
+    String conversationId = (String) legacyCart.getProperty(PROPERTY_CONVERSATION_ID);
+    Entity keyedCart = new Entity(getCartKey(conversationId));
+    keyedCart.setPropertiesFrom(legacyCart);
+    return keyedCart;
+  }
+
+  /**
+   * Creates the key of an item in the user's cart. Items are children of their cart, named after
+   * the item, so all items of a cart are in the cart's entity group.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemId The item's unique identifier.
+   * @return The key of the cart item entity.
+   */
+  public static Key getCartItemKey(String cartId, String itemId) {
+    return KeyFactory.createKey(getCartKey(cartId), CART_ITEM_TYPE, itemId);
   }
 
   /**
    * Adds an item to the user's cart persisted in memory. If the item already exists in the user's
-   * cart, the count of the item is incremented.
+   * cart, the count of the item is incremented. The item is read and written in the same
+   * transaction, which also bumps the version of the cart.
    *
-   * @param cartId The unique id that maps the user's cart to its associated items.
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
    * @param itemId The item's unique identifier.
    * @param itemTitle The title of the item that is being stored in the user's cart.
+   * @return The new version of the cart, 0 if there is no cart entity, or -1 if the item could
+   *     not be added.
    */
-  public void addItemToCart(String cartId, String itemId, String itemTitle) {
-    Transaction transaction = datastore.beginTransaction();
-    Entity currentItem = getExistingItem(cartId, itemId);
+  public long addItemToCart(String cartId, String itemId, String itemTitle) {
+    return applyItemDeltas(
+        cartId,
+        Collections.singletonMap(itemId, 1),
+        Collections.singletonMap(itemId, itemTitle),
+        null);
+  }
+
+  /**
+   * Deletes an item from the user's cart persisted in memory. If there is more than one of the
+   * given item in the user's cart, the count of the item is decremented. The item is read and
+   * written in the same transaction, which also bumps the version of the cart.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemId The id of the item that is being deleted from the user's cart.
+   * @return The new version of the cart, 0 if there is no cart entity, or -1 if the item could
+   *     not be deleted.
+   */
+  public long deleteItemFromCart(String cartId, String itemId) {
+    return applyItemDeltas(
+        cartId,
+        Collections.singletonMap(itemId, -1),
+        Collections.<String, String>emptyMap(),
+        null);
+  }
+
+  /**
+   * Changes the counts of several items in the user's cart at most once for the given mutation id.
+   * See {@link #applyItemDeltas(String, Map, Map, String, Collection)}.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The version of the cart written by the change, 0 if there is no cart entity, or -1 if
+   *     no item could be changed.
+   */
+  public long applyItemDeltas(
+      String cartId,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId) {
+    return applyItemDeltas(
+        cartId, deltas, itemTitles, mutationId, Collections.<String>emptyList());
+  }
+
+  /**
+   * Changes the counts of several items in the user's cart in one transaction, at most once for
+   * the given mutation id. The cart and its items are read with one batch get, and the changed
+   * items are written with one batch put and one batch delete. Items whose count drops to zero or
+   * below are deleted, and items not in the cart are only added if their change is positive.
+   *
+   * <p>A marker named after the mutation id, and one for each of the inbound messages whose
+   * changes were coalesced into it, is written under the cart in the same transaction. An attempt
+   * that finds the marker of the mutation returns the version the change was first written as. The
+   * summary of the cart is changed by the same amounts in the transaction, and a cart still stored
+   * as a single document is converted to CartItem children in it.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @param mutationId The id of the change, or null.
+   * @param messageIds The ids of the inbound messages the change is made for.
+   * @return The version of the cart written by the change, 0 if there is no cart entity, or -1 if
+   *     no item could be changed.
+   */
+  public long applyItemDeltas(
+      String cartId,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId,
+      Collection<String> messageIds) {
+    Key cartKey = getCartKey(cartId);
+    Key mutationKey = mutationId == null ? null : getMutationKey(cartId, mutationId);
+    List<Key> keys = new ArrayList<>();
+    keys.add(cartKey);
+    if (mutationKey != null) {
+      keys.add(mutationKey);
+    }
+    for (String itemId : deltas.keySet()) {
+      keys.add(getCartItemKey(cartId, itemId));
+    }
 
     try {
-      // create a new cart item for the datastore if we do not have one already
-      if (currentItem == null) {
-        currentItem = new Entity(CART_ITEM_TYPE);
-        currentItem.setProperty(PROPERTY_CART_ID, cartId);
-        currentItem.setProperty(PROPERTY_ITEM_ID, itemId);
-        currentItem.setProperty(PROPERTY_ITEM_TITLE, itemTitle);
-        currentItem.setProperty(PROPERTY_COUNT, 1);
-      } else {
-        int count = ((Long) currentItem.getProperty(PROPERTY_COUNT)).intValue();
-        currentItem.setProperty(PROPERTY_COUNT, count + 1);
-      }
+      return transactionRunner.run(
+          transaction -> {
+            Map<Key, Entity> entities = new HashMap<>(datastore.get(transaction, keys));
+            if (mutationKey != null && entities.containsKey(mutationKey)) {
+              return getVersion(entities.get(mutationKey));
+            }
+
+            // the items to write, including those of a cart converted from a document
+            Map<Key, Entity> writtenItems = new LinkedHashMap<>();
+            Entity cart = entities.get(cartKey);
+            if (cart != null && isCartDocument(cart)) {
+              summarizeDocument(cart);
+              for (Entity childItem : toChildItems(cart)) {
+                writtenItems.put(childItem.getKey(), childItem);
+                entities.put(childItem.getKey(), childItem);
+              }
+              cart.removeProperty(PROPERTY_ITEMS);
+            }
+
+            boolean changed = false;
+            List<Key> deletedItems = new ArrayList<>();
+            long itemCountChange = 0;
+            long quantityChange = 0;
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+              Key itemKey = getCartItemKey(cartId, delta.getKey());
+              Entity currentItem = entities.get(itemKey);
+              long previousCount =
+                  currentItem == null ? 0 : (Long) currentItem.getProperty(PROPERTY_COUNT);
+              long count = previousCount + delta.getValue();
+              if (count > 0 || currentItem != null) {
+                itemCountChange += (count > 0 ? 1 : 0) - (previousCount > 0 ? 1 : 0);
+                quantityChange += Math.max(count, 0) - previousCount;
+              }
 
-      datastore.put(transaction, currentItem);
-      transaction.commit();
+              if (count > 0) {
+                if (currentItem == null) {
+                  currentItem = new Entity(itemKey);
+                  currentItem.setProperty(PROPERTY_ITEM_ID, delta.getKey());
+                  currentItem.setProperty(PROPERTY_ITEM_TITLE, itemTitles.get(delta.getKey()));
+                }
+                currentItem.setProperty(PROPERTY_COUNT, count);
+                writtenItems.put(itemKey, currentItem);
+                changed = true;
+              } else if (currentItem != null) {
+                writtenItems.remove(itemKey);
+                deletedItems.add(itemKey);
+                changed = true;
+              } else {
+                logger.log(Level.SEVERE, "Attempted deletion on null item.");
+              }
+            }
+            if (!changed) {
+              return -1L;
+            }
+
+            if (!deletedItems.isEmpty()) {
+              datastore.delete(transaction, deletedItems);
+            }
+            if (cart != null) {
+              changeSummary(transaction, cart, itemCountChange, quantityChange);
+            }
+            return putWithCart(
+                transaction,
+                cart,
+                getMarkerKeys(cartId, mutationId, messageIds),
+                new ArrayList<>(writtenItems.values()));
+          });
     } catch (IllegalStateException e) {
       logger.log(Level.SEVERE, "The transaction is not active.", e);
     } catch (ConcurrentModificationException e) {
-      logger.log(Level.SEVERE, "The item is being concurrently modified.", e);
+      logger.log(Level.SEVERE, "The items are still being concurrently modified.", e);
     } catch (DatastoreFailureException e) {
-      logger.log(Level.SEVERE, "Datastore was not able to add the item.", e);
+      logger.log(Level.SEVERE, "Datastore was not able to change the items.", e);
     } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
-      }
+      forgetCart(cartId);
     }
+    return -1;
   }
 
   /**
-   * Deletes an item from the user's cart persisted in memory. If there is more than one of the
-   * given item in the user's cart, the count of the item is decremented.
+   * Deletes all items from the user's cart at most once for the given mutation id. See {@link
+   * #clearCart(String, String, Collection)}.
    *
-   * @param cartId The unique id that maps between the user and the agent.
-   * @param itemId The id of the item that is being deleted from the user's cart.
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The version of the cart written by the change, 0 if there is no cart entity, or -1 if
+   *     the cart could not be cleared.
+   */
+  public long clearCart(String cartId, String mutationId) {
+    return clearCart(cartId, mutationId, Collections.<String>emptyList());
+  }
+
+  /**
+   * Deletes all items from the user's cart in one transaction, with a keys-only ancestor query and
+   * one batch delete, at most once for the given mutation id. The inbound messages whose changes
+   * were coalesced into it are recorded as applied in the same transaction.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the change, or null.
+   * @param messageIds The ids of the inbound messages the change is made for.
+   * @return The version of the cart written by the change, 0 if there is no cart entity, or -1 if
+   *     the cart could not be cleared.
    */
-  public void deleteItemFromCart(String cartId, String itemId) {
-    Transaction transaction = datastore.beginTransaction();
-    Entity currentItem = getExistingItem(cartId, itemId);
+  public long clearCart(String cartId, String mutationId, Collection<String> messageIds) {
+    Key cartKey = getCartKey(cartId);
+    Key mutationKey = mutationId == null ? null : getMutationKey(cartId, mutationId);
     try {
-      // check if we are deleting null item
-      if (currentItem == null) {
-        logger.log(Level.SEVERE, "Attempted deletion on null item.");
-      } else {
-        int count = ((Long) currentItem.getProperty(PROPERTY_COUNT)).intValue();
-        if (count == 1) {
-          Key key = currentItem.getKey();
-          datastore.delete(transaction, key);
-        } else {
-          currentItem.setProperty(PROPERTY_COUNT, count - 1);
-          datastore.put(transaction, currentItem);
-        }
-      }
-      transaction.commit();
+      return transactionRunner.run(
+          transaction -> {
+            Map<Key, Entity> entities =
+                datastore.get(
+                    transaction,
+                    mutationKey == null
+                        ? Collections.singletonList(cartKey)
+                        : Arrays.asList(cartKey, mutationKey));
+            if (mutationKey != null && entities.containsKey(mutationKey)) {
+              return getVersion(entities.get(mutationKey));
+            }
+
+            final Query q = new Query(CART_ITEM_TYPE).setAncestor(cartKey).setKeysOnly();
+            List<Key> itemKeys = new ArrayList<>();
+            for (Entity item : datastore.prepare(transaction, q).asIterable()) {
+              itemKeys.add(item.getKey());
+            }
+            if (!itemKeys.isEmpty()) {
+              datastore.delete(transaction, itemKeys);
+            }
+            Entity cart = entities.get(cartKey);
+            if (cart != null) {
+              setSummary(cart, 0, 0);
+            }
+            return putWithCart(
+                transaction,
+                cart,
+                getMarkerKeys(cartId, mutationId, messageIds),
+                Collections.emptyList());
+          });
     } catch (IllegalStateException e) {
       logger.log(Level.SEVERE, "The transaction is not active.", e);
     } catch (ConcurrentModificationException e) {
-      logger.log(Level.SEVERE, "The item is being concurrently modified.", e);
+      logger.log(Level.SEVERE, "The cart is still being concurrently modified.", e);
     } catch (DatastoreFailureException e) {
-      logger.log(Level.SEVERE, "Datastore was not able to delete the item.", e);
+      logger.log(Level.SEVERE, "Datastore was not able to clear the cart.", e);
     } finally {
-      if (transaction.isActive()) {
-        transaction.rollback();
+      forgetCart(cartId);
+    }
+    return -1;
+  }
+
+  /**
+   * Creates the key of the marker recording that a mutation was applied to the user's cart.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the inbound message that caused the mutation.
+   * @return The key of the marker entity.
+   */
+  public static Key getMutationKey(String cartId, String mutationId) {
+    return KeyFactory.createKey(getCartKey(cartId), CART_MUTATION_TYPE, mutationId);
+  }
+
+  /**
+   * Whether a change was already made to the user's cart for the given mutation id, by this or
+   * any other instance.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the inbound message causing the change.
+   * @return True if the marker of the mutation exists.
+   */
+  public boolean isMutationApplied(String cartId, String mutationId) {
+    try {
+      datastore.get(getMutationKey(cartId, mutationId));
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Records inbound messages as applied to the user's cart without changing it, e.g. when their
+   * changes cancelled each other out.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param messageIds The ids of the inbound messages.
+   * @return True if the markers were written.
+   */
+  public boolean markApplied(String cartId, Collection<String> messageIds) {
+    List<Entity> markers = new ArrayList<>();
+    for (Key markerKey : getMarkerKeys(cartId, null, messageIds)) {
+      markers.add(newMarker(markerKey, 0));
+    }
+    try {
+      datastore.put(markers);
+      return true;
+    } catch (ConcurrentModificationException | DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to record the applied messages.", e);
+      return false;
+    }
+  }
+
+  private static List<Key> getMarkerKeys(
+      String cartId, String mutationId, Collection<String> messageIds) {
+    List<Key> markerKeys = new ArrayList<>();
+    if (mutationId != null) {
+      markerKeys.add(getMutationKey(cartId, mutationId));
+    }
+    for (String messageId : messageIds) {
+      markerKeys.add(getMutationKey(cartId, messageId));
+    }
+    return markerKeys;
+  }
+
+  private static Entity newMarker(Key markerKey, long version) {
+    Entity marker = new Entity(markerKey);
+    marker.setUnindexedProperty(PROPERTY_VERSION, version);
+    // indexed, for the sweep to prune markers once their message can no longer be redelivered
+    marker.setProperty(PROPERTY_APPLIED_AT, new Date());
+    return marker;
+  }
+
+  /**
+   * Puts the changed items along with their cart, whose version is bumped, and the markers of the
+   * mutation in one batch in the transaction.
+   *
+   * @param transaction The transaction of the mutation.
+   * @param cart The cart entity, or null if there is none.
+   * @param markerKeys The keys of the markers recording the mutation as applied.
+   * @param items The changed items.
+   * @return The new version of the cart, or 0 if there is no cart entity.
+   */
+  private long putWithCart(
+      Transaction transaction, Entity cart, List<Key> markerKeys, List<Entity> items) {
+    List<Entity> entities = new ArrayList<>(items);
+    long version = 0;
+    if (cart != null) {
+      version = bumpVersion(cart);
+      entities.add(cart);
+    }
+    for (Key markerKey : markerKeys) {
+      entities.add(newMarker(markerKey, version));
+    }
+    if (!entities.isEmpty()) {
+      datastore.put(transaction, entities);
+    }
+    return version;
+  }
+
+  /**
+   * Drops the cart from the unit of work open on this thread once it was changed, or may have been.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   */
+  private static void forgetCart(String cartId) {
+    UnitOfWork work = UnitOfWork.current();
+    if (work != null) {
+      work.invalidateCart(getCartKey(cartId));
+    }
+  }
+
+  /**
+   * Gets the version of a cart, which is bumped by every mutation of the cart.
+   *
+   * @param cart The cart entity.
+   * @return The version of the cart, or 0 for a cart saved before carts were versioned.
+   */
+  public static long getVersion(Entity cart) {
+    Long version = (Long) cart.getProperty(PROPERTY_VERSION);
+    return version == null ? 0 : version;
+  }
+
+  /**
+   * Gets the summary stored on a cart entity, without reading its items.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param cart The cart entity.
+   * @return The summary of the cart, or null for a cart saved before carts had summaries.
+   */
+  public static CartSummary getSummary(String cartId, Entity cart) {
+    Long itemCount = (Long) cart.getProperty(PROPERTY_ITEM_COUNT);
+    Long totalQuantity = (Long) cart.getProperty(PROPERTY_TOTAL_QUANTITY);
+    if (itemCount == null || totalQuantity == null) {
+      return null;
+    }
+    return new CartSummary(cartId, itemCount.intValue(), totalQuantity, getVersion(cart));
+  }
+
+  private static void setSummary(Entity cart, long itemCount, long totalQuantity) {
+    cart.setUnindexedProperty(PROPERTY_ITEM_COUNT, itemCount);
+    cart.setUnindexedProperty(PROPERTY_TOTAL_QUANTITY, totalQuantity);
+  }
+
+  /**
+   * Sets the summary of a cart stored as a single document from its embedded items.
+   *
+   * @param cart The cart entity, with its items embedded.
+   */
+  private static void summarizeDocument(Entity cart) {
+    long totalQuantity = 0;
+    List<EmbeddedEntity> items = getDocumentItems(cart);
+    for (EmbeddedEntity item : items) {
+      totalQuantity += (Long) item.getProperty(PROPERTY_COUNT);
+    }
+    setSummary(cart, items.size(), totalQuantity);
+  }
+
+  /**
+   * Changes the summary of a cart by the amounts a mutation changed its items by. A cart saved
+   * before carts had summaries is summarized from its items first, which the transaction reads as
+   * they were before the mutation.
+   *
+   * @param transaction The transaction of the mutation.
+   * @param cart The cart entity.
+   * @param itemCountChange The change in the number of distinct items.
+   * @param quantityChange The change in the sum of the counts of all items.
+   */
+  private void changeSummary(
+      Transaction transaction, Entity cart, long itemCountChange, long quantityChange) {
+    CartSummary summary = getSummary(cart.getKey().getName(), cart);
+    long itemCount = 0;
+    long totalQuantity = 0;
+    if (summary != null) {
+      itemCount = summary.getItemCount();
+      totalQuantity = summary.getTotalQuantity();
+    } else {
+      Query q = new Query(CART_ITEM_TYPE).setAncestor(cart.getKey());
+      for (Entity item : datastore.prepare(transaction, q).asIterable()) {
+        itemCount++;
+        totalQuantity += (Long) item.getProperty(PROPERTY_COUNT);
       }
     }
+    setSummary(
+        cart,
+        Math.max(itemCount + itemCountChange, 0),
+        Math.max(totalQuantity + quantityChange, 0));
+  }
+
+  /**
+   * Creates an empty cart, stored with CartItem children or as a single document depending on the
+   * configured storage mode.
+   *
+   * @param cartKey The key of the cart.
+   * @param conversationId The unique id that maps between the user and the agent.
+   * @param cartId The unique id that maps between the user and their cart.
+   * @return The cart entity, not yet saved.
+   */
+  private static Entity newCart(Key cartKey, String conversationId, String cartId) {
+    Entity cart = new Entity(cartKey);
+    cart.setProperty(PROPERTY_CONVERSATION_ID, conversationId);
+    cart.setProperty(PROPERTY_CART_ID, cartId);
+    newVersion(cart);
+    cart.setProperty(PROPERTY_LAST_TOUCHED, new Date());
+    setSummary(cart, 0, 0);
+    if (BotConfig.getCartStorageMode() == StorageMode.DOCUMENT) {
+      cart.setUnindexedProperty(PROPERTY_ITEMS, new ArrayList<EmbeddedEntity>());
+    }
+    return cart;
+  }
+
+  /**
+   * Sets the first version of a cart about to be inserted. The version is seeded from the clock,
+   * so a cart created again after being deleted starts above any version it had before.
+   */
+  private static void newVersion(Entity cart) {
+    cart.setUnindexedProperty(PROPERTY_VERSION, System.currentTimeMillis());
+  }
+
+  /**
+   * Bumps the version of a cart about to be written, and records when it was last changed so
+   * abandoned carts can be found by {@link CartSweeper}.
+   */
+  private static long bumpVersion(Entity cart) {
+    long version = getVersion(cart) + 1;
+    cart.setUnindexedProperty(PROPERTY_VERSION, version);
+    cart.setProperty(PROPERTY_LAST_TOUCHED, new Date());
+    return version;
   }
 
   /**
    * Checks the datastore for a specific item in the user's cart.
    *
-   * @param cartId The unique id that maps the user's cart to its associated items.
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
    * @param itemId The id of the item we are looking for.
    * @return The datastore entry if it exists.
    */
   public Entity getExistingItem(String cartId, String itemId) {
+    return AsyncDataManager.getResult(asyncDataManager.getExistingItem(cartId, itemId));
+  }
 
-    final Query q =
-        new Query(CART_ITEM_TYPE)
-            .setFilter(
-                new Query.CompositeFilter(
-                    CompositeFilterOperator.AND,
-                    Arrays.asList(
-                        new Query.FilterPredicate(
-                            PROPERTY_CART_ID, Query.FilterOperator.EQUAL, cartId),
-                        new Query.FilterPredicate(
-                            PROPERTY_ITEM_ID, Query.FilterOperator.EQUAL, itemId))));
+  /**
+   * Queries the datastore for all items in the user's cart. The query is an ancestor query on the
+   * cart's key, so it is strongly consistent.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @return A list of datastore entries if they exist.
+   */
+  public List<Entity> getCartFromData(String cartId) {
+    return AsyncDataManager.getResult(asyncDataManager.getCartFromData(cartId));
+  }
 
-    PreparedQuery pq = datastore.prepare(q);
-    List<Entity> currentCart = pq.asList(FetchOptions.Builder.withLimit(1));
+  /**
+   * Starts iterating over the items in the user's cart, in the order of their keys, without a
+   * limit. The items are fetched in chunks as the iteration reaches them, and the cursor of the
+   * iterator can be used to resume after the last item read.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param startCursor The web-safe cursor to start at, or null to start at the first item. A
+   *     cursor that cannot be read starts at the first item.
+   * @param chunkSize The number of items fetched with each call to Datastore.
+   * @return The iterator over the item entities.
+   */
+  public QueryResultIterator<Entity> getCartItemIterator(
+      String cartId, String startCursor, int chunkSize) {
+    final Query q = new Query(CART_ITEM_TYPE).setAncestor(getCartKey(cartId));
+    FetchOptions options = FetchOptions.Builder.withChunkSize(chunkSize).prefetchSize(chunkSize);
+    if (startCursor != null) {
+      try {
+        options.startCursor(Cursor.fromWebSafeString(startCursor));
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Ignoring an invalid cart cursor.", e);
+      }
+    }
+    return datastore.prepare(q).asQueryResultIterator(options);
+  }
 
-    // return the current configuration settings
-    if (!currentCart.isEmpty()) {
-      return currentCart.get(0);
+  /**
+   * Counts the items in the user's cart with a keys-only query, without reading the items.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @return The number of distinct items in the cart.
+   */
+  public int countCartItems(String cartId) {
+    final Query q = new Query(CART_ITEM_TYPE).setAncestor(getCartKey(cartId)).setKeysOnly();
+    return datastore.prepare(q).countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  /**
+   * Adds a copy of an item stored before items were children of their cart to the items being
+   * moved under the cart's key, adding up the counts of copies of the same item.
+   *
+   * @param childItems The items being moved, by their new key.
+   * @param cartKey The key of the cart the item belongs to.
+   * @param legacyItem The item entity with an allocated id.
+   * @return False if the item has no id or count and was left out.
+   */
+  static boolean mergeChildItem(Map<Key, Entity> childItems, Key cartKey, Entity legacyItem) {
+    String itemId = (String) legacyItem.getProperty(PROPERTY_ITEM_ID);
+    Long count = (Long) legacyItem.getProperty(PROPERTY_COUNT);
+    if (itemId == null || count == null) {
+      return false;
     }
 
+    Key itemKey = KeyFactory.createKey(cartKey, CART_ITEM_TYPE, itemId);
+
+    Entity childItem = childItems.get(itemKey);
+    if (childItem == null) {
+      childItem = new Entity(itemKey);
+      childItem.setProperty(PROPERTY_ITEM_ID, itemId);
+      childItem.setProperty(PROPERTY_ITEM_TITLE, legacyItem.getProperty(PROPERTY_ITEM_TITLE));
+      childItem.setProperty(PROPERTY_COUNT, count);
+      childItems.put(itemKey, childItem);
+    } else {
+      childItem.setProperty(PROPERTY_COUNT, (Long) childItem.getProperty(PROPERTY_COUNT) + count);
+    }
+    return true;
+  }
+
+  /**
+   * Whether the items of the cart are embedded in the cart entity.
+   *
+   * @param cart The cart entity.
+   * @return True if the cart is stored as a single document.
+   */
+  public static boolean isCartDocument(Entity cart) {
+    return cart.hasProperty(PROPERTY_ITEMS);
+  }
+
+  /**
+   * Gets the items embedded in a cart stored as a single document.
+   *
+   * @param cart The cart entity.
+   * @return The embedded items, in the order they were first added.
+   */
+  @SuppressWarnings("unchecked")
+  public static List<EmbeddedEntity> getDocumentItems(Entity cart) {
+    List<EmbeddedEntity> items = (List<EmbeddedEntity>) cart.getProperty(PROPERTY_ITEMS);
+    return items == null ? new ArrayList<>() : items;
+  }
+
+  /**
+   * Adds an item to a cart stored as a single document. The cart is read and written in one
+   * transaction.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemId The item's unique identifier.
+   * @param itemTitle The title of the item that is being stored in the user's cart.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity addItemToCartDocument(String cartId, String itemId, String itemTitle) {
+    return applyItemDeltasToDocument(
+        cartId,
+        Collections.singletonMap(itemId, 1),
+        Collections.singletonMap(itemId, itemTitle),
+        null);
+  }
+
+  /**
+   * Deletes an item from a cart stored as a single document. The cart is read and written in one
+   * transaction.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param itemId The id of the item that is being deleted from the user's cart.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity deleteItemFromCartDocument(String cartId, String itemId) {
+    return applyItemDeltasToDocument(
+        cartId,
+        Collections.singletonMap(itemId, -1),
+        Collections.<String, String>emptyMap(),
+        null);
+  }
+
+  /**
+   * Changes the counts of several items in a cart stored as a single document at most once for the
+   * given mutation id. See {@link #applyItemDeltasToDocument(String, Map, Map, String,
+   * Collection)}.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity applyItemDeltasToDocument(
+      String cartId,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId) {
+    return updateCartDocument(
+        cartId, deltas, itemTitles, mutationId, Collections.<String>emptyList());
+  }
+
+  /**
+   * Changes the counts of several items in a cart stored as a single document in one transaction,
+   * at most once for the given mutation id, and records the inbound messages whose changes were
+   * coalesced into it as applied.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items that may be new to the cart, by item id.
+   * @param mutationId The id of the change, or null.
+   * @param messageIds The ids of the inbound messages the change is made for.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity applyItemDeltasToDocument(
+      String cartId,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId,
+      Collection<String> messageIds) {
+    return updateCartDocument(cartId, deltas, itemTitles, mutationId, messageIds);
+  }
+
+  /**
+   * Deletes all items from a cart stored as a single document at most once for the given mutation
+   * id. See {@link #clearCartDocument(String, String, Collection)}.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity clearCartDocument(String cartId, String mutationId) {
+    return updateCartDocument(cartId, null, null, mutationId, Collections.<String>emptyList());
+  }
+
+  /**
+   * Deletes all items from a cart stored as a single document at most once for the given mutation
+   * id, and records the inbound messages whose changes were coalesced into it as applied.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @param mutationId The id of the change, or null.
+   * @param messageIds The ids of the inbound messages the change is made for.
+   * @return The updated cart entity, or null if it could not be updated.
+   */
+  public Entity clearCartDocument(
+      String cartId, String mutationId, Collection<String> messageIds) {
+    return updateCartDocument(cartId, null, null, mutationId, messageIds);
+  }
+
+  /**
+   * Applies the changes to a cart stored as a single document, creating the cart if it is missing.
+   * Null changes remove all items. A cart already changed by the mutation is returned as it is,
+   * and a cart still stored as CartItem children is converted to a document in the transaction.
+   */
+  private Entity updateCartDocument(
+      String cartId,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId,
+      Collection<String> messageIds) {
+    Key cartKey = getCartKey(cartId);
+    Key mutationKey = mutationId == null ? null : getMutationKey(cartId, mutationId);
+    try {
+      return transactionRunner.run(
+          transaction -> {
+            Map<Key, Entity> entities =
+                datastore.get(
+                    transaction,
+                    mutationKey == null
+                        ? Collections.singletonList(cartKey)
+                        : Arrays.asList(cartKey, mutationKey));
+            Entity cart = entities.get(cartKey);
+            List<Key> childKeys = Collections.emptyList();
+            if (cart == null) {
+              cart = newCart(cartKey, cartId, cartId);
+            } else if (mutationKey != null && entities.containsKey(mutationKey)) {
+              return cart;
+            } else if (!isCartDocument(cart)) {
+              childKeys = embedChildItems(transaction, cart);
+            }
+
+            List<EmbeddedEntity> items = new ArrayList<>();
+            if (deltas != null) {
+              items = getDocumentItems(cart);
+              for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                applyDelta(
+                    items, delta.getKey(), itemTitles.get(delta.getKey()), delta.getValue());
+              }
+            }
+            cart.setUnindexedProperty(PROPERTY_ITEMS, items);
+            summarizeDocument(cart);
+            putWithCart(
+                transaction,
+                cart,
+                getMarkerKeys(cartId, mutationId, messageIds),
+                Collections.emptyList());
+            if (!childKeys.isEmpty()) {
+              datastore.delete(transaction, childKeys);
+            }
+            return cart;
+          });
+    } catch (IllegalStateException e) {
+      logger.log(Level.SEVERE, "The transaction is not active.", e);
+    } catch (ConcurrentModificationException e) {
+      logger.log(Level.SEVERE, "The cart is still being concurrently modified.", e);
+    } catch (DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to update the cart.", e);
+    } finally {
+      forgetCart(cartId);
+    }
+    return null;
+  }
+
+  /**
+   * Changes the count of an item in a list of embedded items, adding the item if it is missing and
+   * removing it once its count drops to zero.
+   */
+  private static void applyDelta(
+      List<EmbeddedEntity> items, String itemId, String itemTitle, int delta) {
+    for (int i = 0; i < items.size(); i++) {
+      EmbeddedEntity item = items.get(i);
+      if (itemId.equals(item.getProperty(PROPERTY_ITEM_ID))) {
+        long count = (Long) item.getProperty(PROPERTY_COUNT) + delta;
+        if (count > 0) {
+          item.setProperty(PROPERTY_COUNT, count);
+        } else {
+          items.remove(i);
+        }
+        return;
+      }
+    }
+
+    if (delta > 0) {
+      EmbeddedEntity item = new EmbeddedEntity();
+      item.setProperty(PROPERTY_ITEM_ID, itemId);
+      item.setProperty(PROPERTY_ITEM_TITLE, itemTitle);
+      item.setProperty(PROPERTY_COUNT, (long) delta);
+      items.add(item);
+    } else {
+      logger.log(Level.SEVERE, "Attempted deletion on null item.");
+    }
+  }
+
+  /**
+   * Moves the CartItem children of a cart into the cart entity, in one transaction.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @return The converted cart entity, or null if the cart does not exist or could not be
+   *     converted.
+   */
+  public Entity convertToDocument(String cartId) {
+    try {
+      return transactionRunner.run(
+          transaction -> {
+            Entity cart;
+            try {
+              cart = datastore.get(transaction, getCartKey(cartId));
+            } catch (EntityNotFoundException e) {
+              return null;
+            }
+            if (isCartDocument(cart)) {
+              return cart;
+            }
+
+            List<Key> childKeys = embedChildItems(transaction, cart);
+            summarizeDocument(cart);
+            bumpVersion(cart);
+
+            datastore.put(transaction, cart);
+            datastore.delete(transaction, childKeys);
+            return cart;
+          });
+    } catch (IllegalStateException | ConcurrentModificationException e) {
+      logger.log(Level.WARNING, "Unable to convert the cart to a document.", e);
+    } catch (DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to convert the cart.", e);
+    } finally {
+      forgetCart(cartId);
+    }
     return null;
   }
 
   /**
-   * Queries the datastore for all items in the user's cart.
+   * Embeds the CartItem children of a cart in the cart entity, which is not written.
    *
-   * @param cartId The unique id that maps between the user's cart and its associated items.
-   * @return A list of datastore entries if they exist.
+   * @param transaction The transaction reading the children.
+   * @param cart The cart entity stored with CartItem children.
+   * @return The keys of the children, which are to be deleted once the cart is written.
    */
-  public List<Entity> getCartFromData(String cartId) {
+  private List<Key> embedChildItems(Transaction transaction, Entity cart) {
+    List<Entity> childItems =
+        datastore
+            .prepare(transaction, new Query(CART_ITEM_TYPE).setAncestor(cart.getKey()))
+            .asList(FetchOptions.Builder.withDefaults());
+    List<EmbeddedEntity> items = new ArrayList<>();
+    List<Key> childKeys = new ArrayList<>();
+    for (Entity childItem : childItems) {
+      EmbeddedEntity item = new EmbeddedEntity();
+      item.setPropertiesFrom(childItem);
+      items.add(item);
+      childKeys.add(childItem.getKey());
+    }
+    cart.setUnindexedProperty(PROPERTY_ITEMS, items);
+    return childKeys;
+  }
 
-    final Query q =
-        new Query("CartItem")
-            .setFilter(
-                new Query.FilterPredicate(PROPERTY_CART_ID, Query.FilterOperator.EQUAL, cartId));
+  /**
+   * Creates CartItem children from the items embedded in a cart stored as a single document.
+   *
+   * @param cart The cart entity, with its items embedded.
+   * @return The child item entities, which are not written.
+   */
+  private static List<Entity> toChildItems(Entity cart) {
+    List<Entity> childItems = new ArrayList<>();
+    for (EmbeddedEntity item : getDocumentItems(cart)) {
+      String itemId = (String) item.getProperty(PROPERTY_ITEM_ID);
+      Entity childItem = new Entity(CART_ITEM_TYPE, itemId, cart.getKey());
+      childItem.setPropertiesFrom(item);
+      childItems.add(childItem);
+    }
+    return childItems;
+  }
 
-    PreparedQuery pq = datastore.prepare(q);
-    List<Entity> currentCart = pq.asList(FetchOptions.Builder.withLimit(MAX_CART_LIMIT));
-    return currentCart;
+  /**
+   * Moves the items embedded in a cart entity out into CartItem children, in one transaction.
+   *
+   * @param cartId The unique id of the cart, the conversation ID its key is named after.
+   * @return The converted cart entity, or null if the cart does not exist or could not be
+   *     converted.
+   */
+  public Entity convertToEntities(String cartId) {
+    try {
+      return transactionRunner.run(
+          transaction -> {
+            Entity cart;
+            try {
+              cart = datastore.get(transaction, getCartKey(cartId));
+            } catch (EntityNotFoundException e) {
+              return null;
+            }
+            if (!isCartDocument(cart)) {
+              return cart;
+            }
+
+            List<Entity> entities = toChildItems(cart);
+            summarizeDocument(cart);
+            cart.removeProperty(PROPERTY_ITEMS);
+            bumpVersion(cart);
+            entities.add(cart);
+
+            datastore.put(transaction, entities);
+            return cart;
+          });
+    } catch (IllegalStateException | ConcurrentModificationException e) {
+      logger.log(Level.WARNING, "Unable to convert the cart to entities.", e);
+    } catch (DatastoreFailureException e) {
+      logger.log(Level.SEVERE, "Datastore was not able to convert the cart.", e);
+    } finally {
+      forgetCart(cartId);
+    }
+    return null;
   }
 }
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Stores carts in Datastore through {@link DataManager}, shared by all instances, and caches them
+ * in the {@link CartCache} when it is enabled.
+ *
+ * <p>A mutation returns the previous Cart with the committed change applied in memory, rather than
+ * reading the cart back. Every mutation bumps the version of the stored cart, so if the version it
+ * committed is not the one after the previous Cart's, another write happened in between and the
+ * cart is read again. A cart too large to be read in full is never derived from, since the
+ * stored cart has items it does not.
+ */
+public class DatastoreCartStore implements CartStore {
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>When the cart cache is enabled, a cached cart at the current version is returned without
+   * reading Datastore. A cart stored in the layout other than the configured storage mode is
+   * converted first.
+   */
+  @Override
+  public Cart getOrCreateCart(String conversationId) {
+    if (!BotConfig.isCartCacheEnabled()) {
+      return loadCart(conversationId, null);
+    }
+
+    CartCache cache = CartCache.getInstance();
+    CartCache.CachedCart cached = cache.get(conversationId);
+    if (cached != null) {
+      return cached.getCart();
+    }
+
+    Cart cart = loadCart(conversationId, cache);
+    if (cart.getVersion() > 0) {
+      cache.put(cart, cart.getVersion());
+    }
+    return cart;
+  }
+
+  /**
+   * Reads the cart from Datastore, creating it if it does not exist. The items are children of the
+   * cart's key, so in ENTITIES mode their query is issued alongside the cart lookup rather than
+   * after it. A cart this instance saw recently is read with a plain lookup, and any other cart
+   * with the get-or-insert transaction, once a lookup misses or right away if there are no legacy
+   * carts to look for.
+   *
+   * @param conversationId The unique id that maps between the agent and the user.
+   * @param cache The cart cache whose local entry may save reading the items, or null.
+   * @return The cart, at the version of its entity, only holding its first items if it has more
+   *     than {@link DataManager#MAX_CART_LIMIT}.
+   */
+  private Cart loadCart(String conversationId, CartCache cache) {
+    DataManager dataManager = DataManager.getInstance();
+    AsyncDataManager asyncDataManager = AsyncDataManager.getInstance();
+    boolean documentMode = BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT;
+
+    boolean lookUp =
+        dataManager.isKnownCart(conversationId) || BotConfig.isLegacyCartLookupEnabled();
+    Future<Entity> cartLookup = lookUp ? asyncDataManager.getCart(conversationId) : null;
+    Future<List<Entity>> itemFetch =
+        documentMode || (cache != null && cache.hasLocal(conversationId))
+            ? null
+            : asyncDataManager.getCartFromData(conversationId);
+
+    Entity cartEntity = lookUp ? AsyncDataManager.getResult(cartLookup) : null;
+    if (cartEntity != null) {
+      dataManager.rememberCart(conversationId);
+    } else {
+      if (lookUp) {
+        // the items of a legacy cart are only moved under its key by the legacy lookup
+        itemFetch = null;
+      }
+      cartEntity = dataManager.getOrInsertCart(conversationId);
+      if (cartEntity == null) {
+        return new Cart(conversationId, ImmutableList.of(), 0);
+      }
+      CartSummary summary = DataManager.getSummary(conversationId, cartEntity);
+      if (!documentMode
+          && !DataManager.isCartDocument(cartEntity)
+          && summary != null
+          && summary.isEmpty()) {
+        // a cart just inserted has no items to read
+        return new Cart(conversationId, ImmutableList.of(), summary.getVersion());
+      }
+    }
+
+    if (documentMode) {
+      if (!DataManager.isCartDocument(cartEntity)) {
+        Entity converted = dataManager.convertToDocument(conversationId);
+        cartEntity = converted == null ? cartEntity : converted;
+      }
+      return toCart(conversationId, cartEntity);
+    }
+
+    if (DataManager.isCartDocument(cartEntity)) {
+      itemFetch = null;
+      Entity converted = dataManager.convertToEntities(conversationId);
+      cartEntity = converted == null ? cartEntity : converted;
+    }
+    long version = DataManager.getVersion(cartEntity);
+    if (cache != null && version > 0) {
+      Cart localCart = cache.getIfVersion(conversationId, version);
+      if (localCart != null) {
+        return localCart;
+      }
+    }
+    ImmutableList<CartItem> items =
+        itemFetch == null
+            ? getCartItems(conversationId)
+            : toCartItems(AsyncDataManager.getResult(itemFetch));
+    // a cart at the limit may have been cut off there
+    return new Cart(conversationId, items, version, items.size() < DataManager.MAX_CART_LIMIT);
+  }
+
+  /**
+   * Gets the collection of items associated with the given cartId. Can be invoked upon the
+   * initialization of a user's cart, or when the in-memory cart has diverged from the stored one.
+   *
+   * @param cartId The unique identifier of the cart whose items will be returned.
+   * @return The immutable collection of items associated with the given cartId.
+   */
+  private ImmutableList<CartItem> getCartItems(String cartId) {
+    DataManager dataManager = DataManager.getInstance();
+    List<Entity> itemList = dataManager.getCartFromData(cartId);
+    if (itemList == null) {
+      return ImmutableList.of();
+    }
+    return toCartItems(itemList);
+  }
+
+  /**
+   * Creates the items of a cart from their CartItem entities or their embedded entities.
+   *
+   * @param itemList The stored items.
+   * @return The immutable collection of items.
+   */
+  private static ImmutableList<CartItem> toCartItems(List<? extends PropertyContainer> itemList) {
+    ImmutableList.Builder<CartItem> builder = new ImmutableList.Builder<>();
+    for (PropertyContainer ent : itemList) {
+      builder.add(toCartItem(ent));
+    }
+    return builder.build();
+  }
+
+  private static CartItem toCartItem(PropertyContainer ent) {
+    String id = (String) ent.getProperty(DataManager.PROPERTY_ITEM_ID);
+    String title = (String) ent.getProperty(DataManager.PROPERTY_ITEM_TITLE);
+    int count = ((Long) ent.getProperty(DataManager.PROPERTY_COUNT)).intValue();
+    return new CartItem(id, title, count);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The cart is derived from the given cart unless the stored cart has diverged or the given
+   * cart is incomplete. A change already made for the mutation id is not made again, and the cart
+   * is read again unless the given cart is the one it was made from.
+   */
+  @Override
+  public Cart applyItemDeltas(
+      Cart cart,
+      Map<String, Integer> deltas,
+      Map<String, String> itemTitles,
+      String mutationId) {
+    DataManager dataManager = DataManager.getInstance();
+    if (BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT) {
+      Entity cartEntity =
+          dataManager.applyItemDeltasToDocument(cart.getId(), deltas, itemTitles, mutationId);
+      return cacheCart(cart.getId(), cartEntity == null ? null : toCart(cart.getId(), cartEntity));
+    }
+    long version = dataManager.applyItemDeltas(cart.getId(), deltas, itemTitles, mutationId);
+    return cacheCart(cart.getId(), applyDeltas(cart, deltas, itemTitles, version));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The cart is read again if it changed since it was cleared for the mutation id.
+   */
+  @Override
+  public Cart clearCart(Cart cart, String mutationId) {
+    DataManager dataManager = DataManager.getInstance();
+    if (BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT) {
+      Entity cartEntity = dataManager.clearCartDocument(cart.getId(), mutationId);
+      return cacheCart(cart.getId(), cartEntity == null ? null : toCart(cart.getId(), cartEntity));
+    }
+    // the cart is empty after clearing whatever it held before, unless the clear is an earlier one
+    long version = dataManager.clearCart(cart.getId(), mutationId);
+    return cacheCart(
+        cart.getId(),
+        version > cart.getVersion() ? new Cart(cart.getId(), ImmutableList.of(), version) : null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only the cart entity is read, by key, and a missing cart is inserted by the get-or-insert
+   * transaction. A cart stored in the layout other than the configured storage mode is read in
+   * full first, and a cart saved before carts had summaries is summarized from its items until its
+   * next change stores a summary.
+   */
+  @Override
+  public CartSummary getCartSummary(String cartId) {
+    boolean documentMode = BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT;
+    Entity cartEntity = getOrInsertCartEntity(cartId);
+    if (cartEntity == null || DataManager.isCartDocument(cartEntity) != documentMode) {
+      Cart cart = getOrCreateCart(cartId);
+      return cart.isComplete()
+          ? CartSummary.of(cart)
+          : CartSummary.of(cartId, getAllItems(cartId), cart.getVersion());
+    }
+
+    CartSummary summary = DataManager.getSummary(cartId, cartEntity);
+    if (summary != null) {
+      return summary;
+    }
+    if (documentMode) {
+      return CartSummary.of(toCart(cartId, cartEntity));
+    }
+    return CartSummary.of(cartId, getAllItems(cartId), DataManager.getVersion(cartEntity));
+  }
+
+  /**
+   * Reads the cart entity, with a plain lookup if this instance saw the cart recently or there may
+   * be a legacy cart to look for, and inserts it if it does not exist.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @return The cart entity, or null if it could not be read or inserted.
+   */
+  private static Entity getOrInsertCartEntity(String cartId) {
+    DataManager dataManager = DataManager.getInstance();
+    if (dataManager.isKnownCart(cartId) || BotConfig.isLegacyCartLookupEnabled()) {
+      Entity cartEntity =
+          AsyncDataManager.getResult(AsyncDataManager.getInstance().getCart(cartId));
+      if (cartEntity != null) {
+        dataManager.rememberCart(cartId);
+        return cartEntity;
+      }
+    }
+    return dataManager.getOrInsertCart(cartId);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In ENTITIES mode, only the items on the page are read, with one more telling whether there
+   * is a next page, and the items are counted with a keys-only query. The cursor is a Datastore
+   * cursor.
+   */
+  @Override
+  public CartPage getCartPage(String cartId, String cursor, int pageSize) {
+    if (BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT) {
+      return CartPage.of(getOrCreateCart(cartId).getItems(), cursor, pageSize);
+    }
+
+    DataManager dataManager = DataManager.getInstance();
+    QueryResultIterator<Entity> iterator =
+        dataManager.getCartItemIterator(cartId, cursor, pageSize + 1);
+    List<Entity> itemList = new ArrayList<>();
+    while (itemList.size() < pageSize && iterator.hasNext()) {
+      itemList.add(iterator.next());
+    }
+    String nextCursor = iterator.hasNext() ? iterator.getCursor().toWebSafeString() : null;
+    return new CartPage(toCartItems(itemList), nextCursor, dataManager.countCartItems(cartId));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>In ENTITIES mode, every iteration runs the query again and fetches the items in chunks.
+   */
+  @Override
+  public Iterable<CartItem> getAllItems(String cartId) {
+    if (BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT) {
+      return getOrCreateCart(cartId).getItems();
+    }
+    return () ->
+        Iterators.transform(
+            DataManager.getInstance()
+                .getCartItemIterator(cartId, null, DataManager.MAX_CART_LIMIT),
+            DatastoreCartStore::toCartItem);
+  }
+
+  /**
+   * Applies committed changes in the counts of items to the cart they were made from.
+   *
+   * @param cart The cart the changes were made from.
+   * @param deltas The change in count of each item, by item id.
+   * @param itemTitles The titles of the items, used for items new to the cart.
+   * @param version The version of the cart written by the changes, not positive if unknown.
+   * @return The cart after the changes, or null if it diverged from the stored cart or is
+   *     incomplete, and must be read again.
+   */
+  private static Cart applyDeltas(
+      Cart cart, Map<String, Integer> deltas, Map<String, String> itemTitles, long version) {
+    if (!cart.isComplete() || cart.getVersion() <= 0 || version != cart.getVersion() + 1) {
+      return null;
+    }
+
+    for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+      if (delta.getValue() < 0 && !containsItem(cart, delta.getKey())) {
+        // the stored cart may have had an item the in-memory cart did not
+        return null;
+      }
+    }
+    return cart.withDeltas(deltas, itemTitles, version);
+  }
+
+  private static boolean containsItem(Cart cart, String itemId) {
+    for (CartItem item : cart.getItems()) {
+      if (item.getId().equals(itemId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates a Cart from a cart entity stored as a single document.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param cartEntity The cart entity.
+   * @return The new instance of Cart.
+   */
+  private static Cart toCart(String cartId, Entity cartEntity) {
+    return new Cart(
+        cartId,
+        toCartItems(DataManager.getDocumentItems(cartEntity)),
+        DataManager.getVersion(cartEntity));
+  }
+
+  /**
+   * Updates the cart cache in place after a mutation. If the cart after the mutation is not known,
+   * because the mutation failed or the cart diverged, it is dropped from the cache and read again.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param cart The cart after the mutation, or null if it is not known.
+   * @return The cart after the mutation.
+   */
+  private Cart cacheCart(String cartId, Cart cart) {
+    boolean cacheEnabled = BotConfig.isCartCacheEnabled();
+    if (cart == null) {
+      if (cacheEnabled) {
+        CartCache.getInstance().invalidate(cartId);
+      }
+      return getOrCreateCart(cartId);
+    }
+    if (cacheEnabled && cart.getVersion() > 0) {
+      CartCache.getInstance().put(cart, cart.getVersion());
+    }
+    return cart;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps carts in the memory of this instance. Carts are not shared with other instances and are
+ * lost on restart, so this store is meant for local runs and tests.
+ *
+ * <p>Reads never block. Changes to a cart are serialized by a lock from a fixed set of stripes
+ * picked by cart id, so changes to different carts rarely wait on each other. The mutation ids of
+ * recent changes are remembered so a redelivered change is not made again.
+ */
+public class InMemoryCartStore implements CartStore {
+
+  private static final Logger logger = Logger.getLogger(InMemoryCartStore.class.getName());
+
+  // Number of locks changes to carts are spread over
+  private static final int LOCK_STRIPES = 64;
+
+  // Number of mutation ids remembered for redeliveries
+  private static final int MAX_APPLIED_MUTATIONS = 10000;
+
+  private final ConcurrentMap<String, Cart> carts = new ConcurrentHashMap<>();
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  private final Cache<String, Boolean> appliedMutations =
+      CacheBuilder.newBuilder().maximumSize(MAX_APPLIED_MUTATIONS).build();
+
+  @Override
+  public Cart getOrCreateCart(String cartId) {
+    Cart cart = carts.get(cartId);
+    if (cart != null) {
+      return cart;
+    }
+    return update(cartId, null, null);
+  }
+
+  @Override
+  public Cart applyItemDeltas(
+      Cart cart, Map<String, Integer> deltas, Map<String, String> itemTitles, String mutationId) {
+    return update(
+        cart.getId(),
+        mutationId,
+        (current, version) -> current.withDeltas(deltas, itemTitles, version));
+  }
+
+  @Override
+  public Cart clearCart(Cart cart, String mutationId) {
+    return update(
+        cart.getId(),
+        mutationId,
+        (current, version) -> new Cart(current.getId(), ImmutableList.of(), version));
+  }
+
+  /**
+   * Changes the stored cart, creating it first if there is none. The change is persisted before
+   * it is published to readers.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param mutationId The id the change is made at most once for, or null.
+   * @param change Creates the changed cart from the current one and its new version, or null to
+   *     only create the cart.
+   * @return The cart after the change, or the current cart if it could not be persisted.
+   */
+  private Cart update(String cartId, String mutationId, BiFunction<Cart, Long, Cart> change) {
+    Lock lock = locks.get(cartId);
+    lock.lock();
+    try {
+      Cart current = carts.get(cartId);
+      if (current != null
+          && (change == null || (mutationId != null && isApplied(cartId, mutationId)))) {
+        return current;
+      }
+      if (current == null) {
+        current = new Cart(cartId, ImmutableList.of(), 0);
+      }
+      Cart changed =
+          change == null
+              ? new Cart(cartId, ImmutableList.of(), 1)
+              : change.apply(current, current.getVersion() + 1);
+
+      if (!persist(changed, mutationId)) {
+        logger.log(Level.SEVERE, "Unable to persist cart " + cartId + ".");
+        return current;
+      }
+      carts.put(cartId, changed);
+      if (mutationId != null) {
+        appliedMutations.put(getMutationKey(cartId, mutationId), Boolean.TRUE);
+      }
+      return changed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isApplied(String cartId, String mutationId) {
+    return appliedMutations.getIfPresent(getMutationKey(cartId, mutationId)) != null;
+  }
+
+  private static String getMutationKey(String cartId, String mutationId) {
+    return cartId + "/" + mutationId;
+  }
+
+  /**
+   * Persists a changed cart before it is published, while its lock is held. Carts are only kept in
+   * memory here; subclasses may write them elsewhere.
+   *
+   * @param cart The cart after the change.
+   * @param mutationId The id of the change, or null.
+   * @return True if the change was persisted, false if it has to be dropped.
+   */
+  protected boolean persist(Cart cart, String mutationId) {
+    return true;
+  }
+
+  /**
+   * Puts a cart back as it was persisted, e.g. while recovering the store, without persisting it
+   * again.
+   *
+   * @param cart The persisted cart, replacing any earlier one with the same id.
+   * @param mutationId The id of the change that persisted it, or null.
+   */
+  protected void restore(Cart cart, String mutationId) {
+    carts.put(cart.getId(), cart);
+    if (mutationId != null) {
+      appliedMutations.put(getMutationKey(cart.getId(), mutationId), Boolean.TRUE);
+    }
+  }
+
+  /** Takes the locks of all carts, so none can change until {@link #unlockAll} is called. */
+  protected void lockAll() {
+    for (int i = 0; i < locks.size(); i++) {
+      locks.getAt(i).lock();
+    }
+  }
+
+  /** Releases the locks taken by {@link #lockAll}. */
+  protected void unlockAll() {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.getAt(i).unlock();
+    }
+  }
+
+  /**
+   * Gets all stored carts. Only a consistent snapshot while all locks are held.
+   *
+   * @return The carts, in no particular order.
+   */
+  protected Iterable<Cart> getCarts() {
+    return Collections.unmodifiableCollection(carts.values());
+  }
+
+  /**
+   * Gets the number of stored carts.
+   *
+   * @return The number of carts.
+   */
+  public int getCartCount() {
+    return carts.size();
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps carts in memory like {@link InMemoryCartStore}, and appends every changed cart to a log
+ * file on local disk, from which the carts are recovered when the store is opened again.
+ *
+ * <p>The log is memory-mapped, so an append is a copy into the page cache rather than a write
+ * call. It survives the process crashing, but not the machine, as it is only forced to disk on
+ * compaction and close. Each record is the length of its payload followed by the payload: the cart
+ * id, version, mutation id and items. The length is written after the payload, so recovery stops
+ * at a torn record.
+ *
+ * <p>Only the latest record of a cart matters, so the log is compacted in the background once it
+ * holds more than twice as many records as there are carts, by writing the latest records to a new
+ * file and moving it over the log. Mutation ids not in the latest record of their cart are not
+ * remembered across a compaction and restart.
+ */
+public class LocalFileCartStore extends InMemoryCartStore implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(LocalFileCartStore.class.getName());
+
+  // Size of the first mapping of the log, doubled whenever an append does not fit
+  private static final int INITIAL_MAPPING_BYTES = 1 << 20;
+
+  // Bytes in front of each record payload for its length
+  private static final int LENGTH_BYTES = 4;
+
+  // Compact once the log holds more records than this many per cart
+  private static final int COMPACTION_RATIO = 2;
+
+  private final Path path;
+  private final ScheduledExecutorService compactor;
+
+  // Guarded by this
+  private FileChannel channel;
+  private MappedByteBuffer log;
+  private long records;
+
+  private final AtomicLong compactions = new AtomicLong();
+
+  /**
+   * Opens the store, recovering the carts in the log file, or creating the file if there is none.
+   *
+   * @param path The path of the log file.
+   * @param compactionIntervalSeconds How often to check whether the log should be compacted, or 0
+   *     to only compact on {@link #compact}.
+   * @throws IOException If the log cannot be opened or read.
+   */
+  public LocalFileCartStore(Path path, int compactionIntervalSeconds) throws IOException {
+    this.path = path;
+    synchronized (this) {
+      open();
+      recover();
+    }
+
+    this.compactor = BackgroundThreads.newScheduler(1, "cart-compactor-%d");
+    if (compactor == null) {
+      // without background threads the log is only compacted when it is opened
+      compactIfNeeded();
+    } else if (compactionIntervalSeconds > 0) {
+      compactor.scheduleWithFixedDelay(
+          this::compactIfNeeded,
+          compactionIntervalSeconds,
+          compactionIntervalSeconds,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  protected boolean persist(Cart cart, String mutationId) {
+    try {
+      append(encode(cart, mutationId));
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to append to the cart log.", e);
+      return false;
+    }
+  }
+
+  private synchronized void append(byte[] payload) throws IOException {
+    if (channel == null) {
+      throw new IOException("The cart log is closed.");
+    }
+    int start = log.position();
+    if (log.remaining() < LENGTH_BYTES + payload.length) {
+      remap(Math.max(2L * log.capacity(), (long) start + LENGTH_BYTES + payload.length));
+    }
+    log.position(start + LENGTH_BYTES);
+    log.put(payload);
+    // a record only counts once its length is written, so a torn payload is never read
+    log.putInt(start, payload.length);
+    records++;
+  }
+
+  /**
+   * Compacts the log if it holds more than twice as many records as there are carts.
+   *
+   * @return True if the log was compacted.
+   */
+  public boolean compactIfNeeded() {
+    synchronized (this) {
+      if (records <= (long) COMPACTION_RATIO * getCartCount()) {
+        return false;
+      }
+    }
+    try {
+      compact();
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to compact the cart log.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Rewrites the log with only the latest record of each cart. Carts cannot change while the log
+   * is rewritten.
+   *
+   * @throws IOException If the compacted log cannot be written. The log is left as it was.
+   */
+  public void compact() throws IOException {
+    // the cart locks are always taken before the log's, as in persist
+    lockAll();
+    try {
+      synchronized (this) {
+        if (channel == null) {
+          throw new IOException("The cart log is closed.");
+        }
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long written = 0;
+        int bytes;
+        try (FileChannel out =
+            FileChannel.open(
+                compacted,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          DataOutputStream data = new DataOutputStream(buffer);
+          for (Cart cart : getCarts()) {
+            byte[] payload = encode(cart, null);
+            data.writeInt(payload.length);
+            data.write(payload);
+            written++;
+          }
+          data.flush();
+          bytes = buffer.size();
+          out.write(ByteBuffer.wrap(buffer.toByteArray()));
+          out.force(true);
+        }
+
+        channel.close();
+        channel = null;
+        log = null;
+        Files.move(
+            compacted,
+            path,
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        open();
+        log.position(bytes);
+        records = written;
+        compactions.incrementAndGet();
+      }
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /** Stops compacting and forces the log to disk. */
+  @Override
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    synchronized (this) {
+      if (channel != null) {
+        log.force();
+        channel.close();
+        channel = null;
+        log = null;
+      }
+    }
+  }
+
+  /**
+   * Gets the number of records in the log, including those of earlier versions of carts.
+   *
+   * @return The number of records.
+   */
+  public synchronized long getRecords() {
+    return records;
+  }
+
+  /**
+   * Gets the number of times the log was compacted.
+   *
+   * @return The number of compactions.
+   */
+  public long getCompactions() {
+    return compactions.get();
+  }
+
+  /** Opens the log file and maps it, positioned at its start. Guarded by this. */
+  private void open() throws IOException {
+    channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = Math.max(channel.size(), INITIAL_MAPPING_BYTES);
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  /** Maps a larger part of the log file, keeping the position. Guarded by this. */
+  private void remap(long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("The cart log is full.");
+    }
+    int position = log.position();
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    log.position(position);
+  }
+
+  /** Restores the latest record of every cart and positions the log after the last record. */
+  private void recover() {
+    while (log.remaining() >= LENGTH_BYTES) {
+      int start = log.position();
+      int length = log.getInt();
+      if (length <= 0 || length > log.remaining()) {
+        log.position(start);
+        break;
+      }
+      byte[] payload = new byte[length];
+      log.get(payload);
+      try {
+        decode(payload);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Ignoring the cart log after an unreadable record.", e);
+        log.position(start);
+        break;
+      }
+      records++;
+    }
+  }
+
+  private static byte[] encode(Cart cart, String mutationId) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(buffer);
+    data.writeUTF(cart.getId());
+    data.writeLong(cart.getVersion());
+    data.writeUTF(mutationId == null ? "" : mutationId);
+    data.writeInt(cart.getItems().size());
+    for (CartItem item : cart.getItems()) {
+      data.writeUTF(item.getId());
+      data.writeUTF(item.getTitle() == null ? "" : item.getTitle());
+      data.writeInt(item.getCount());
+    }
+    data.flush();
+    return buffer.toByteArray();
+  }
+
+  private void decode(byte[] payload) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+    String cartId = data.readUTF();
+    long version = data.readLong();
+    String mutationId = data.readUTF();
+    int itemCount = data.readInt();
+    ImmutableList.Builder<CartItem> items = ImmutableList.builder();
+    for (int i = 0; i < itemCount; i++) {
+      items.add(new CartItem(data.readUTF(), data.readUTF(), data.readInt()));
+    }
+    restore(new Cart(cartId, items.build(), version), mutationId.isEmpty() ? null : mutationId);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Detects redelivered webhooks by their message or request id.
+ *
+ * <p>Ids are first checked against a bounded, time-limited cache on this instance, so most
+ * redeliveries are caught without a network round trip. Ids not seen locally are recorded in
+ * memcache with a single atomic add, which only succeeds for the first instance to see the id.
+ */
+public class MessageDeduplicator {
+
+  private static final Logger logger = Logger.getLogger(MessageDeduplicator.class.getName());
+
+  // Prefix for de-dupe entries in memcache
+  private static final String KEY_PREFIX = "dedupe:";
+
+  private final Cache<String, Boolean> localIds;
+  private final MemcacheService sharedIds;
+  private final int ttlSeconds;
+
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong sharedErrors = new AtomicLong();
+
+  /**
+   * Creates a MessageDeduplicator.
+   *
+   * @param localCapacity The maximum number of ids remembered on this instance.
+   * @param ttlSeconds How long an id is remembered.
+   */
+  public MessageDeduplicator(int localCapacity, int ttlSeconds) {
+    this.ttlSeconds = ttlSeconds;
+    this.localIds =
+        CacheBuilder.newBuilder()
+            .maximumSize(localCapacity)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .build();
+    this.sharedIds = MemcacheServiceFactory.getMemcacheService();
+    this.sharedIds.setErrorHandler(ErrorHandlers.getStrict());
+  }
+
+  /**
+   * Records the id as seen.
+   *
+   * @param id The message or request id of the webhook.
+   * @return True if this is the first time the id was seen, false if it is a redelivery.
+   */
+  public boolean markSeen(String id) {
+    // one atomic step, so of two concurrent deliveries on this instance only one goes on
+    if (localIds.asMap().putIfAbsent(id, true) != null) {
+      localHits.incrementAndGet();
+      return false;
+    }
+
+    try {
+      boolean added =
+          sharedIds.put(
+              KEY_PREFIX + id,
+              true,
+              Expiration.byDeltaSeconds(ttlSeconds),
+              SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      if (!added) {
+        sharedHits.incrementAndGet();
+        return false;
+      }
+    } catch (MemcacheServiceException e) {
+      // treat the id as new rather than dropping a message that may never have been handled
+      sharedErrors.incrementAndGet();
+      logger.log(Level.WARNING, "Unable to check the shared de-dupe cache.", e);
+    }
+
+    misses.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Forgets the id so the next delivery of the webhook is handled, e.g. when it was refused.
+   *
+   * @param id The message or request id of the webhook.
+   */
+  public void forget(String id) {
+    localIds.invalidate(id);
+    try {
+      sharedIds.delete(KEY_PREFIX + id);
+    } catch (MemcacheServiceException e) {
+      logger.log(Level.WARNING, "Unable to remove id from the shared de-dupe cache.", e);
+    }
+  }
+
+  /**
+   * Gets the number of redeliveries caught by the cache on this instance.
+   *
+   * @return The number of local hits.
+   */
+  public long getLocalHits() {
+    return localHits.get();
+  }
+
+  /**
+   * Gets the number of redeliveries caught by memcache.
+   *
+   * @return The number of shared hits.
+   */
+  public long getSharedHits() {
+    return sharedHits.get();
+  }
+
+  /**
+   * Gets the number of ids seen for the first time.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the number of times memcache could not be checked and the id was treated as new.
+   *
+   * @return The number of memcache errors.
+   */
+  public long getSharedErrors() {
+    return sharedErrors.get();
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-process work queue that processes inbound webhooks on a fixed pool of worker threads,
+ * so the callback servlet can acknowledge a webhook before it has been handled. Webhooks for the
+ * same conversation are processed in the order they were submitted.
+ */
+public class MessageQueue {
+
+  /** What happens to a task submitted while the queue is full. */
+  public enum OverflowPolicy {
+    // The task is refused so the platform redelivers it later
+    REJECT,
+    // The submitting thread waits until the task has run in its turn for the conversation,
+    // slowing intake down to the processing rate
+    CALLER_RUNS
+  }
+
+  private static final Logger logger = Logger.getLogger(MessageQueue.class.getName());
+
+  private final ThreadPoolExecutor executor;
+  private final ConversationExecutor conversations;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+
+  // Number of tasks accepted but not yet started
+  private final AtomicInteger queueDepth = new AtomicInteger();
+
+  private final AtomicLong startedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong callerRunsCount = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+  private final AtomicLong maxWaitMillis = new AtomicLong();
+
+  public MessageQueue(int workerThreads, int capacity, OverflowPolicy overflowPolicy) {
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.executor =
+        new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            BackgroundThreads.newThreadFactory("message-worker-%d"));
+    this.conversations = new ConversationExecutor(executor);
+  }
+
+  /**
+   * Queues a task to be run by a worker thread after the tasks already queued for the same
+   * conversation. If the queue is full the overflow policy decides whether the calling thread waits
+   * for the task to run or the task is refused. Either way, tasks of a conversation never run out
+   * of order.
+   *
+   * @param conversationId The conversation the task belongs to.
+   * @param task The task to run.
+   * @return True if the task was queued or run, false if it was refused.
+   */
+  public boolean submit(String conversationId, Runnable task) {
+    if (queueDepth.incrementAndGet() > capacity) {
+      queueDepth.decrementAndGet();
+      return overflow(conversationId, task);
+    }
+
+    long enqueuedAt = System.nanoTime();
+    try {
+      conversations.execute(
+          conversationId,
+          () -> {
+            queueDepth.decrementAndGet();
+            recordWait(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueuedAt));
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              logger.log(Level.SEVERE, "Exception thrown while processing queued message.", e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // the queue is shutting down
+      queueDepth.decrementAndGet();
+      rejectedCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean overflow(String conversationId, Runnable task) {
+    if (overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+      return runAndWait(conversationId, task);
+    }
+
+    long rejected = rejectedCount.incrementAndGet();
+    logger.warning(
+        "Message queue full at " + capacity + " tasks, rejected " + rejected + " so far.");
+    return false;
+  }
+
+  /**
+   * Runs the task in its turn for the conversation, beyond the capacity of the queue, and blocks
+   * until it has run. Running it on the calling thread instead could overtake or overlap earlier
+   * tasks of the same conversation that are still queued.
+   */
+  private boolean runAndWait(String conversationId, Runnable task) {
+    CountDownLatch done = new CountDownLatch(1);
+    try {
+      conversations.execute(
+          conversationId,
+          () -> {
+            try {
+              task.run();
+            } catch (RuntimeException e) {
+              logger.log(Level.SEVERE, "Exception thrown while processing overflow message.", e);
+            } finally {
+              done.countDown();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // the queue is shutting down
+      rejectedCount.incrementAndGet();
+      return false;
+    }
+
+    callerRunsCount.incrementAndGet();
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      // the task stays queued and still runs
+      Thread.currentThread().interrupt();
+    }
+    return true;
+  }
+
+  private void recordWait(long waitMillis) {
+    startedCount.incrementAndGet();
+    totalWaitMillis.addAndGet(waitMillis);
+    long max = maxWaitMillis.get();
+    while (waitMillis > max && !maxWaitMillis.compareAndSet(max, waitMillis)) {
+      max = maxWaitMillis.get();
+    }
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to finish.
+   *
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of the timeout.
+   * @return True if all queued tasks finished, false if the timeout elapsed first.
+   */
+  public boolean shutdown(long timeout, TimeUnit unit) {
+    executor.shutdown();
+    try {
+      boolean drained = executor.awaitTermination(timeout, unit);
+      logger.info(
+          "Message queue shut down, drained: "
+              + drained
+              + ", remaining: "
+              + queueDepth.get()
+              + ", average wait: "
+              + getAverageWaitMillis()
+              + " ms.");
+      return drained;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Gets the number of tasks waiting for a worker.
+   *
+   * @return The queue depth.
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Gets the number of tasks refused because the queue was full or shutting down.
+   *
+   * @return The number of refused tasks.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Gets the number of tasks the submitting thread waited for because the queue was full.
+   *
+   * @return The number of tasks run by callers.
+   */
+  public long getCallerRunsCount() {
+    return callerRunsCount.get();
+  }
+
+  /**
+   * Gets the average time tasks waited in the queue before a worker started them.
+   *
+   * @return The average wait in milliseconds.
+   */
+  public long getAverageWaitMillis() {
+    long started = startedCount.get();
+    return started == 0 ? 0 : totalWaitMillis.get() / started;
+  }
+
+  /**
+   * Gets the longest time a task waited in the queue before a worker started it.
+   *
+   * @return The maximum wait in milliseconds.
+   */
+  public long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+}
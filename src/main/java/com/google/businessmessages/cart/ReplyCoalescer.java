@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.common.util.concurrent.Striped;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Merges text replies sent to the same conversation within a short window into a single message,
+ * so a burst of taps produces one reply instead of one per tap.
+ *
+ * <p>A pending text reply is sent once no further text reply has arrived for the window, or once
+ * the oldest reply has waited for the maximum delay. The merged message keeps the suggestions of
+ * the latest reply. Any other message, such as a rich card, first sends the pending text reply so
+ * the user sees messages in the order the bot produced them.
+ *
+ * <p>A single scheduler thread only times the flushes. Replies flushed once their window ends are
+ * posted from a pool, so one slow API call does not hold up the replies of other conversations.
+ */
+public class ReplyCoalescer {
+
+  /** Posts a message to a conversation. */
+  public interface Sender {
+    void send(BusinessMessagesMessage message, String conversationId);
+  }
+
+  private static final Logger logger = Logger.getLogger(ReplyCoalescer.class.getName());
+
+  // The most replies flushed by the scheduler that are posted at once
+  private static final int POSTING_THREADS = 8;
+
+  // How long shutdown waits for replies being posted
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final Sender sender;
+  private final long windowMillis;
+  private final long maxDelayMillis;
+  // Times the flushes of pending replies, or null to send every reply right away
+  private final ScheduledExecutorService scheduler;
+  // Posts the replies flushed by the scheduler, or null along with the scheduler
+  private final ExecutorService poster;
+
+  // Text replies waiting to be sent, by conversation
+  private final ConcurrentHashMap<String, PendingReply> pendingReplies = new ConcurrentHashMap<>();
+
+  // Serializes sends to the same conversation
+  private final Striped<Lock> sendLocks = Striped.lock(64);
+
+  private final AtomicLong repliesReceived = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+
+  /** Text replies collected for one conversation. */
+  private static class PendingReply {
+    private final List<BusinessMessagesMessage> messages = new ArrayList<>();
+    private final long firstQueuedAt;
+    private ScheduledFuture<?> flush;
+
+    private PendingReply(long firstQueuedAt) {
+      this.firstQueuedAt = firstQueuedAt;
+    }
+  }
+
+  /**
+   * Creates a ReplyCoalescer.
+   *
+   * @param sender Posts the merged messages.
+   * @param windowMillis How long to wait for another text reply, 0 to send every reply right away.
+   *     Replies are also sent right away without background threads to flush them.
+   * @param maxDelayMillis The longest a text reply may be held back.
+   */
+  public ReplyCoalescer(Sender sender, long windowMillis, long maxDelayMillis) {
+    this.sender = sender;
+    this.maxDelayMillis = maxDelayMillis;
+    this.scheduler =
+        windowMillis > 0 ? BackgroundThreads.newScheduler(1, "reply-coalescer-%d") : null;
+    this.windowMillis = scheduler == null ? 0 : windowMillis;
+    this.poster =
+        scheduler == null
+            ? null
+            : Executors.newFixedThreadPool(
+                POSTING_THREADS, BackgroundThreads.newThreadFactory("reply-poster-%d"));
+  }
+
+  /**
+   * Sends the message, holding text replies back to merge them with the ones that follow.
+   *
+   * @param message The message to send.
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  public void send(BusinessMessagesMessage message, String conversationId) {
+    repliesReceived.incrementAndGet();
+
+    if (windowMillis <= 0) {
+      post(message, conversationId);
+      return;
+    }
+
+    if (message.getText() == null) {
+      Lock lock = sendLocks.get(conversationId);
+      lock.lock();
+      try {
+        flush(conversationId);
+        post(message, conversationId);
+      } finally {
+        lock.unlock();
+      }
+      return;
+    }
+
+    pendingReplies.compute(
+        conversationId,
+        (id, reply) -> {
+          long now = System.currentTimeMillis();
+          if (reply == null) {
+            reply = new PendingReply(now);
+          } else {
+            reply.flush.cancel(false);
+          }
+          reply.messages.add(message);
+
+          long delay = Math.min(windowMillis, reply.firstQueuedAt + maxDelayMillis - now);
+          reply.flush =
+              scheduler.schedule(() -> postLater(id), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+          return reply;
+        });
+  }
+
+  /**
+   * Whether a text reply to the conversation is held back to be merged with the ones that follow.
+   * Waits for a reply of the conversation being posted, so once this returns false, every reply
+   * handed to the coalescer so far has been posted.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @return True if a reply is still to be posted.
+   */
+  public boolean isHoldingBack(String conversationId) {
+    Lock lock = sendLocks.get(conversationId);
+    lock.lock();
+    try {
+      return pendingReplies.containsKey(conversationId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void postLater(String conversationId) {
+    try {
+      poster.execute(() -> flushLocked(conversationId));
+    } catch (RejectedExecutionException e) {
+      // shutting down, the reply is still sent
+      flushLocked(conversationId);
+    }
+  }
+
+  private void flushLocked(String conversationId) {
+    Lock lock = sendLocks.get(conversationId);
+    lock.lock();
+    try {
+      flush(conversationId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flush(String conversationId) {
+    PendingReply reply = pendingReplies.remove(conversationId);
+    if (reply == null) {
+      return;
+    }
+    reply.flush.cancel(false);
+    post(merge(reply.messages), conversationId);
+  }
+
+  private void post(BusinessMessagesMessage message, String conversationId) {
+    messagesSent.incrementAndGet();
+    sender.send(message, conversationId);
+  }
+
+  private static BusinessMessagesMessage merge(List<BusinessMessagesMessage> messages) {
+    BusinessMessagesMessage latest = messages.get(messages.size() - 1);
+    if (messages.size() == 1) {
+      return latest;
+    }
+
+    StringBuilder text = new StringBuilder();
+    for (BusinessMessagesMessage message : messages) {
+      if (text.length() > 0) {
+        text.append("\n\n");
+      }
+      text.append(message.getText());
+    }
+
+    return new BusinessMessagesMessage()
+        .setMessageId(latest.getMessageId())
+        .setText(text.toString())
+        .setRepresentative(latest.getRepresentative())
+        .setFallback(text.toString())
+        .setSuggestions(latest.getSuggestions());
+  }
+
+  /** Sends all pending replies, waits for the ones being posted and stops the scheduler. */
+  public void shutdown() {
+    for (String conversationId : pendingReplies.keySet()) {
+      flushLocked(conversationId);
+    }
+    if (scheduler == null) {
+      return;
+    }
+    scheduler.shutdown();
+    poster.shutdown();
+    try {
+      if (!poster.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warning("Replies still being posted after the shutdown timeout.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Gets the number of replies handed to the coalescer.
+   *
+   * @return The number of replies received.
+   */
+  public long getRepliesReceived() {
+    return repliesReceived.get();
+  }
+
+  /**
+   * Gets the number of messages posted after merging.
+   *
+   * @return The number of messages sent.
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs work in a Datastore transaction and runs it again in a new transaction when it fails on
+ * contention with another transaction on the same entity group.
+ *
+ * <p>Attempts are spaced out with capped exponential backoff and full jitter, so writers racing on
+ * a cart do not collide again in lockstep. A commit reported as failed may still have been
+ * applied, so work that is not idempotent must check for its own earlier attempt, e.g. a marker
+ * entity written in the same transaction.
+ */
+public class TransactionRunner {
+
+  private static final Logger logger = Logger.getLogger(TransactionRunner.class.getName());
+
+  // Keeps the backoff shift from overflowing
+  private static final int MAX_BACKOFF_SHIFT = 20;
+
+  private final DatastoreService datastore;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  private final AtomicLong transactions = new AtomicLong();
+  private final AtomicLong contentions = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong exhausted = new AtomicLong();
+
+  /** Work done in a transaction. It may be run more than once. */
+  public interface Work<T> {
+
+    /**
+     * Does the work. The transaction is committed by the runner once the work returns.
+     *
+     * @param transaction The transaction to read and write in.
+     * @return The result of the work.
+     */
+    T run(Transaction transaction);
+  }
+
+  /**
+   * Creates a TransactionRunner.
+   *
+   * @param datastore The Datastore service to begin transactions on.
+   * @param maxAttempts The maximum number of times the work is run.
+   * @param initialBackoffMillis The longest wait before the first retry.
+   * @param maxBackoffMillis The longest wait before any retry.
+   */
+  public TransactionRunner(
+      DatastoreService datastore,
+      int maxAttempts,
+      long initialBackoffMillis,
+      long maxBackoffMillis) {
+    this.datastore = datastore;
+    this.maxAttempts = Math.max(maxAttempts, 1);
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Runs the work in a transaction and commits it, retrying on contention.
+   *
+   * @param work The work to run.
+   * @return The result of the attempt that committed.
+   * @throws ConcurrentModificationException If every attempt failed on contention.
+   */
+  public <T> T run(Work<T> work) {
+    return run(TransactionOptions.Builder.withDefaults(), work);
+  }
+
+  /**
+   * Runs the work like {@link #run(Work)}, in transactions with the given options, e.g. to span
+   * several entity groups.
+   *
+   * @param options The options of each transaction.
+   * @param work The work to run.
+   * @return The result of the attempt that committed.
+   * @throws ConcurrentModificationException If every attempt failed on contention.
+   */
+  public <T> T run(TransactionOptions options, Work<T> work) {
+    transactions.incrementAndGet();
+    for (int attempt = 1; ; attempt++) {
+      ConcurrentModificationException contention;
+      Transaction transaction = datastore.beginTransaction(options);
+      try {
+        T result = work.run(transaction);
+        UnitOfWork.recordRpc();
+        transaction.commit();
+        return result;
+      } catch (ConcurrentModificationException e) {
+        contention = e;
+      } finally {
+        if (transaction.isActive()) {
+          UnitOfWork.recordRpc();
+          transaction.rollback();
+        }
+      }
+
+      // the failed transaction is rolled back before waiting
+      contentions.incrementAndGet();
+      if (attempt >= maxAttempts || !backOff(attempt)) {
+        exhausted.incrementAndGet();
+        throw contention;
+      }
+      retries.incrementAndGet();
+      logger.fine("Retrying transaction after contention, attempt " + (attempt + 1));
+    }
+  }
+
+  /**
+   * Waits a random time up to the capped exponential backoff of the attempt.
+   *
+   * @return False if the wait was interrupted.
+   */
+  private boolean backOff(int attempt) {
+    long ceiling =
+        Math.min(
+            maxBackoffMillis,
+            initialBackoffMillis << Math.min(attempt - 1, MAX_BACKOFF_SHIFT));
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Gets the number of transactions run, however many attempts each took.
+   *
+   * @return The number of transactions.
+   */
+  public long getTransactions() {
+    return transactions.get();
+  }
+
+  /**
+   * Gets the number of attempts that failed on contention.
+   *
+   * @return The number of contended attempts.
+   */
+  public long getContentions() {
+    return contentions.get();
+  }
+
+  /**
+   * Gets the number of attempts made after the first one of a transaction.
+   *
+   * @return The number of retries.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * Gets the number of transactions given up on after contention.
+   *
+   * @return The number of transactions that ran out of attempts.
+   */
+  public long getExhausted() {
+    return exhausted.get();
+  }
+}
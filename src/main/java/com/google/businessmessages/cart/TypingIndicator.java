@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.api.services.businessmessages.v1.Businessmessages;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesEvent;
+import com.google.communications.businessmessages.v1.EventType;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends typing indicator events around the bot's replies without blocking them.
+ *
+ * <p>Indicator events are sent in the background. Depending on the policy, TYPING_STARTED is sent
+ * right away, only if the reply has not been sent within a deadline, or never. TYPING_STOPPED is
+ * only sent when the indicator may still be showing, since delivering the reply ends it.
+ *
+ * <p>Without background threads, events are sent on the calling thread, and the DEADLINE policy
+ * sends no TYPING_STARTED since nothing can wait for the deadline.
+ */
+public class TypingIndicator {
+
+  /** When TYPING_STARTED is sent for a reply. */
+  public enum Policy {
+    // As soon as the bot starts preparing the reply
+    ALWAYS,
+    // Only if the reply has not been sent within the deadline
+    DEADLINE,
+    // Never
+    NEVER
+  }
+
+  private static final Logger logger = Logger.getLogger(TypingIndicator.class.getName());
+
+  // Number of indicator calls made per reply without any policy
+  private static final int CALLS_PER_REPLY = 2;
+
+  // States of the TYPING_STARTED event for a reply
+  private static final int PENDING = 0;
+  private static final int SENDING = 1;
+  private static final int SENT = 2;
+  private static final int CANCELLED = 3;
+
+  private final Businessmessages bmApi;
+  private final Policy policy;
+  private final long deadlineMillis;
+  // Sends the events, or null to send them on the calling thread
+  private final ScheduledExecutorService scheduler;
+
+  // State of the TYPING_STARTED event for each reply being prepared
+  private final ConcurrentHashMap<String, AtomicInteger> replies = new ConcurrentHashMap<>();
+
+  private final AtomicLong callsMade = new AtomicLong();
+  private final AtomicLong callsSaved = new AtomicLong();
+
+  public TypingIndicator(Businessmessages bmApi, Policy policy, long deadlineMillis) {
+    this.bmApi = bmApi;
+    this.policy = policy;
+    this.deadlineMillis = deadlineMillis;
+    this.scheduler = BackgroundThreads.newScheduler(2, "typing-%d");
+  }
+
+  /**
+   * Called when the bot starts preparing a reply in the conversation. If the previous reply is
+   * still held back to be merged with this one, both share its indicator.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  public void replyStarted(String conversationId) {
+    AtomicInteger state = new AtomicInteger(PENDING);
+    if (replies.putIfAbsent(conversationId, state) != null) {
+      return;
+    }
+
+    if (policy == Policy.ALWAYS) {
+      execute(() -> sendStarted(conversationId, state));
+    } else if (policy == Policy.DEADLINE && scheduler != null) {
+      try {
+        scheduler.schedule(
+            () -> sendStarted(conversationId, state), deadlineMillis, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to schedule the typing indicator.", e);
+      }
+    }
+  }
+
+  /**
+   * Called right before the reply is posted. Cancels a TYPING_STARTED event that has not been sent
+   * yet.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   */
+  public void replySending(String conversationId) {
+    AtomicInteger state = replies.get(conversationId);
+    if (state != null) {
+      state.compareAndSet(PENDING, CANCELLED);
+    }
+  }
+
+  /**
+   * Called after the reply has been posted, successfully or not, or once the bot is done with a
+   * message it did not reply to. TYPING_STOPPED is only sent if the reply failed or its
+   * TYPING_STARTED event may have been delivered after it. Does nothing if the reply was already
+   * finished.
+   *
+   * @param conversationId The conversation ID that uniquely maps to the user and agent.
+   * @param delivered Whether the reply was accepted by the API.
+   */
+  public void replyFinished(String conversationId, boolean delivered) {
+    AtomicInteger state = replies.remove(conversationId);
+    if (state == null) {
+      return;
+    }
+
+    // nothing was posted yet, so make sure TYPING_STARTED is not sent either
+    state.compareAndSet(PENDING, CANCELLED);
+    int startedState = state.get();
+    if (startedState == CANCELLED) {
+      callsSaved.addAndGet(CALLS_PER_REPLY);
+    } else if (startedState == SENT && delivered) {
+      // the reply ended the indicator
+      callsSaved.incrementAndGet();
+    } else {
+      execute(() -> sendEvent(conversationId, EventType.TYPING_STOPPED));
+    }
+  }
+
+  /** Runs indicator work in the background, or on the calling thread if it cannot be. */
+  private void execute(Runnable task) {
+    if (scheduler != null) {
+      try {
+        scheduler.execute(task);
+        return;
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to send the typing indicator in the background.", e);
+      }
+    }
+    task.run();
+  }
+
+  private void sendStarted(String conversationId, AtomicInteger state) {
+    if (state.compareAndSet(PENDING, SENDING)) {
+      sendEvent(conversationId, EventType.TYPING_STARTED);
+      state.set(SENT);
+    }
+  }
+
+  private void sendEvent(String conversationId, EventType eventType) {
+    try {
+      Businessmessages.Conversations.Events.Create request =
+          bmApi
+              .conversations()
+              .events()
+              .create(
+                  "conversations/" + conversationId,
+                  new BusinessMessagesEvent().setEventType(eventType.toString()));
+
+      request.setEventId(UUID.randomUUID().toString());
+      request.execute();
+      callsMade.incrementAndGet();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Exception thrown while sending " + eventType + " event.", e);
+    }
+  }
+
+  /** Stops sending indicator events. */
+  public void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the number of indicator events sent.
+   *
+   * @return The number of indicator calls made.
+   */
+  public long getCallsMade() {
+    return callsMade.get();
+  }
+
+  /**
+   * Gets the number of indicator events skipped compared to sending both events for every reply.
+   *
+   * @return The number of indicator calls saved.
+   */
+  public long getCallsSaved() {
+    return callsSaved.get();
+  }
+}
@@ -38,15 +38,18 @@ public class UIManager {
   private static final Logger logger = Logger.getLogger(Cart.class.getName());
 
   /**
-   * Creates the default menu items for responses.
+   * Creates the default menu items for responses. Only whether the cart is empty is needed, so
+   * the menu is built from the summary of the cart rather than its items.
    *
+   * @param representative The representative sending the menu.
+   * @param cartSummary The summary of the user's cart.
    * @return List of suggestions to form a menu.
    */
   public static List<BusinessMessagesSuggestion> getDefaultMenu(
-      BusinessMessagesRepresentative representative, Cart userCart) {
+      BusinessMessagesRepresentative representative, CartSummary cartSummary) {
     List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
 
-    if (!userCart.getItems().isEmpty()) {
+    if (!cartSummary.isEmpty()) {
       suggestions.add(
           new BusinessMessagesSuggestion()
               .setReply(
@@ -60,6 +63,13 @@ public class UIManager {
                   new BusinessMessagesSuggestedReply()
                       .setText(BotConstants.CONTINUE_SHOPPING_TEXT)
                       .setPostbackData(BotConstants.SHOP_COMMAND)));
+
+      suggestions.add(
+          new BusinessMessagesSuggestion()
+              .setReply(
+                  new BusinessMessagesSuggestedReply()
+                      .setText(BotConstants.CLEAR_CART_TEXT)
+                      .setPostbackData(BotConstants.CLEAR_CART_COMMAND)));
     } else {
       suggestions.add(
           new BusinessMessagesSuggestion()
@@ -139,15 +149,30 @@ public class UIManager {
                 .setPostbackData(BotConstants.HELP_TEXT));
   }
 
+  /**
+   * Creates the suggestion that shows the next page of the user's cart.
+   *
+   * @param page The page of the cart being shown, which has a next page.
+   * @return The suggestion.
+   */
+  public static BusinessMessagesSuggestion getMoreItemsSuggestion(CartPage page) {
+    return new BusinessMessagesSuggestion()
+        .setReply(
+            new BusinessMessagesSuggestedReply()
+                .setText(String.format(BotConstants.MORE_ITEMS_TEXT, page.getTotalCount()))
+                .setPostbackData(BotConstants.VIEW_CART_PAGE_COMMAND + page.getNextCursor()));
+  }
+
   /**
    * Creates a single cart card.
    *
+   * @param page The page of the user's cart with the item.
    * @return A standalone cart item card.
    */
   public static BusinessMessagesStandaloneCard getCartCard(
-      Inventory storeInventory, Cart userCart) {
+      Inventory storeInventory, CartPage page) {
     BusinessMessagesCardContent card = null;
-    for (CartItem currentItem : userCart.getItems()) {
+    for (CartItem currentItem : page.getItems()) {
       try {
         InventoryItem itemInStore = storeInventory.getItem(currentItem.getId()).get();
         card =
@@ -199,15 +224,16 @@ public class UIManager {
   }
 
   /**
-   * Creates a rich card carousel out of items in the user's cart.
+   * Creates a rich card carousel out of items on a page of the user's cart.
    *
+   * @param page The page of the user's cart.
    * @return A carousel rich card.
    */
   public static BusinessMessagesCarouselCard getCartCarousel(
-      Inventory storeInventory, Cart userCart) {
+      Inventory storeInventory, CartPage page) {
     List<BusinessMessagesCardContent> cardContents = new ArrayList<>();
 
-    for (CartItem currentItem : userCart.getItems()) {
+    for (CartItem currentItem : page.getItems()) {
       try {
         InventoryItem itemInStore = storeInventory.getItem(currentItem.getId()).get();
         cardContents.add(
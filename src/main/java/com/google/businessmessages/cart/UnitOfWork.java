@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request-scoped identity map in front of {@link DataManager} and {@link AsyncDataManager}. While
+ * a unit is open on a thread, every cart, item and list of cart items read outside a transaction
+ * is kept, so the same entity is read from Datastore at most once however many steps of a command
+ * need it. A cart whose list of items was read completely also answers lookups of items it does
+ * not hold.
+ *
+ * <p>Mutations still run in their own transactions, which read from Datastore and write all their
+ * entities in one batch on commit. A committed or failed mutation drops its cart from the unit, so
+ * later reads in the request see the new cart. The unit also counts the calls made to Datastore,
+ * so the cost of each command can be reported.
+ *
+ * <p>Entities served from the unit are shared by the steps of the request and must not be changed.
+ */
+public class UnitOfWork implements AutoCloseable {
+
+  private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+  // Entities read by key, with null values for keys known to have no entity
+  private final Map<Key, Entity> entities = new HashMap<>();
+  // The items of carts, by cart key, at most DataManager.MAX_CART_LIMIT of them
+  private final Map<Key, List<Entity>> cartItems = new HashMap<>();
+  // Carts whose items were all read, so an item missing from them is not in the cart
+  private final Set<Key> completeCarts = new HashSet<>();
+
+  private int rpcs;
+  private int hits;
+
+  private UnitOfWork() {}
+
+  /**
+   * Opens a unit of work on this thread, to be closed once the request is done.
+   *
+   * @return The new unit of work.
+   * @throws IllegalStateException If a unit is already open on this thread.
+   */
+  public static UnitOfWork begin() {
+    if (CURRENT.get() != null) {
+      throw new IllegalStateException("A unit of work is already open on this thread.");
+    }
+    UnitOfWork work = new UnitOfWork();
+    CURRENT.set(work);
+    return work;
+  }
+
+  /**
+   * Gets the unit of work open on this thread.
+   *
+   * @return The unit of work, or null if none is open.
+   */
+  public static UnitOfWork current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Wraps a Datastore service so every call made through it while a unit is open on the calling
+   * thread is counted by that unit. A query counts once when it is prepared, however many batches
+   * it fetches.
+   *
+   * @param service The Datastore service.
+   * @param type The interface of the service.
+   * @return The counting service.
+   */
+  static <T> T counting(T service, Class<T> type) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              if (!method.getName().startsWith("getCurrent")
+                  && !method.getName().equals("getActiveTransactions")
+                  && method.getDeclaringClass() != Object.class) {
+                recordRpc();
+              }
+              try {
+                return method.invoke(service, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            }));
+  }
+
+  /** Counts a call to Datastore made outside the services, e.g. a transaction commit. */
+  static void recordRpc() {
+    UnitOfWork work = CURRENT.get();
+    if (work != null) {
+      work.rpcs++;
+    }
+  }
+
+  /**
+   * Whether the entity with the given key, or its absence, is known to the unit.
+   *
+   * @param key The key of the entity.
+   * @return True if {@link #get} answers for the key.
+   */
+  public boolean contains(Key key) {
+    return entities.containsKey(key)
+        || (key.getParent() != null && completeCarts.contains(key.getParent()));
+  }
+
+  /**
+   * Gets an entity known to the unit.
+   *
+   * @param key The key of the entity.
+   * @return The entity, or null if it is known not to exist.
+   */
+  public Entity get(Key key) {
+    hits++;
+    return entities.get(key);
+  }
+
+  /**
+   * Keeps an entity read by key, or its absence.
+   *
+   * @param key The key of the entity.
+   * @param entity The entity, or null if there is none.
+   */
+  public void put(Key key, Entity entity) {
+    entities.put(key, entity);
+  }
+
+  /**
+   * Gets the items of a cart read earlier in the request.
+   *
+   * @param cartKey The key of the cart.
+   * @return The items, or null if they were not read.
+   */
+  public List<Entity> getItems(Key cartKey) {
+    List<Entity> items = cartItems.get(cartKey);
+    if (items != null) {
+      hits++;
+    }
+    return items;
+  }
+
+  /**
+   * Keeps the items of a cart, read by an ancestor query.
+   *
+   * @param cartKey The key of the cart.
+   * @param items The items read.
+   * @param complete Whether these are all items of the cart.
+   */
+  public void putItems(Key cartKey, List<Entity> items, boolean complete) {
+    cartItems.put(cartKey, items);
+    for (Entity item : items) {
+      entities.put(item.getKey(), item);
+    }
+    if (complete) {
+      completeCarts.add(cartKey);
+    }
+  }
+
+  /**
+   * Drops a cart, its items and everything known about them, e.g. after a mutation of the cart.
+   *
+   * @param cartKey The key of the cart.
+   */
+  public void invalidateCart(Key cartKey) {
+    entities.remove(cartKey);
+    cartItems.remove(cartKey);
+    completeCarts.remove(cartKey);
+    Iterator<Key> keys = entities.keySet().iterator();
+    while (keys.hasNext()) {
+      if (cartKey.equals(keys.next().getParent())) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of calls made to Datastore while the unit was open.
+   *
+   * @return The number of calls.
+   */
+  public int getRpcs() {
+    return rpcs;
+  }
+
+  /**
+   * Gets the number of reads served by the unit instead of Datastore.
+   *
+   * @return The number of reads saved.
+   */
+  public int getHits() {
+    return hits;
+  }
+
+  /** Closes the unit, dropping everything it holds. */
+  @Override
+  public void close() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+}
@@ -0,0 +1,675 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers the changes to carts in memory and writes them to Datastore behind the reply, so a burst
+ * of changes to a cart becomes a single transaction rather than one per change.
+ *
+ * <p>A changed cart is kept on this instance, which serves it from memory and is the authority for
+ * it until its changes are written. The changes are coalesced into the net change of each item,
+ * and written when the oldest of them is as old as the flush window, when the number of buffered
+ * changes reaches the flush threshold, and when the store is closed. Changes buffered when the
+ * instance dies are lost, so the window bounds how much is lost.
+ *
+ * <p>While a cart has buffered changes, a marker in memcache names the instance holding them.
+ * Another instance reading the cart waits for the marker to be cleared by the flush, for at most
+ * twice the window, before it reads the cart from Datastore.
+ *
+ * <p>A flush records the ids of the messages whose changes it writes in Datastore, so a message
+ * redelivered to another instance is not applied again. A cart with more items than are read with
+ * it is not buffered, and its changes are written right away.
+ */
+public class WriteBehindCartStore implements CartStore, Closeable {
+
+  private static final Logger logger = Logger.getLogger(WriteBehindCartStore.class.getName());
+
+  // Prefix for the memcache markers of carts with buffered changes
+  private static final String PENDING_KEY_PREFIX = "cart-pending:";
+
+  // Suffix of the mutation id a batch clears its cart with, before writing its items
+  private static final String CLEAR_SUFFIX = ":clear";
+
+  // Attempts at writing a batch before its changes are dropped
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+
+  // Time added to the wait of other instances for a flush to finish
+  private static final long FLUSH_GRACE_MILLIS = 1000;
+
+  // Interval at which another instance checks whether the flush has finished
+  private static final long POLL_MILLIS = 20;
+
+  private static final int LOCK_STRIPES = 64;
+  private static final int MAX_APPLIED_MUTATIONS = 10000;
+
+  private final CartStore store;
+  private final long windowMillis;
+  private final int maxBufferedChanges;
+  private final String instanceId = UUID.randomUUID().toString();
+
+  private final ConcurrentMap<String, BufferedCart> bufferedCarts = new ConcurrentHashMap<>();
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  private final Cache<String, Boolean> appliedMutations =
+      CacheBuilder.newBuilder().maximumSize(MAX_APPLIED_MUTATIONS).build();
+  private final MemcacheService pendingMarkers;
+  private final ScheduledExecutorService flusher;
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  private final AtomicLong bufferedChanges = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong totalFlushMillis = new AtomicLong();
+  private final AtomicLong maxFlushMillis = new AtomicLong();
+  private final AtomicLong writtenBatches = new AtomicLong();
+  private final AtomicLong writtenChanges = new AtomicLong();
+  private final AtomicLong changesSaved = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private final AtomicLong droppedBatches = new AtomicLong();
+  private final AtomicLong remoteWaits = new AtomicLong();
+
+  /** A cart with changes not yet written to Datastore. Guarded by the lock of the cart. */
+  private static class BufferedCart {
+    // The cart including the buffered changes
+    private volatile Cart cart;
+    // A batch whose write failed, written again before the pending one
+    private Batch failed;
+    // The changes made since the last flush, or null
+    private Batch pending;
+
+    private BufferedCart(Cart cart) {
+      this.cart = cart;
+    }
+  }
+
+  /** The net changes to a cart written together, at most once for the id of the batch. */
+  private static class Batch {
+    private final String batchId = UUID.randomUUID().toString();
+    private final Map<String, Integer> deltas = new TreeMap<>();
+    private final Map<String, String> itemTitles = new HashMap<>();
+    // The ids of the messages whose changes are in the batch
+    private final List<String> messageIds = new ArrayList<>();
+    private boolean cleared;
+    // The number of changes coalesced into the batch
+    private int changes;
+    private int attempts;
+
+    /**
+     * Adds the change from one cart to the next to the batch.
+     *
+     * @return The number of item changes made, the clear counting as one.
+     */
+    private int add(Cart before, Cart after, boolean clear) {
+      if (clear) {
+        deltas.clear();
+        itemTitles.clear();
+        cleared = true;
+        changes++;
+        return 1;
+      }
+
+      Map<String, CartItem> beforeItems = byId(before);
+      Map<String, CartItem> afterItems = byId(after);
+      int made = 0;
+      Set<String> itemIds = new TreeSet<>(beforeItems.keySet());
+      itemIds.addAll(afterItems.keySet());
+      for (String itemId : itemIds) {
+        CartItem old = beforeItems.get(itemId);
+        CartItem item = afterItems.get(itemId);
+        int delta = (item == null ? 0 : item.getCount()) - (old == null ? 0 : old.getCount());
+        if (delta == 0) {
+          continue;
+        }
+        if (deltas.merge(itemId, delta, Integer::sum) == 0) {
+          deltas.remove(itemId);
+        }
+        if (item != null) {
+          itemTitles.put(itemId, item.getTitle());
+        }
+        made++;
+      }
+      changes += made;
+      return made;
+    }
+
+    /** Adds a newer batch that has not been written yet to this one. */
+    private Batch merge(Batch newer) {
+      if (newer == null) {
+        return this;
+      }
+      if (newer.cleared) {
+        newer.changes += changes;
+        newer.messageIds.addAll(0, messageIds);
+        return newer;
+      }
+      for (Map.Entry<String, Integer> delta : newer.deltas.entrySet()) {
+        if (deltas.merge(delta.getKey(), delta.getValue(), Integer::sum) == 0) {
+          deltas.remove(delta.getKey());
+        }
+      }
+      itemTitles.putAll(newer.itemTitles);
+      messageIds.addAll(newer.messageIds);
+      changes += newer.changes;
+      return this;
+    }
+
+    /** The number of writes the batch makes, the clear counting as one. */
+    private int size() {
+      return deltas.size() + (cleared ? 1 : 0);
+    }
+  }
+
+  /**
+   * Creates a WriteBehindCartStore.
+   *
+   * @param store The store carts are read from when this instance holds no changes to them.
+   * @param windowMillis The longest time a change is buffered before its flush starts.
+   * @param maxBufferedChanges The number of buffered changes that starts a flush right away.
+   */
+  public WriteBehindCartStore(CartStore store, long windowMillis, int maxBufferedChanges) {
+    this.store = store;
+    this.windowMillis = Math.max(windowMillis, 1);
+    this.maxBufferedChanges = Math.max(maxBufferedChanges, 1);
+    this.pendingMarkers = MemcacheServiceFactory.getMemcacheService();
+    this.pendingMarkers.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.WARNING));
+    this.flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            BackgroundThreads.newThreadFactory("cart-flusher-%d"));
+    flusher.scheduleWithFixedDelay(
+        this::flush, this.windowMillis, this.windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public Cart getOrCreateCart(String cartId) {
+    BufferedCart buffered = bufferedCarts.get(cartId);
+    if (buffered != null) {
+      return buffered.cart;
+    }
+    waitForOtherInstance(cartId);
+    return store.getOrCreateCart(cartId);
+  }
+
+  @Override
+  public CartSummary getCartSummary(String cartId) {
+    BufferedCart buffered = bufferedCarts.get(cartId);
+    if (buffered != null) {
+      return CartSummary.of(buffered.cart);
+    }
+    waitForOtherInstance(cartId);
+    return store.getCartSummary(cartId);
+  }
+
+  @Override
+  public CartPage getCartPage(String cartId, String cursor, int pageSize) {
+    BufferedCart buffered = bufferedCarts.get(cartId);
+    if (buffered != null) {
+      return CartPage.of(buffered.cart.getItems(), cursor, pageSize);
+    }
+    waitForOtherInstance(cartId);
+    return store.getCartPage(cartId, cursor, pageSize);
+  }
+
+  @Override
+  public Iterable<CartItem> getAllItems(String cartId) {
+    BufferedCart buffered = bufferedCarts.get(cartId);
+    if (buffered != null) {
+      return buffered.cart.getItems();
+    }
+    waitForOtherInstance(cartId);
+    return store.getAllItems(cartId);
+  }
+
+  @Override
+  public Cart applyItemDeltas(
+      Cart cart, Map<String, Integer> deltas, Map<String, String> itemTitles, String mutationId) {
+    return update(
+        cart.getId(),
+        mutationId,
+        false,
+        current -> current.withDeltas(deltas, itemTitles, current.getVersion()),
+        current -> store.applyItemDeltas(current, deltas, itemTitles, mutationId));
+  }
+
+  @Override
+  public Cart clearCart(Cart cart, String mutationId) {
+    return update(
+        cart.getId(),
+        mutationId,
+        true,
+        current -> new Cart(current.getId(), ImmutableList.of(), current.getVersion()),
+        current -> store.clearCart(current, mutationId));
+  }
+
+  /**
+   * Changes the cart in memory and buffers the change. The version of a buffered cart stays the
+   * version it was read at until its changes are written.
+   *
+   * @param cartId The unique identifier of the cart.
+   * @param mutationId The id of the inbound message causing the change, or null.
+   * @param clear Whether the change clears the cart.
+   * @param change Makes the change to the cart in memory.
+   * @param writeThrough Writes the change to the store right away, for a cart that is not buffered.
+   * @return The cart after the change.
+   */
+  private Cart update(
+      String cartId,
+      String mutationId,
+      boolean clear,
+      UnaryOperator<Cart> change,
+      UnaryOperator<Cart> writeThrough) {
+    if (!bufferedCarts.containsKey(cartId)) {
+      // wait before taking the lock, so the other carts of the stripe are not held up
+      waitForOtherInstance(cartId);
+    }
+    if (mutationId != null
+        && !isApplied(cartId, mutationId)
+        && DataManager.getInstance().isMutationApplied(cartId, mutationId)) {
+      // the message was applied by another instance
+      appliedMutations.put(getMutationKey(cartId, mutationId), Boolean.TRUE);
+      return getOrCreateCart(cartId);
+    }
+
+    Cart changed;
+    int made;
+    Cart unbuffered = null;
+    Lock lock = locks.get(cartId);
+    lock.lock();
+    try {
+      BufferedCart buffered = bufferedCarts.get(cartId);
+      if (buffered == null) {
+        // read under the lock, so a flush of the cart cannot finish in between
+        Cart cart = store.getOrCreateCart(cartId);
+        if (!cart.isComplete()) {
+          // the changes to a cart not held in full cannot be told from comparing it
+          unbuffered = cart;
+        } else {
+          buffered = new BufferedCart(cart);
+          bufferedCarts.put(cartId, buffered);
+          markPending(cartId);
+        }
+      }
+      if (unbuffered != null) {
+        changed = null;
+        made = 0;
+      } else if (mutationId != null && isApplied(cartId, mutationId)) {
+        return buffered.cart;
+      } else {
+        changed = change.apply(buffered.cart);
+        if (buffered.pending == null) {
+          buffered.pending = new Batch();
+        }
+        made = buffered.pending.add(buffered.cart, changed, clear);
+        if (mutationId != null) {
+          buffered.pending.messageIds.add(mutationId);
+          appliedMutations.put(getMutationKey(cartId, mutationId), Boolean.TRUE);
+        }
+        buffered.cart = changed;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (unbuffered != null) {
+      return writeThrough.apply(unbuffered);
+    }
+
+    long total = bufferedChanges.addAndGet(made);
+    if (total >= 2L * maxBufferedChanges) {
+      // the flusher is falling behind, so the writer waits for a flush
+      flush();
+    } else if (total >= maxBufferedChanges && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(
+          () -> {
+            flushRequested.set(false);
+            flush();
+          });
+    }
+    return changed;
+  }
+
+  /** Writes all buffered changes to Datastore, one batch per cart. */
+  public synchronized void flush() {
+    long start = System.nanoTime();
+    int batches = 0;
+    for (String cartId : new ArrayList<>(bufferedCarts.keySet())) {
+      batches += flushCart(cartId);
+    }
+    if (batches == 0) {
+      return;
+    }
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    flushes.incrementAndGet();
+    totalFlushMillis.addAndGet(millis);
+    maxFlushMillis.accumulateAndGet(millis, Math::max);
+    logger.fine("Flushed " + batches + " cart batches in " + millis + " ms");
+  }
+
+  /**
+   * Writes the buffered changes of a cart, and stops buffering the cart if no more changes were
+   * made in the meantime.
+   *
+   * @return The number of batches written.
+   */
+  private int flushCart(String cartId) {
+    Batch failed;
+    Batch pending;
+    Lock lock = locks.get(cartId);
+    lock.lock();
+    try {
+      BufferedCart buffered = bufferedCarts.get(cartId);
+      if (buffered == null) {
+        return 0;
+      }
+      failed = buffered.failed;
+      pending = buffered.pending;
+      buffered.failed = null;
+      buffered.pending = null;
+    } finally {
+      lock.unlock();
+    }
+
+    // the cart lock is not held while writing, so the cart can change in the meantime
+    int written = 0;
+    Batch unwritten = null;
+    if (failed != null) {
+      if (write(cartId, failed)) {
+        written += failed.size() > 0 ? 1 : 0;
+      } else {
+        unwritten = failed;
+      }
+    }
+    if (unwritten == null && pending != null) {
+      if (write(cartId, pending)) {
+        written += pending.size() > 0 ? 1 : 0;
+      } else {
+        unwritten = pending;
+        pending = null;
+      }
+    }
+
+    lock.lock();
+    try {
+      BufferedCart buffered = bufferedCarts.get(cartId);
+      if (unwritten != null && unwritten.attempts >= MAX_WRITE_ATTEMPTS) {
+        // the cart is read from Datastore again, without the changes it could not take
+        logger.log(
+            Level.SEVERE, "Dropping the buffered changes to cart " + cartId + " after failures.");
+        droppedBatches.incrementAndGet();
+        bufferedChanges.addAndGet(-unwritten.changes - countChanges(pending, buffered));
+        stopBuffering(cartId);
+      } else if (unwritten != null) {
+        buffered.failed = unwritten;
+        buffered.pending = pending == null ? buffered.pending : pending.merge(buffered.pending);
+        markPending(cartId);
+      } else if (buffered.pending == null) {
+        stopBuffering(cartId);
+      } else {
+        // changes made during the flush keep the cart buffered until the next one
+        markPending(cartId);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return written;
+  }
+
+  private static int countChanges(Batch pending, BufferedCart buffered) {
+    int changes = pending == null ? 0 : pending.changes;
+    return changes + (buffered.pending == null ? 0 : buffered.pending.changes);
+  }
+
+  /**
+   * Writes a batch with at most two transactions, one clearing the cart and one changing its
+   * items. Each is made at most once for the id of the batch, so a batch is safely written again.
+   *
+   * @return True if the batch was written, or had nothing to write.
+   */
+  private boolean write(String cartId, Batch batch) {
+    DataManager dataManager = DataManager.getInstance();
+    if (batch.size() == 0) {
+      // the changes cancelled each other out, only their messages are recorded
+      if (!batch.messageIds.isEmpty()) {
+        batch.attempts++;
+        if (!dataManager.markApplied(cartId, batch.messageIds)) {
+          failedWrites.incrementAndGet();
+          return false;
+        }
+      }
+      bufferedChanges.addAndGet(-batch.changes);
+      changesSaved.addAndGet(batch.changes);
+      return true;
+    }
+
+    batch.attempts++;
+    boolean documentMode = BotConfig.getCartStorageMode() == DataManager.StorageMode.DOCUMENT;
+    boolean written = true;
+    if (batch.cleared) {
+      // the messages are recorded with the last transaction of the batch
+      String clearId = batch.batchId + CLEAR_SUFFIX;
+      List<String> messageIds =
+          batch.deltas.isEmpty() ? batch.messageIds : Collections.<String>emptyList();
+      written =
+          documentMode
+              ? dataManager.clearCartDocument(cartId, clearId, messageIds) != null
+              : dataManager.clearCart(cartId, clearId, messageIds) >= 0;
+    }
+    if (written && !batch.deltas.isEmpty()) {
+      written =
+          documentMode
+              ? dataManager.applyItemDeltasToDocument(
+                      cartId, batch.deltas, batch.itemTitles, batch.batchId, batch.messageIds)
+                  != null
+              : dataManager.applyItemDeltas(
+                      cartId, batch.deltas, batch.itemTitles, batch.batchId, batch.messageIds)
+                  >= 0;
+    }
+    if (!written) {
+      failedWrites.incrementAndGet();
+      return false;
+    }
+
+    bufferedChanges.addAndGet(-batch.changes);
+    writtenBatches.incrementAndGet();
+    writtenChanges.addAndGet(batch.size());
+    changesSaved.addAndGet(batch.changes - batch.size());
+    return true;
+  }
+
+  /** Drops a cart whose changes are all written, so it is read from Datastore again. */
+  private void stopBuffering(String cartId) {
+    bufferedCarts.remove(cartId);
+    // the cached cart is older than the written one, and has to go before other instances read
+    if (BotConfig.isCartCacheEnabled()) {
+      CartCache.getInstance().invalidate(cartId);
+    }
+    pendingMarkers.delete(PENDING_KEY_PREFIX + cartId);
+  }
+
+  private void markPending(String cartId) {
+    pendingMarkers.put(
+        PENDING_KEY_PREFIX + cartId,
+        instanceId,
+        Expiration.byDeltaMillis((int) getRemoteWaitMillis()));
+  }
+
+  /**
+   * Waits for the changes another instance buffers for the cart to be written, so they are not
+   * missed by reading the cart from Datastore.
+   */
+  private void waitForOtherInstance(String cartId) {
+    String key = PENDING_KEY_PREFIX + cartId;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getRemoteWaitMillis());
+    boolean waited = false;
+    while (true) {
+      Object owner = pendingMarkers.get(key);
+      if (owner == null || instanceId.equals(owner)) {
+        return;
+      }
+      if (!waited) {
+        waited = true;
+        remoteWaits.incrementAndGet();
+      }
+      if (System.nanoTime() > deadline) {
+        logger.warning("Reading cart " + cartId + " while another instance buffers changes.");
+        return;
+      }
+      try {
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private long getRemoteWaitMillis() {
+    return 2 * windowMillis + FLUSH_GRACE_MILLIS;
+  }
+
+  private boolean isApplied(String cartId, String mutationId) {
+    return appliedMutations.getIfPresent(getMutationKey(cartId, mutationId)) != null;
+  }
+
+  private static String getMutationKey(String cartId, String mutationId) {
+    return cartId + "/" + mutationId;
+  }
+
+  private static Map<String, CartItem> byId(Cart cart) {
+    Map<String, CartItem> items = new HashMap<>();
+    for (CartItem item : cart.getItems()) {
+      items.put(item.getId(), item);
+    }
+    return items;
+  }
+
+  /** Stops the timed flushes and writes all buffered changes, e.g. when the instance stops. */
+  @Override
+  public void close() {
+    flusher.shutdownNow();
+    flush();
+  }
+
+  /**
+   * Gets the number of changes buffered and not yet written.
+   *
+   * @return The number of buffered item changes.
+   */
+  public long getBufferedChanges() {
+    return bufferedChanges.get();
+  }
+
+  /**
+   * Gets the number of flushes that wrote at least one batch.
+   *
+   * @return The number of flushes.
+   */
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  /**
+   * Gets the average time a flush took.
+   *
+   * @return The average flush latency in milliseconds.
+   */
+  public double getAverageFlushMillis() {
+    long count = flushes.get();
+    return count == 0 ? 0 : (double) totalFlushMillis.get() / count;
+  }
+
+  /**
+   * Gets the longest time a flush took.
+   *
+   * @return The maximum flush latency in milliseconds.
+   */
+  public long getMaxFlushMillis() {
+    return maxFlushMillis.get();
+  }
+
+  /**
+   * Gets the average number of writes in a batch, the net changes of items plus any clear.
+   *
+   * @return The average batch size.
+   */
+  public double getAverageBatchSize() {
+    long batches = writtenBatches.get();
+    return batches == 0 ? 0 : (double) writtenChanges.get() / batches;
+  }
+
+  /**
+   * Gets the number of item changes that were not written because they were coalesced with
+   * others.
+   *
+   * @return The number of changes saved.
+   */
+  public long getChangesSaved() {
+    return changesSaved.get();
+  }
+
+  /**
+   * Gets the number of batch writes that failed and were retried.
+   *
+   * @return The number of failed writes.
+   */
+  public long getFailedWrites() {
+    return failedWrites.get();
+  }
+
+  /**
+   * Gets the number of batches dropped after failing every attempt.
+   *
+   * @return The number of dropped batches.
+   */
+  public long getDroppedBatches() {
+    return droppedBatches.get();
+  }
+
+  /**
+   * Gets the number of reads that waited for changes buffered by another instance.
+   *
+   * @return The number of waits.
+   */
+  public long getRemoteWaits() {
+    return remoteWaits.get();
+  }
+}
@@ -16,19 +16,22 @@ package com.google.businessmessages.cart.servlets;
 // [START callback for receiving consumer messages]
 
 // [START import_libraries]
-import com.google.api.services.businessmessages.v1.model.BusinessMessagesRepresentative;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.businessmessages.cart.BotConstants;
+import com.google.businessmessages.cart.BackgroundThreads;
+import com.google.businessmessages.cart.BotConfig;
+import com.google.businessmessages.cart.BotLog;
 import com.google.businessmessages.cart.CartBot;
-import com.google.communications.businessmessages.v1.RepresentativeType;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.businessmessages.cart.CartStores;
+import com.google.businessmessages.cart.MessageDeduplicator;
+import com.google.businessmessages.cart.MessageQueue;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.Striped;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -41,97 +44,220 @@ public class AgentCallback extends HttpServlet {
 
   private static final Logger logger = Logger.getLogger(AgentCallback.class.getName());
 
+  private static final BotLog log = BotLog.forClass(AgentCallback.class);
+
+  // Number of locks conversations are spread over when processing inline
+  private static final int CONVERSATION_LOCK_STRIPES = 64;
+
+  // Long-lived bot shared by all requests handled by this servlet
+  private CartBot cartBot;
+
+  // Queue for processing webhooks after they are acknowledged, null when processing inline
+  private MessageQueue messageQueue;
+
+  // Detects redelivered webhooks
+  private MessageDeduplicator deduplicator;
+
+  // Handles webhooks for the same conversation one at a time when processing inline
+  private final Striped<Lock> conversationLocks = Striped.lock(CONVERSATION_LOCK_STRIPES);
+
   public AgentCallback() {
     super();
   }
 
+  @Override
+  public void init() {
+    cartBot = CartBot.getInstance();
+    deduplicator =
+        new MessageDeduplicator(
+            BotConfig.getDedupeLocalCapacity(), BotConfig.getDedupeTtlSeconds());
+    MessageDeduplicator dedupe = deduplicator;
+    BotLog.registerStats(
+        "dedupe",
+        event ->
+            event
+                .field("localHits", dedupe.getLocalHits())
+                .field("sharedHits", dedupe.getSharedHits())
+                .field("misses", dedupe.getMisses())
+                .field("sharedErrors", dedupe.getSharedErrors()));
+
+    if (BotConfig.isAsyncProcessingEnabled() && !BackgroundThreads.isAvailable()) {
+      logger.warning("Asynchronous processing needs background threads, processing inline.");
+    } else if (BotConfig.isAsyncProcessingEnabled()) {
+      messageQueue =
+          new MessageQueue(
+              BotConfig.getWorkerThreads(),
+              BotConfig.getQueueCapacity(),
+              BotConfig.getOverflowPolicy());
+      MessageQueue queue = messageQueue;
+      BotLog.registerStats(
+          "messageQueue",
+          event ->
+              event
+                  .field("depth", queue.getQueueDepth())
+                  .field("rejected", queue.getRejectedCount())
+                  .field("callerRuns", queue.getCallerRunsCount())
+                  .field("averageWaitMillis", queue.getAverageWaitMillis())
+                  .field("maxWaitMillis", queue.getMaxWaitMillis()));
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (messageQueue != null) {
+      messageQueue.shutdown(BotConfig.getDrainTimeoutSeconds(), TimeUnit.SECONDS);
+    }
+    cartBot.shutdown();
+    CartStores.shutdown();
+  }
+
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // set the response type to JSON
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
 
-    String jsonResponse =
-        request.getReader().lines().collect(Collectors.joining(System.lineSeparator()));
+    // the counters of this instance, written at most once per stats interval
+    BotLog.logStatsIfDue();
 
-    logger.info(jsonResponse);
-
-    // Load the JSON string into a Json parser
-    JsonParser parser = new JsonParser();
-    JsonObject obj = parser.parse(jsonResponse).getAsJsonObject();
+    // Read the fields of the webhook the agent acts on in a single pass, only buffering the raw
+    // body while payload capture is on
+    String body = null;
+    WebhookPayload payload;
+    try {
+      if (BotLog.isPayloadCaptureEnabled()) {
+        body = CharStreams.toString(request.getReader());
+        payload = WebhookPayload.parse(new StringReader(body));
+      } else {
+        payload = WebhookPayload.parse(request.getReader());
+      }
+    } catch (IOException | IllegalStateException | JsonParseException e) {
+      logger.log(Level.WARNING, "Unable to parse webhook payload.", e);
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
 
     // Parse incoming request
-    String conversationId = obj.get("conversationId").getAsString();
+    String conversationId = payload.getConversationId();
+    if (conversationId == null) {
+      // rejected before anything is de-duped, handled or locked on
+      logger.warning("Unable to handle webhook payload without a conversation id.");
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
 
-    // Use memcache to de-dupe messages
-    MemcacheService syncCache = MemcacheServiceFactory.getMemcacheService();
+    String rawBody = body;
+    log.event("webhook.received")
+        .field("conversationId", conversationId)
+        .field("messageId", payload.getMessageId())
+        .field("requestId", payload.getRequestId())
+        .payload(() -> rawBody)
+        .log();
 
-    if (obj.has("message")) {
-      String message = obj.get("message").getAsJsonObject().get("text").getAsString();
-      String messageId = obj.get("message").getAsJsonObject().get("messageId").getAsString();
+    if (payload.hasMessage()) {
+      String message = payload.getMessageText();
+      String messageId = payload.getMessageId();
 
-      // Check to see if this message has already been seen, if so, ignore
-      if (!syncCache.contains(messageId)) {
-        syncCache.put(messageId, true);
+      if (message == null) {
+        logger.info("Ignoring message without text.");
+        return;
+      }
 
-        routeTextResponse(conversationId, message);
+      // Check to see if this message has already been seen, if so, ignore. A message without an
+      // id cannot be de-duped and is handled like a survey response.
+      if (messageId == null || deduplicator.markSeen(messageId)) {
+        dispatch(
+            response,
+            messageId,
+            conversationId,
+            () -> routeTextResponse(conversationId, message, messageId));
       }
-    } else if (obj.has("requestId")) {
-      String requestId = obj.get("requestId").getAsString();
+    } else if (payload.getRequestId() != null) {
+      String requestId = payload.getRequestId();
 
       // Check to see if this response has already been seen, if so, ignore
-      if (!syncCache.contains(requestId)) {
-        syncCache.put(requestId, true);
-
-        handleNonMessageResponse(obj, conversationId);
+      if (deduplicator.markSeen(requestId)) {
+        dispatch(
+            response,
+            requestId,
+            conversationId,
+            () -> handleNonMessageResponse(payload, conversationId, requestId));
       } else {
         logger.info("Request ID found in the cache.");
       }
     } else { // Survey responses
-      handleNonMessageResponse(obj, conversationId);
+      dispatch(
+          response,
+          null,
+          conversationId,
+          () -> handleNonMessageResponse(payload, conversationId, null));
     }
   }
 
   /**
-   * Returns a Business Messages Representative
+   * Runs the handling of a webhook, either inline or on the message queue when asynchronous
+   * processing is enabled. Either way, webhooks for the same conversation are handled one at a
+   * time; the queue also handles them in the order they arrived. If the queue refuses the webhook,
+   * its de-dupe entry is removed and the platform is asked to redeliver it later.
    *
-   * @return BusinessMessagesRepresentative for the conversation.
-   */
-  private BusinessMessagesRepresentative getRepresentative() {
-    return new BusinessMessagesRepresentative()
-      .setRepresentativeType(RepresentativeType.BOT.toString())
-      .setDisplayName(BotConstants.BOT_AGENT_NAME);
-  }
-
-    /**
-   * Handles events received by the Business Messages platform
+   * @param response The response to the webhook.
+   * @param dedupeKey The key the webhook was de-duped on, or null if it was not.
+   * @param conversationId The conversation the webhook belongs to.
+   * @param task The handling of the webhook.
    */
-  private void handleNonMessageResponse(JsonObject obj, String conversationId) {
-    if (obj.has("suggestionResponse")) {
-      String postbackData =
-          obj.get("suggestionResponse").getAsJsonObject().get("postbackData").getAsString();
-
-      routeTextResponse(conversationId, postbackData);
-    } else if (obj.has("userStatus")) {
-      obj = obj.get("userStatus").getAsJsonObject();
-
-      if (obj.has("isTyping")) {
-        logger.info("User is typing");
+  private void dispatch(
+      HttpServletResponse response,
+      String dedupeKey,
+      String conversationId,
+      Runnable task)
+      throws IOException {
+    if (messageQueue == null) {
+      // each request thread handles only its own webhook
+      Lock lock = conversationLocks.get(conversationId);
+      lock.lock();
+      try {
+        task.run();
+      } finally {
+        lock.unlock();
       }
-    } else if (obj.has("receipts")) {
-      JsonArray receipts = obj.get("receipts").getAsJsonObject().getAsJsonArray("receipts");
+      return;
+    }
 
-      for (JsonElement element : receipts) {
-        String receiptType = element.getAsJsonObject().get("receiptType").getAsString();
-        String messageId = element.getAsJsonObject().get("message").getAsString();
+    if (!messageQueue.submit(conversationId, task)) {
+      if (dedupeKey != null) {
+        deduplicator.forget(dedupeKey);
+      }
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
 
-        logger.info("Receipt: (" + receiptType + ", " + messageId + ")");
+  /** Handles events received by the Business Messages platform */
+  private void handleNonMessageResponse(
+      WebhookPayload payload, String conversationId, String requestId) {
+    if (payload.hasSuggestionResponse()) {
+      String postbackData = payload.getPostbackData();
+      if (postbackData == null) {
+        logger.info("Ignoring suggestion response without postback data.");
+        return;
+      }
+      routeTextResponse(conversationId, postbackData, requestId);
+    } else if (payload.hasUserStatus()) {
+      if (payload.isUserTyping()) {
+        log.event("webhook.typing").field("conversationId", conversationId).log();
+      }
+    } else if (payload.hasReceipts()) {
+      for (WebhookPayload.Receipt receipt : payload.getReceipts()) {
+        log.event("webhook.receipt")
+            .field("conversationId", conversationId)
+            .field("messageId", receipt.getMessageId())
+            .field("receiptType", receipt.getReceiptType())
+            .log();
       }
     }
   }
 
-  private void routeTextResponse(String conversationId, String message) {
-    new CartBot(getRepresentative()).routeMessage(message, conversationId);
+  private void routeTextResponse(String conversationId, String message, String messageId) {
+    cartBot.routeMessage(message, conversationId, messageId);
   }
 }
 // [END callback for receiving consumer messages]
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart.servlets;
+
+import com.google.businessmessages.cart.CartMigration;
+import com.google.businessmessages.cart.DataManager;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin-only servlet that runs a cart data migration, e.g. /admin/migrate?task=carts followed
+ * by /admin/migrate?task=items. The toDocument and toEntities tasks convert carts between the two
+ * storage modes. A migration that runs out of request time can simply be started again.
+ */
+@WebServlet(name = "MigrationServlet", value = "/admin/migrate")
+public class MigrationServlet extends HttpServlet {
+
+  private static final int DEFAULT_BATCH_SIZE = 100;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+
+    int batchSize = getIntParameter(request, "batchSize", DEFAULT_BATCH_SIZE);
+    if (batchSize < 1) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch size.");
+      return;
+    }
+
+    CartMigration migration = new CartMigration();
+    CartMigration.Result result;
+    String task = request.getParameter("task");
+    if ("carts".equals(task)) {
+      result = migration.migrateCarts(batchSize);
+    } else if ("items".equals(task)) {
+      result = migration.migrateItems(batchSize);
+    } else if ("toDocument".equals(task)) {
+      result = migration.convertCarts(DataManager.StorageMode.DOCUMENT, batchSize);
+    } else if ("toEntities".equals(task)) {
+      result = migration.convertCarts(DataManager.StorageMode.ENTITIES, batchSize);
+    } else {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown migration task: " + task);
+      return;
+    }
+
+    response.getWriter().println(task + ": " + result);
+  }
+
+  private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart.servlets;
+
+import com.google.businessmessages.cart.BotConfig;
+import com.google.businessmessages.cart.CartSweeper;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin-only servlet that deletes abandoned carts, run by cron as /admin/sweep. Carts not changed
+ * for cartbot.sweep.ttlDays are deleted, at most cartbot.sweep.maxCartsPerSecond at a time, and
+ * mutation markers older than cartbot.sweep.markerTtlHours are pruned from the carts that are kept.
+ */
+@WebServlet(name = "SweepServlet", value = "/admin/sweep")
+public class SweepServlet extends HttpServlet {
+
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int DEFAULT_PARALLELISM = 4;
+  // Markers are small single entities, so more of them are deleted per second than carts
+  private static final int MARKERS_PER_CART = 10;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+
+    int batchSize = getIntParameter(request, "batchSize", DEFAULT_BATCH_SIZE);
+    int parallelism = getIntParameter(request, "parallelism", DEFAULT_PARALLELISM);
+    if (batchSize < 1 || parallelism < 1) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch size or parallelism.");
+      return;
+    }
+
+    // markers go first, so the carts deleted afterwards fit into one transaction each, and both
+    // share the run time of one sweep
+    long maxRunMillis = TimeUnit.SECONDS.toMillis(BotConfig.getSweepMaxRunSeconds());
+    long start = System.currentTimeMillis();
+    Date markerCutoff =
+        new Date(start - TimeUnit.HOURS.toMillis(BotConfig.getSweepMarkerTtlHours()));
+    CartSweeper.Result pruned =
+        new CartSweeper()
+            .pruneMarkers(
+                markerCutoff,
+                Math.max(BotConfig.getSweepMaxCartsPerSecond(), 1) * (double) MARKERS_PER_CART,
+                maxRunMillis);
+    response.getWriter().println("prune: " + pruned);
+
+    Date cutoff = new Date(start - TimeUnit.DAYS.toMillis(BotConfig.getSweepTtlDays()));
+    CartSweeper.Result result =
+        new CartSweeper()
+            .sweep(
+                cutoff,
+                batchSize,
+                parallelism,
+                Math.max(BotConfig.getSweepMaxCartsPerSecond(), 1),
+                Math.max(maxRunMillis - (System.currentTimeMillis() - start), 0));
+    response.getWriter().println("sweep: " + result);
+  }
+
+  private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.businessmessages.cart.servlets;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fields of an inbound Business Messages webhook that the agent acts on. The payload is read in
+ * a single streaming pass, and every other field is skipped without being materialized.
+ */
+public class WebhookPayload {
+
+  /** A delivery or read receipt for a message sent by the agent. */
+  public static class Receipt {
+    private final String receiptType;
+    private final String messageId;
+
+    public Receipt(String receiptType, String messageId) {
+      this.receiptType = receiptType;
+      this.messageId = messageId;
+    }
+
+    public String getReceiptType() {
+      return receiptType;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+  }
+
+  private String conversationId;
+  private String requestId;
+  private boolean hasMessage;
+  private String messageId;
+  private String messageText;
+  private boolean hasSuggestionResponse;
+  private String postbackData;
+  private boolean hasUserStatus;
+  private boolean userTyping;
+  private boolean hasReceipts;
+  private List<Receipt> receipts = Collections.emptyList();
+
+  private WebhookPayload() {}
+
+  /**
+   * Reads a webhook payload.
+   *
+   * @param reader The reader positioned at the start of the JSON payload.
+   * @return The fields of the payload the agent acts on.
+   * @throws IOException If the payload cannot be read or is not valid JSON.
+   * @throws IllegalStateException If the payload does not have the expected structure.
+   */
+  public static WebhookPayload parse(Reader reader) throws IOException {
+    WebhookPayload payload = new WebhookPayload();
+    JsonReader json = new JsonReader(reader);
+    json.setLenient(true);
+
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case "conversationId":
+          payload.conversationId = nextString(json);
+          break;
+        case "requestId":
+          payload.requestId = nextString(json);
+          break;
+        case "message":
+          payload.hasMessage = true;
+          payload.readMessage(json);
+          break;
+        case "suggestionResponse":
+          payload.hasSuggestionResponse = true;
+          payload.readSuggestionResponse(json);
+          break;
+        case "userStatus":
+          payload.hasUserStatus = true;
+          payload.readUserStatus(json);
+          break;
+        case "receipts":
+          payload.hasReceipts = true;
+          payload.readReceipts(json);
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+
+    return payload;
+  }
+
+  private void readMessage(JsonReader json) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case "messageId":
+          messageId = nextString(json);
+          break;
+        case "text":
+          messageText = nextString(json);
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+  }
+
+  private void readSuggestionResponse(JsonReader json) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      if (json.nextName().equals("postbackData")) {
+        postbackData = nextString(json);
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+  }
+
+  private void readUserStatus(JsonReader json) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      if (json.nextName().equals("isTyping") && json.peek() == JsonToken.BOOLEAN) {
+        userTyping = json.nextBoolean();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+  }
+
+  private void readReceipts(JsonReader json) throws IOException {
+    json.beginObject();
+    while (json.hasNext()) {
+      if (json.nextName().equals("receipts") && json.peek() == JsonToken.BEGIN_ARRAY) {
+        receipts = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+          receipts.add(readReceipt(json));
+        }
+        json.endArray();
+      } else {
+        json.skipValue();
+      }
+    }
+    json.endObject();
+  }
+
+  private static Receipt readReceipt(JsonReader json) throws IOException {
+    String receiptType = null;
+    String messageId = null;
+
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case "receiptType":
+          receiptType = nextString(json);
+          break;
+        case "message":
+          messageId = nextString(json);
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+
+    return new Receipt(receiptType, messageId);
+  }
+
+  private static String nextString(JsonReader json) throws IOException {
+    if (json.peek() == JsonToken.NULL) {
+      json.nextNull();
+      return null;
+    }
+    return json.nextString();
+  }
+
+  public String getConversationId() {
+    return conversationId;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public boolean hasMessage() {
+    return hasMessage;
+  }
+
+  public String getMessageId() {
+    return messageId;
+  }
+
+  public String getMessageText() {
+    return messageText;
+  }
+
+  public boolean hasSuggestionResponse() {
+    return hasSuggestionResponse;
+  }
+
+  public String getPostbackData() {
+    return postbackData;
+  }
+
+  public boolean hasUserStatus() {
+    return hasUserStatus;
+  }
+
+  public boolean isUserTyping() {
+    return userTyping;
+  }
+
+  public boolean hasReceipts() {
+    return hasReceipts;
+  }
+
+  public List<Receipt> getReceipts() {
+    return receipts;
+  }
+}
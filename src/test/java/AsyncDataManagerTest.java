@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.AsyncDataManager;
+import com.google.businessmessages.cart.DataManager;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncDataManagerTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  AsyncDataManager asyncDataManager;
+  DatastoreService datastore;
+
+  @Before
+  public void initAsyncDataManager() {
+    helper.setUp();
+    asyncDataManager = AsyncDataManager.getInstance();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @Test
+  public void testGetCart() throws Exception {
+    String conversationId = "testAsyncGetCartConversationId";
+    Entity cart = new Entity("Cart", conversationId);
+    cart.setProperty("conversation_id", conversationId);
+    datastore.put(cart);
+
+    Entity resultCart = asyncDataManager.getCart(conversationId).get();
+    Entity missingCart = asyncDataManager.getCart("missingConversationId").get();
+
+    assertThat(resultCart).isNotNull();
+    assertThat((String) resultCart.getProperty("conversation_id")).isEqualTo(conversationId);
+    assertThat(missingCart).isNull();
+  }
+
+  @Test
+  public void testGetCartAndItems_inParallel() throws Exception {
+    String conversationId = "testAsyncItemsConversationId";
+    datastore.put(new Entity("Cart", conversationId));
+    for (String itemId : Arrays.asList("item-a", "item-b")) {
+      Entity item = new Entity(DataManager.getCartItemKey(conversationId, itemId));
+      item.setProperty("item_id", itemId);
+      item.setProperty("count", 1L);
+      datastore.put(item);
+    }
+    datastore.put(new Entity("CartItem", "item-a", DataManager.getCartKey("otherConversationId")));
+
+    Future<Entity> cartLookup = asyncDataManager.getCart(conversationId);
+    Future<List<Entity>> itemFetch = asyncDataManager.getCartFromData(conversationId);
+    Future<Map<Key, Entity>> itemLookup =
+        asyncDataManager.getItems(conversationId, Arrays.asList("item-a", "item-c"));
+
+    assertThat(cartLookup.get()).isNotNull();
+    assertThat(itemFetch.get()).hasSize(2);
+    assertThat(itemLookup.get().keySet())
+        .containsExactly(DataManager.getCartItemKey(conversationId, "item-a"));
+    assertThat(asyncDataManager.getExistingItem(conversationId, "item-b").get()).isNotNull();
+    assertThat(asyncDataManager.getExistingItem(conversationId, "item-c").get()).isNull();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+}
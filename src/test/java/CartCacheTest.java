@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.Cart;
+import com.google.businessmessages.cart.CartCache;
+import com.google.businessmessages.cart.CartItem;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CartCacheTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @Test
+  public void testGet_missThenHit() {
+    CartCache cache = new CartCache(100, 60);
+
+    assertThat(cache.get("testCartId")).isNull();
+    cache.put(testCart("testCartId", 1), 5);
+    CartCache.CachedCart cached = cache.get("testCartId");
+
+    assertThat(cached.getVersion()).isEqualTo(5);
+    assertThat(cached.getCart().getItems().get(0).getCount()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+    assertThat(cache.getLocalHits()).isEqualTo(1);
+    assertThat(cache.getHitRatio()).isWithin(0.001).of(0.5);
+  }
+
+  @Test
+  public void testGet_staleLocalEntryRejected() {
+    CartCache firstInstance = new CartCache(100, 60);
+    CartCache secondInstance = new CartCache(100, 60);
+    firstInstance.put(testCart("testCartId", 1), 5);
+    assertThat(firstInstance.get("testCartId").getVersion()).isEqualTo(5);
+
+    secondInstance.put(testCart("testCartId", 2), 6);
+    CartCache.CachedCart cached = firstInstance.get("testCartId");
+
+    assertThat(cached.getVersion()).isEqualTo(6);
+    assertThat(cached.getCart().getItems().get(0).getCount()).isEqualTo(2);
+    assertThat(firstInstance.getStaleRejections()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPut_olderVersionIgnored() {
+    CartCache firstInstance = new CartCache(100, 60);
+    CartCache secondInstance = new CartCache(100, 60);
+    firstInstance.put(testCart("testCartId", 2), 6);
+
+    secondInstance.put(testCart("testCartId", 1), 5);
+
+    assertThat(secondInstance.get("testCartId").getVersion()).isEqualTo(6);
+  }
+
+  @Test
+  public void testGetIfVersion() {
+    CartCache cache = new CartCache(100, 60);
+    cache.put(testCart("testCartId", 1), 5);
+
+    assertThat(cache.getIfVersion("testCartId", 5)).isNotNull();
+    assertThat(cache.getIfVersion("testCartId", 6)).isNull();
+    assertThat(cache.getIfVersion("testCartId", 5)).isNull();
+  }
+
+  @Test
+  public void testEvictions() {
+    CartCache cache = new CartCache(1, 60);
+
+    cache.put(testCart("testCartId1", 1), 1);
+    cache.put(testCart("testCartId2", 1), 1);
+
+    assertThat(cache.getEvictions()).isEqualTo(1);
+  }
+
+  private static Cart testCart(String cartId, int count) {
+    return new Cart(cartId, ImmutableList.of(new CartItem("testItemId", "testItemTitle", count)));
+  }
+
+  @After
+  public void cleanUp() {
+    helper.tearDown();
+  }
+}
@@ -17,6 +17,8 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
@@ -24,9 +26,16 @@ import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.businessmessages.cart.Cart;
 import com.google.businessmessages.cart.CartItem;
 import com.google.businessmessages.cart.CartManager;
+import com.google.businessmessages.cart.CartPage;
+import com.google.businessmessages.cart.CartSummary;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.UnmodifiableIterator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -64,13 +73,12 @@ public class CartManagerTest {
     String testGetSavedCartConversationId = "testGetSavedCartConversationId";
     Cart cart = CartManager.getOrCreateCart(testGetSavedCartConversationId);
     String testPopulateItemTitle1 = "testPopulateItemTitle1";
-    Entity testPopulateItem1 = new Entity("CartItem");
-    testPopulateItem1.setProperty("cart_id", cart.getId());
+    Key cartKey = KeyFactory.createKey("Cart", cart.getId());
+    Entity testPopulateItem1 = new Entity("CartItem", "testPopulateItemId1", cartKey);
     testPopulateItem1.setProperty("item_title", testPopulateItemTitle1);
     testPopulateItem1.setProperty("count", 1);
     String testPopulateItemTitle2 = "testPopulateItemTitle2";
-    Entity testPopulateItem2 = new Entity("CartItem");
-    testPopulateItem2.setProperty("cart_id", cart.getId());
+    Entity testPopulateItem2 = new Entity("CartItem", "testPopulateItemId2", cartKey);
     testPopulateItem2.setProperty("item_title", testPopulateItemTitle2);
     testPopulateItem2.setProperty("count", 1);
     HashSet<String> testItemTitles = new HashSet<>();
@@ -108,8 +116,8 @@ public class CartManagerTest {
     Cart cart = CartManager.getOrCreateCart("testDeleteConversationId");
     String testDeleteItemId = "testDeleteItemId";
     String testDeleteItemTitle = "testDeleteItemTitle";
-    Entity testDeleteItem = new Entity("CartItem");
-    testDeleteItem.setProperty("cart_id", cart.getId());
+    Entity testDeleteItem =
+        new Entity("CartItem", testDeleteItemId, KeyFactory.createKey("Cart", cart.getId()));
     testDeleteItem.setProperty("item_id", testDeleteItemId);
     testDeleteItem.setProperty("item_title", testDeleteItemTitle);
     testDeleteItem.setProperty("count", 1);
@@ -121,8 +129,203 @@ public class CartManagerTest {
     assertThat(cart.getItems()).isEmpty();
   }
 
+  @Test
+  public void testAddItem_derivedFromPreviousCart() {
+    Cart cart = CartManager.getOrCreateCart("testDerivedConversationId");
+
+    Cart firstCart = CartManager.addItem(cart, "testItemId", "testItemTitle");
+    Cart secondCart = CartManager.addItem(firstCart, "testItemId", "testItemTitle");
+
+    assertThat(firstCart.getVersion()).isEqualTo(cart.getVersion() + 1);
+    assertThat(secondCart.getVersion()).isEqualTo(cart.getVersion() + 2);
+    assertThat(secondCart.getItems()).hasSize(1);
+    assertThat(secondCart.getItems().get(0).getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAddItem_reloadsDivergedCart() {
+    Cart staleCart = CartManager.getOrCreateCart("testDivergedConversationId");
+    CartManager.addItem(staleCart, "testOtherItemId", "testOtherItemTitle");
+
+    Cart cart = CartManager.addItem(staleCart, "testItemId", "testItemTitle");
+
+    assertThat(cart.getItems()).hasSize(2);
+    assertThat(cart.getVersion()).isEqualTo(staleCart.getVersion() + 2);
+  }
+
+  @Test
+  public void testApplyItemDeltas() {
+    Cart cart = CartManager.getOrCreateCart("testDeltasConversationId");
+    cart = CartManager.addItem(cart, "testItemId2", "testItemTitle2");
+
+    Cart updatedCart =
+        CartManager.applyItemDeltas(
+            cart,
+            ImmutableMap.of("testItemId1", 3, "testItemId2", -1),
+            ImmutableMap.of("testItemId1", "testItemTitle1"));
+
+    assertThat(updatedCart.getVersion()).isEqualTo(cart.getVersion() + 1);
+    assertThat(updatedCart.getItems()).hasSize(1);
+    assertThat(updatedCart.getItems().get(0).getId()).isEqualTo("testItemId1");
+    assertThat(updatedCart.getItems().get(0).getCount()).isEqualTo(3);
+    List<CartItem> storedItems = CartManager.getOrCreateCart(cart.getId()).getItems();
+    assertThat(storedItems).hasSize(1);
+    assertThat(storedItems.get(0).getCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testAddItem_redeliveryIsNotAppliedAgain() {
+    Cart cart = CartManager.getOrCreateCart("testRedeliveryConversationId");
+    CartManager.addItem(cart, "testItemId", "testItemTitle", "testMessageId");
+
+    Cart reloadedCart = CartManager.getOrCreateCart(cart.getId());
+    Cart redeliveredCart =
+        CartManager.addItem(reloadedCart, "testItemId", "testItemTitle", "testMessageId");
+
+    assertThat(redeliveredCart.getItems()).hasSize(1);
+    assertThat(redeliveredCart.getItems().get(0).getCount()).isEqualTo(1);
+    assertThat(redeliveredCart.getVersion()).isEqualTo(cart.getVersion() + 1);
+  }
+
+  @Test
+  public void testClearCart() {
+    Cart cart = CartManager.getOrCreateCart("testClearConversationId");
+    cart = CartManager.addItem(cart, "testItemId1", "testItemTitle1");
+    cart = CartManager.addItem(cart, "testItemId2", "testItemTitle2");
+
+    Cart clearedCart = CartManager.clearCart(cart);
+
+    assertThat(clearedCart.getItems()).isEmpty();
+    assertThat(clearedCart.getVersion()).isEqualTo(cart.getVersion() + 1);
+    assertThat(CartManager.getOrCreateCart(cart.getId()).getItems()).isEmpty();
+  }
+
+  @Test
+  public void testAddAndDeleteItem_documentMode() {
+    System.setProperty("cartbot.carts.storageMode", "DOCUMENT");
+    Cart cart = CartManager.getOrCreateCart("testDocumentConversationId");
+
+    cart = CartManager.addItem(cart.getId(), "testItemId1", "testItemTitle1");
+    cart = CartManager.addItem(cart.getId(), "testItemId2", "testItemTitle2");
+    cart = CartManager.deleteItem(cart.getId(), "testItemId1");
+
+    assertThat(cart.getItems()).hasSize(1);
+    assertThat(cart.getItems().get(0).getId()).isEqualTo("testItemId2");
+    cart = CartManager.getOrCreateCart("testDocumentConversationId");
+    assertThat(cart.getItems()).hasSize(1);
+  }
+
+  @Test
+  public void testGetCart_convertsToDocumentMode() {
+    Cart cart = CartManager.getOrCreateCart("testConvertConversationId");
+    CartManager.addItem(cart.getId(), "testItemId", "testItemTitle");
+    System.setProperty("cartbot.carts.storageMode", "DOCUMENT");
+
+    cart = CartManager.getOrCreateCart("testConvertConversationId");
+
+    assertThat(cart.getItems()).hasSize(1);
+    assertThat(cart.getItems().get(0).getTitle()).isEqualTo("testItemTitle");
+  }
+
+  @Test
+  public void testGetCartPage_pagesPastCartLimit() {
+    Cart cart = CartManager.getOrCreateCart("testPagedConversationId");
+    Map<String, Integer> deltas = new HashMap<>();
+    Map<String, String> titles = new HashMap<>();
+    for (int i = 0; i < 60; i++) {
+      deltas.put(String.format("testItemId%02d", i), 1);
+      titles.put(String.format("testItemId%02d", i), "testItemTitle" + i);
+    }
+    CartManager.applyItemDeltas(cart, deltas, titles);
+
+    Set<String> pagedIds = new HashSet<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      CartPage page = CartManager.getCartPage(cart.getId(), cursor, 25);
+      assertThat(page.getTotalCount()).isEqualTo(60);
+      for (CartItem item : page.getItems()) {
+        pagedIds.add(item.getId());
+      }
+      cursor = page.getNextCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertThat(pages).isEqualTo(3);
+    assertThat(pagedIds).containsExactlyElementsIn(deltas.keySet());
+    assertThat(CartManager.getAllItems(cart.getId())).hasSize(60);
+    assertThat(CartManager.getOrCreateCart(cart.getId()).getItems()).hasSize(50);
+  }
+
+  @Test
+  public void testAddItem_rereadsIncompleteCart() {
+    Cart cart = CartManager.getOrCreateCart("testIncompleteConversationId");
+    Map<String, Integer> deltas = new HashMap<>();
+    for (int i = 0; i < 60; i++) {
+      deltas.put(String.format("testItemId%02d", i), 1);
+    }
+    CartManager.applyItemDeltas(cart, deltas, new HashMap<>());
+    cart = CartManager.getOrCreateCart(cart.getId());
+
+    assertThat(cart.isComplete()).isFalse();
+
+    cart = CartManager.addItem(cart, "testItemId60", "testItemTitle60");
+
+    assertThat(cart.isComplete()).isFalse();
+    assertThat(cart.getItems()).hasSize(50);
+    assertThat(CartManager.getCartSummary(cart.getId()).getItemCount()).isEqualTo(61);
+  }
+
+  @Test
+  public void testGetCartSummary_followsMutations() {
+    Cart cart = CartManager.getOrCreateCart("testSummaryConversationId");
+    assertThat(CartManager.getCartSummary(cart.getId()).isEmpty()).isTrue();
+
+    cart =
+        CartManager.applyItemDeltas(
+            cart,
+            ImmutableMap.of("testItemId1", 3, "testItemId2", 1),
+            ImmutableMap.of("testItemId1", "testItemTitle1", "testItemId2", "testItemTitle2"));
+    cart = CartManager.deleteItem(cart, "testItemId2");
+
+    CartSummary summary = CartManager.getCartSummary(cart.getId());
+    assertThat(summary.getItemCount()).isEqualTo(1);
+    assertThat(summary.getTotalQuantity()).isEqualTo(3);
+    assertThat(summary.getVersion()).isEqualTo(cart.getVersion());
+
+    CartManager.clearCart(cart);
+
+    summary = CartManager.getCartSummary(cart.getId());
+    assertThat(summary.isEmpty()).isTrue();
+    assertThat(summary.getTotalQuantity()).isEqualTo(0);
+  }
+
+  @Test
+  public void testGetCartSummary_summarizesCartSavedWithoutSummary() throws Exception {
+    Cart cart = CartManager.getOrCreateCart("testUnsummarizedConversationId");
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key cartKey = KeyFactory.createKey("Cart", cart.getId());
+    Entity cartEntity = datastore.get(cartKey);
+    cartEntity.removeProperty("item_count");
+    cartEntity.removeProperty("total_quantity");
+    Entity item = new Entity("CartItem", "testItemId1", cartKey);
+    item.setProperty("item_id", "testItemId1");
+    item.setProperty("item_title", "testItemTitle1");
+    item.setProperty("count", 2L);
+    datastore.put(ImmutableList.of(cartEntity, item));
+
+    assertThat(CartManager.getCartSummary(cart.getId()).getTotalQuantity()).isEqualTo(2);
+
+    cart = CartManager.getOrCreateCart(cart.getId());
+    CartManager.addItem(cart, "testItemId2", "testItemTitle2");
+
+    assertThat(datastore.get(cartKey).getProperty("item_count")).isEqualTo(2L);
+    assertThat(datastore.get(cartKey).getProperty("total_quantity")).isEqualTo(3L);
+  }
+
   @After
   public void cleanUp() {
+    System.clearProperty("cartbot.carts.storageMode");
     helper.tearDown();
   }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.Cart;
+import com.google.businessmessages.cart.CartManager;
+import com.google.businessmessages.cart.CartMigration;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CartMigrationTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @Test
+  public void testMigrateCarts_movesLegacyCartsToKeys() throws EntityNotFoundException {
+    for (int i = 0; i < 5; i++) {
+      putLegacyCart("testConversationId" + i, "testCartId" + i);
+    }
+
+    CartMigration.Result result = new CartMigration().migrateCarts(2);
+
+    assertThat(result.getMigrated()).isEqualTo(5);
+    assertThat(result.getFailed()).isEqualTo(0);
+    for (int i = 0; i < 5; i++) {
+      Entity cart = datastore.get(KeyFactory.createKey("Cart", "testConversationId" + i));
+      assertThat((String) cart.getProperty("cart_id")).isEqualTo("testCartId" + i);
+    }
+    PreparedQuery pq = datastore.prepare(new Query("Cart"));
+    assertThat(pq.countEntities(FetchOptions.Builder.withDefaults())).isEqualTo(5);
+  }
+
+  @Test
+  public void testMigrateCarts_skipsConversationsWithKeyedCart() throws EntityNotFoundException {
+    Key legacyKey = putLegacyCart("testConflictConversationId", "testLegacyCartId");
+    Entity keyedCart = new Entity("Cart", "testConflictConversationId");
+    keyedCart.setProperty("conversation_id", "testConflictConversationId");
+    keyedCart.setProperty("cart_id", "testKeyedCartId");
+    datastore.put(keyedCart);
+
+    CartMigration.Result result = new CartMigration().migrateCarts(10);
+
+    assertThat(result.getMigrated()).isEqualTo(0);
+    assertThat(result.getSkipped()).isEqualTo(1);
+    Entity cart = datastore.get(keyedCart.getKey());
+    assertThat((String) cart.getProperty("cart_id")).isEqualTo("testKeyedCartId");
+    assertThat(datastore.get(Arrays.asList(legacyKey))).hasSize(1);
+  }
+
+  @Test
+  public void testMigrateCarts_mergesDuplicateCarts() throws EntityNotFoundException {
+    putLegacyCart("testDuplicateConversationId", "testFirstCartId");
+    putLegacyCart("testDuplicateConversationId", "testSecondCartId");
+    putLegacyItem("testFirstCartId", "testItemId", 1);
+    putLegacyItem("testSecondCartId", "testItemId", 2);
+    putLegacyItem("testSecondCartId", "testOtherItemId", 1);
+
+    CartMigration.Result result = new CartMigration().migrateCarts(10);
+
+    assertThat(result.getMigrated()).isEqualTo(2);
+    Key cartKey = KeyFactory.createKey("Cart", "testDuplicateConversationId");
+    Entity item = datastore.get(KeyFactory.createKey(cartKey, "CartItem", "testItemId"));
+    assertThat((Long) item.getProperty("count")).isEqualTo(3L);
+    PreparedQuery carts = datastore.prepare(new Query("Cart"));
+    assertThat(carts.countEntities(FetchOptions.Builder.withDefaults())).isEqualTo(1);
+    PreparedQuery items = datastore.prepare(new Query("CartItem").setAncestor(cartKey));
+    assertThat(items.countEntities(FetchOptions.Builder.withDefaults())).isEqualTo(2);
+  }
+
+  @Test
+  public void testMigrateItems_movesItemsUnderCart() throws EntityNotFoundException {
+    putLegacyCart("testItemsConversationId", "testItemsCartId");
+    Key cartKey = KeyFactory.createKey("Cart", "testItemsConversationId");
+    Entity movedItem = new Entity("CartItem", "testItemId", cartKey);
+    movedItem.setProperty("item_id", "testItemId");
+    movedItem.setProperty("item_title", "testItemTitle");
+    movedItem.setProperty("count", 2);
+    datastore.put(movedItem);
+    putLegacyItem("testItemsCartId", "testItemId", 1);
+    putLegacyItem("testItemsCartId", "testOtherItemId", 3);
+    putLegacyItem("testMissingCartId", "testItemId", 1);
+
+    CartMigration.Result result = new CartMigration().migrateItems(10);
+
+    assertThat(result.getMigrated()).isEqualTo(2);
+    assertThat(result.getSkipped()).isEqualTo(1);
+    Entity item = datastore.get(KeyFactory.createKey(cartKey, "CartItem", "testItemId"));
+    assertThat((Long) item.getProperty("count")).isEqualTo(3L);
+    Entity otherItem = datastore.get(KeyFactory.createKey(cartKey, "CartItem", "testOtherItemId"));
+    assertThat((Long) otherItem.getProperty("count")).isEqualTo(3L);
+    PreparedQuery pq = datastore.prepare(new Query("CartItem"));
+    assertThat(pq.countEntities(FetchOptions.Builder.withDefaults())).isEqualTo(3);
+  }
+
+  @Test
+  public void testMigrateItems_updatesKeyedCartOnce() {
+    Cart cart = CartManager.getOrCreateCart("testSummaryConversationId");
+    putLegacyItem(cart.getId(), "testItemId", 2);
+
+    new CartMigration().migrateItems(10);
+    CartMigration.Result result = new CartMigration().migrateItems(10);
+
+    assertThat(result.getMigrated()).isEqualTo(0);
+    cart = CartManager.getOrCreateCart(cart.getId());
+    assertThat(cart.getItems()).hasSize(1);
+    assertThat(cart.getItems().get(0).getCount()).isEqualTo(2);
+    assertThat(CartManager.getCartSummary(cart.getId()).getTotalQuantity()).isEqualTo(2);
+  }
+
+  private Key putLegacyCart(String conversationId, String cartId) {
+    Entity cart = new Entity("Cart");
+    cart.setProperty("conversation_id", conversationId);
+    cart.setProperty("cart_id", cartId);
+    return datastore.put(cart);
+  }
+
+  private void putLegacyItem(String cartId, String itemId, int count) {
+    Entity item = new Entity("CartItem");
+    item.setProperty("cart_id", cartId);
+    item.setProperty("item_id", itemId);
+    item.setProperty("item_title", "testItemTitle");
+    item.setProperty("count", count);
+    datastore.put(item);
+  }
+
+  @After
+  public void cleanUp() {
+    helper.tearDown();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.CartSweeper;
+import com.google.businessmessages.cart.DataManager;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CartSweeperTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @Test
+  public void testSweep_deletesExpiredCartsAndTheirItems() throws EntityNotFoundException {
+    DataManager dataManager = DataManager.getInstance();
+    for (int i = 0; i < 5; i++) {
+      String cartId = "testExpiredCartId" + i;
+      dataManager.saveCart(cartId, cartId);
+      dataManager.addItemToCart(cartId, "testItemId", "testItemTitle");
+      touch(cartId, daysAgo(40));
+    }
+    dataManager.saveCart("testLiveCartId", "testLiveCartId");
+    dataManager.addItemToCart("testLiveCartId", "testItemId", "testItemTitle");
+
+    CartSweeper.Result result = new CartSweeper().sweep(daysAgo(30), 2, 2, 1000, 60000);
+
+    assertThat(result.getSweptCarts()).isEqualTo(5);
+    assertThat(result.getSweptEntities()).isEqualTo(10);
+    assertThat(result.getFailed()).isEqualTo(0);
+    assertThat(result.isFinished()).isTrue();
+    assertThat(count("Cart")).isEqualTo(1);
+    assertThat(count("CartItem")).isEqualTo(1);
+    assertThat(dataManager.getExistingItem("testLiveCartId", "testItemId")).isNotNull();
+  }
+
+  @Test
+  public void testSweep_keepsCartsChangedSinceCutoff() {
+    DataManager dataManager = DataManager.getInstance();
+    dataManager.saveCart("testCartId", "testCartId");
+
+    CartSweeper.Result result = new CartSweeper().sweep(daysAgo(30), 10, 1, 1000, 60000);
+
+    assertThat(result.getSweptCarts()).isEqualTo(0);
+    assertThat(count("Cart")).isEqualTo(1);
+  }
+
+  @Test
+  public void testPruneMarkers_deletesMarkersOlderThanCutoff() throws EntityNotFoundException {
+    DataManager dataManager = DataManager.getInstance();
+    dataManager.saveCart("testCartId", "testCartId");
+    dataManager.markApplied("testCartId", Arrays.asList("testOldMessageId", "testNewMessageId"));
+    Entity oldMarker =
+        datastore.get(
+            KeyFactory.createKey(
+                KeyFactory.createKey("Cart", "testCartId"), "CartMutation", "testOldMessageId"));
+    oldMarker.setProperty("applied_at", daysAgo(2));
+    datastore.put(oldMarker);
+
+    CartSweeper.Result result = new CartSweeper().pruneMarkers(daysAgo(1), 1000, 60000);
+
+    assertThat(result.getPrunedMarkers()).isEqualTo(1);
+    assertThat(result.isFinished()).isTrue();
+    assertThat(dataManager.isMutationApplied("testCartId", "testOldMessageId")).isFalse();
+    assertThat(dataManager.isMutationApplied("testCartId", "testNewMessageId")).isTrue();
+    assertThat(count("Cart")).isEqualTo(1);
+  }
+
+  private void touch(String cartId, Date lastTouched) throws EntityNotFoundException {
+    Entity cart = datastore.get(KeyFactory.createKey("Cart", cartId));
+    cart.setProperty("last_touched", lastTouched);
+    datastore.put(cart);
+  }
+
+  private int count(String kind) {
+    return datastore.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  private static Date daysAgo(int days) {
+    return new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+}
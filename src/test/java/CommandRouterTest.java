@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.CommandRouter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandRouterTest {
+
+  private List<String> testRoutes;
+  private CommandRouter<List<String>> router;
+
+  @Before
+  public void setUp() {
+    testRoutes = new ArrayList<>();
+    router =
+        CommandRouter.<List<String>>builder()
+            .exact("cart", (routes, argument) -> routes.add("cart"))
+            .prefix("add-cart-", (routes, itemId) -> routes.add("add:" + itemId))
+            .prefix("add-cart-all", (routes, argument) -> routes.add("addAll:" + argument))
+            .pattern("^help.*", (routes, argument) -> routes.add("help:" + argument))
+            .fallback((routes, argument) -> routes.add("default:" + argument))
+            .build();
+  }
+
+  @Test
+  public void testRoute_exactCommand() {
+    router.route("cart", testRoutes);
+
+    assertThat(testRoutes).containsExactly("cart");
+  }
+
+  @Test
+  public void testRoute_exactCommandIsNormalized() {
+    String command = router.route("  Cart ", testRoutes);
+
+    assertThat(testRoutes).containsExactly("cart");
+    assertThat(command).isEqualTo("cart");
+  }
+
+  @Test
+  public void testRoute_prefixCommandPassesArgument() {
+    router.route("add-cart-testItemId", testRoutes);
+
+    assertThat(testRoutes).containsExactly("add:testItemId");
+  }
+
+  @Test
+  public void testRoute_longestPrefixWins() {
+    String command = router.route("add-cart-all-now", testRoutes);
+
+    assertThat(testRoutes).containsExactly("addAll:-now");
+    assertThat(command).isEqualTo("add-cart-all");
+  }
+
+  @Test
+  public void testRoute_pattern() {
+    router.route("Help me", testRoutes);
+
+    assertThat(testRoutes).containsExactly("help:help me");
+  }
+
+  @Test
+  public void testRoute_fallback() {
+    String command = router.route("Hello", testRoutes);
+
+    assertThat(testRoutes).containsExactly("default:Hello");
+    assertThat(command).isNull();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.ConversationExecutor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConversationExecutorTest {
+
+  private ExecutorService pool;
+  private ConversationExecutor conversationExecutor;
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(4);
+    conversationExecutor = new ConversationExecutor(pool);
+  }
+
+  @Test
+  public void testExecute_runsConversationTasksInOrder() throws InterruptedException {
+    int taskCount = 500;
+    List<Integer> testOrder = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(taskCount);
+
+    for (int i = 0; i < taskCount; i++) {
+      int index = i;
+      conversationExecutor.execute(
+          "testOrderConversationId",
+          () -> {
+            testOrder.add(index);
+            done.countDown();
+          });
+    }
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    for (int i = 0; i < taskCount; i++) {
+      assertThat(testOrder.get(i)).isEqualTo(i);
+    }
+  }
+
+  @Test
+  public void testExecute_runsConversationsInParallel() throws InterruptedException {
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    CountDownLatch done = new CountDownLatch(2);
+    Runnable task =
+        () -> {
+          bothStarted.countDown();
+          try {
+            // only completes if the other conversation's task is running at the same time
+            if (bothStarted.await(5, TimeUnit.SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        };
+
+    conversationExecutor.execute("testParallelConversationId1", task);
+    conversationExecutor.execute("testParallelConversationId2", task);
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void testExecute_removesIdleMailboxes() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+
+    conversationExecutor.execute("testIdleConversationId", done::countDown);
+
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    pool.shutdown();
+    assertThat(pool.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(conversationExecutor.getActiveConversationCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testExecute_keepsDrainingAfterError() throws InterruptedException {
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+
+    conversationExecutor.execute(
+        "testErrorConversationId",
+        () -> {
+          failed.countDown();
+          throw new AssertionError("testError");
+        });
+    conversationExecutor.execute("testErrorConversationId", done::countDown);
+
+    assertThat(failed.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @After
+  public void cleanUp() {
+    pool.shutdownNow();
+  }
+}
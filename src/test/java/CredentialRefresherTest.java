@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.businessmessages.cart.CredentialRefresher;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class CredentialRefresherTest {
+
+  private CredentialRefresher refresher;
+
+  @Test
+  public void testRefreshNow_singleFlight() throws InterruptedException {
+    TestCredential credential = new TestCredential(3600);
+    credential.release = new CountDownLatch(1);
+    refresher = new CredentialRefresher(credential);
+    AtomicBoolean refreshed = new AtomicBoolean();
+
+    Thread first = new Thread(() -> refreshed.set(refresher.refreshNow()));
+    first.start();
+    assertThat(credential.refreshing.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // a second caller does not wait for or repeat the refresh in flight
+    assertThat(refresher.refreshNow()).isFalse();
+
+    credential.release.countDown();
+    first.join(10000);
+    assertThat(refreshed.get()).isTrue();
+    assertThat(credential.refreshes.get()).isEqualTo(1);
+    assertThat(refresher.getRefreshCount()).isEqualTo(1);
+    assertThat(credential.getAccessToken()).isEqualTo("testAccessToken1");
+  }
+
+  @Test
+  public void testStart_refreshesBeforeExpiry() throws InterruptedException {
+    // expires 301 seconds from now, so the next refresh is due after the minimum delay
+    TestCredential credential = new TestCredential(301);
+    refresher = new CredentialRefresher(credential);
+
+    refresher.start();
+    assertThat(credential.getAccessToken()).isEqualTo("testAccessToken1");
+
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(15);
+    while (credential.refreshes.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(credential.refreshes.get()).isAtLeast(2);
+    assertThat(credential.refreshedExpiredToken.get()).isFalse();
+    assertThat(credential.getAccessToken()).isNotEqualTo("testAccessToken1");
+    assertThat(refresher.getFailureCount()).isEqualTo(0);
+  }
+
+  @After
+  public void cleanUp() {
+    refresher.shutdown();
+  }
+
+  /** A credential whose token endpoint hands out numbered tokens. */
+  private static class TestCredential extends GoogleCredential {
+    private final long expiresInSeconds;
+    private final AtomicInteger refreshes = new AtomicInteger();
+    private final AtomicBoolean refreshedExpiredToken = new AtomicBoolean();
+    private final CountDownLatch refreshing = new CountDownLatch(1);
+    // Holds refreshes back until released, if set
+    private CountDownLatch release;
+
+    private TestCredential(long expiresInSeconds) {
+      super(new GoogleCredential.Builder());
+      this.expiresInSeconds = expiresInSeconds;
+    }
+
+    @Override
+    public GoogleCredential createScoped(Collection<String> scopes) {
+      return this;
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() {
+      Long expiresAt = getExpirationTimeMilliseconds();
+      if (expiresAt != null && expiresAt <= System.currentTimeMillis()) {
+        refreshedExpiredToken.set(true);
+      }
+      refreshing.countDown();
+      if (release != null) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return new TokenResponse()
+          .setAccessToken("testAccessToken" + refreshes.incrementAndGet())
+          .setExpiresInSeconds(expiresInSeconds);
+    }
+  }
+}
@@ -17,7 +17,9 @@ import com.google.appengine.api.datastore.*;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.CartSummary;
 import com.google.businessmessages.cart.DataManager;
+import com.google.common.collect.ImmutableMap;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.After;
@@ -63,13 +65,14 @@ public class DataManagerTest {
     assertThat((String) testCart.get(0).getProperty("conversation_id"))
         .isEqualTo(testSaveCartConversationId);
     assertThat((String) testCart.get(0).getProperty("cart_id")).isEqualTo(testSaveCartId);
+    assertThat(testCart.get(0).getKey().getName()).isEqualTo(testSaveCartConversationId);
   }
 
   @Test
   public void testGetCart() {
     String testGetCartConversationId = "testGetCartConversationId";
     String testGetCartId = "testGetCartId";
-    Entity testCart = new Entity("Cart");
+    Entity testCart = new Entity("Cart", testGetCartConversationId);
     testCart.setProperty("conversation_id", testGetCartConversationId);
     testCart.setProperty("cart_id", testGetCartId);
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
@@ -83,13 +86,61 @@ public class DataManagerTest {
     assertThat((String) resultCart.getProperty("cart_id")).isEqualTo(testGetCartId);
   }
 
+  @Test
+  public void testGetCart_movesLegacyCartToKey() throws EntityNotFoundException {
+    String testLegacyConversationId = "testLegacyConversationId";
+    String testLegacyCartId = "testLegacyCartId";
+    Entity testCart = new Entity("Cart");
+    testCart.setProperty("conversation_id", testLegacyConversationId);
+    testCart.setProperty("cart_id", testLegacyCartId);
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key legacyKey = datastore.put(testCart);
+    Entity testLegacyItem = new Entity("CartItem");
+    testLegacyItem.setProperty("cart_id", testLegacyCartId);
+    testLegacyItem.setProperty("item_id", "testLegacyItemId");
+    testLegacyItem.setProperty("count", 2);
+    Key legacyItemKey = datastore.put(testLegacyItem);
+
+    Entity resultCart = datamanager.getCart(testLegacyConversationId);
+
+    assertThat((String) resultCart.getProperty("cart_id")).isEqualTo(testLegacyCartId);
+    Entity keyedCart = datastore.get(KeyFactory.createKey("Cart", testLegacyConversationId));
+    assertThat((String) keyedCart.getProperty("cart_id")).isEqualTo(testLegacyCartId);
+    assertThat(datastore.get(Arrays.asList(legacyKey, legacyItemKey))).isEmpty();
+    Entity movedItem = datamanager.getExistingItem(testLegacyConversationId, "testLegacyItemId");
+    assertThat(((Long) movedItem.getProperty("count")).intValue()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetCart_movesAllItemsOfLegacyCart() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity testCart = new Entity("Cart");
+    testCart.setProperty("conversation_id", "testLargeLegacyConversationId");
+    testCart.setProperty("cart_id", "testLargeLegacyCartId");
+    datastore.put(testCart);
+    for (int i = 0; i < 60; i++) {
+      Entity testLegacyItem = new Entity("CartItem");
+      testLegacyItem.setProperty("cart_id", "testLargeLegacyCartId");
+      testLegacyItem.setProperty("item_id", "testLegacyItemId" + i);
+      testLegacyItem.setProperty("count", 2);
+      datastore.put(testLegacyItem);
+    }
+
+    Entity resultCart = datamanager.getCart("testLargeLegacyConversationId");
+
+    assertThat(datamanager.countCartItems("testLargeLegacyConversationId")).isEqualTo(60);
+    CartSummary summary = DataManager.getSummary("testLargeLegacyConversationId", resultCart);
+    assertThat(summary.getItemCount()).isEqualTo(60);
+    assertThat(summary.getTotalQuantity()).isEqualTo(120);
+  }
+
   @Test
   public void testGetExistingItem() {
     String testGetItemCartId = "testGetItemCartId";
     String testGetItemId = "testGetItemId";
     String testGetItemTitle = "testGetItemTitle";
-    Entity testGetItem = new Entity("CartItem");
-    testGetItem.setProperty("cart_id", testGetItemCartId);
+    Entity testGetItem =
+        new Entity("CartItem", testGetItemId, KeyFactory.createKey("Cart", testGetItemCartId));
     testGetItem.setProperty("item_id", testGetItemId);
     testGetItem.setProperty("item_title", testGetItemTitle);
     testGetItem.setProperty("count", 1);
@@ -99,7 +150,7 @@ public class DataManagerTest {
     Entity testResult = datamanager.getExistingItem(testGetItemCartId, testGetItemId);
 
     assertThat(testResult).isNotNull();
-    assertThat((String) testResult.getProperty("cart_id")).isEqualTo(testGetItemCartId);
+    assertThat(testResult.getParent().getName()).isEqualTo(testGetItemCartId);
     assertThat((String) testResult.getProperty("item_id")).isEqualTo(testGetItemId);
     assertThat((String) testResult.getProperty("item_title")).isEqualTo(testGetItemTitle);
     assertThat(((Long) testResult.getProperty("count")).intValue()).isEqualTo(1);
@@ -113,32 +164,37 @@ public class DataManagerTest {
 
     datamanager.addItemToCart(testAddItemCartId, testAddItemId, testAddItemTitle);
 
-    final Query q =
-        new Query("CartItem")
-            .setFilter(
-                new Query.CompositeFilter(
-                    CompositeFilterOperator.AND,
-                    Arrays.asList(
-                        new Query.FilterPredicate(
-                            "cart_id", Query.FilterOperator.EQUAL, testAddItemCartId),
-                        new Query.FilterPredicate(
-                            "item_id", Query.FilterOperator.EQUAL, testAddItemId))));
+    Key cartKey = KeyFactory.createKey("Cart", testAddItemCartId);
+    final Query q = new Query("CartItem").setAncestor(cartKey);
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
     PreparedQuery pq = datastore.prepare(q);
     List<Entity> testCart = pq.asList(FetchOptions.Builder.withLimit(1));
     assertThat(testCart).isNotEmpty();
-    assertThat((String) testCart.get(0).getProperty("cart_id")).isEqualTo(testAddItemCartId);
+    assertThat(testCart.get(0).getKey().getName()).isEqualTo(testAddItemId);
     assertThat((String) testCart.get(0).getProperty("item_id")).isEqualTo(testAddItemId);
     assertThat((String) testCart.get(0).getProperty("item_title")).isEqualTo(testAddItemTitle);
     assertThat(((Long) testCart.get(0).getProperty("count")).intValue()).isEqualTo(1);
   }
 
+  @Test
+  public void testAddItemToCart_incrementsCount() {
+    String testIncrementCartId = "testIncrementCartId";
+    String testIncrementItemId = "testIncrementItemId";
+
+    datamanager.addItemToCart(testIncrementCartId, testIncrementItemId, "testIncrementItemTitle");
+    datamanager.addItemToCart(testIncrementCartId, testIncrementItemId, "testIncrementItemTitle");
+
+    Entity testResult = datamanager.getExistingItem(testIncrementCartId, testIncrementItemId);
+    assertThat(((Long) testResult.getProperty("count")).intValue()).isEqualTo(2);
+    assertThat(datamanager.getCartFromData(testIncrementCartId)).hasSize(1);
+  }
+
   @Test
   public void testDeleteItemFromCart() {
     String testDeleteItemCartId = "testDeleteItemCartId";
     String testDeleteItemId = "testDeleteItemId";
-    Entity testDeleteItem = new Entity("CartItem");
-    testDeleteItem.setProperty("cart_id", testDeleteItemCartId);
+    Key cartKey = KeyFactory.createKey("Cart", testDeleteItemCartId);
+    Entity testDeleteItem = new Entity("CartItem", testDeleteItemId, cartKey);
     testDeleteItem.setProperty("item_id", testDeleteItemId);
     testDeleteItem.setProperty("count", 1);
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
@@ -146,32 +202,99 @@ public class DataManagerTest {
 
     datamanager.deleteItemFromCart(testDeleteItemCartId, testDeleteItemId);
 
-    final Query q =
-        new Query("CartItem")
-            .setFilter(
-                new Query.CompositeFilter(
-                    CompositeFilterOperator.AND,
-                    Arrays.asList(
-                        new Query.FilterPredicate(
-                            "cart_id", Query.FilterOperator.EQUAL, testDeleteItemCartId),
-                        new Query.FilterPredicate(
-                            "item_id", Query.FilterOperator.EQUAL, testDeleteItemId))));
+    final Query q = new Query("CartItem").setAncestor(cartKey);
     PreparedQuery pq = datastore.prepare(q);
     List<Entity> testCart = pq.asList(FetchOptions.Builder.withLimit(50));
     assertThat(testCart).isEmpty();
   }
 
+  @Test
+  public void testGetOrInsertCart_keepsExistingCart() {
+    String testInsertCartId = "testInsertCartId";
+
+    Entity insertedCart = datamanager.getOrInsertCart(testInsertCartId);
+    long version = DataManager.getVersion(insertedCart);
+    datamanager.addItemToCart(testInsertCartId, "testItemId1", "testItemTitle1");
+    Entity existingCart = datamanager.getOrInsertCart(testInsertCartId);
+
+    assertThat(insertedCart.getKey().getName()).isEqualTo(testInsertCartId);
+    assertThat(datamanager.isKnownCart(testInsertCartId)).isTrue();
+    assertThat(DataManager.getVersion(existingCart)).isEqualTo(version + 1);
+    assertThat(DataManager.getSummary(testInsertCartId, existingCart).getItemCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void testApplyItemDeltas() {
+    String testDeltasCartId = "testDeltasCartId";
+    long version = datamanager.saveCart(testDeltasCartId, testDeltasCartId);
+    datamanager.addItemToCart(testDeltasCartId, "testItemId1", "testItemTitle1");
+    datamanager.addItemToCart(testDeltasCartId, "testItemId2", "testItemTitle2");
+
+    long newVersion =
+        datamanager.applyItemDeltas(
+            testDeltasCartId,
+            ImmutableMap.of("testItemId1", 4, "testItemId2", -1, "testItemId3", 2),
+            ImmutableMap.of("testItemId3", "testItemTitle3"),
+            null);
+
+    assertThat(newVersion).isEqualTo(version + 3);
+    Entity item1 = datamanager.getExistingItem(testDeltasCartId, "testItemId1");
+    assertThat(((Long) item1.getProperty("count")).intValue()).isEqualTo(5);
+    assertThat(datamanager.getExistingItem(testDeltasCartId, "testItemId2")).isNull();
+    Entity item3 = datamanager.getExistingItem(testDeltasCartId, "testItemId3");
+    assertThat((String) item3.getProperty("item_title")).isEqualTo("testItemTitle3");
+    assertThat(((Long) item3.getProperty("count")).intValue()).isEqualTo(2);
+  }
+
+  @Test
+  public void testApplyItemDeltas_appliedOnceForMutationId() {
+    String testMutationCartId = "testMutationCartId";
+    datamanager.saveCart(testMutationCartId, testMutationCartId);
+
+    long version =
+        datamanager.applyItemDeltas(
+            testMutationCartId,
+            ImmutableMap.of("testItemId", 2),
+            ImmutableMap.of("testItemId", "testItemTitle"),
+            "testMessageId");
+    long redeliveredVersion =
+        datamanager.applyItemDeltas(
+            testMutationCartId,
+            ImmutableMap.of("testItemId", 2),
+            ImmutableMap.of("testItemId", "testItemTitle"),
+            "testMessageId");
+
+    assertThat(redeliveredVersion).isEqualTo(version);
+    Entity item = datamanager.getExistingItem(testMutationCartId, "testItemId");
+    assertThat(((Long) item.getProperty("count")).intValue()).isEqualTo(2);
+    assertThat(datamanager.getCartFromData(testMutationCartId)).hasSize(1);
+  }
+
+  @Test
+  public void testClearCart() {
+    String testClearCartId = "testClearCartId";
+    long version = datamanager.saveCart(testClearCartId, testClearCartId);
+    datamanager.addItemToCart(testClearCartId, "testItemId1", "testItemTitle1");
+    datamanager.addItemToCart(testClearCartId, "testItemId2", "testItemTitle2");
+
+    long newVersion = datamanager.clearCart(testClearCartId, null);
+
+    assertThat(newVersion).isEqualTo(version + 3);
+    assertThat(datamanager.getCartFromData(testClearCartId)).isEmpty();
+    assertThat(datamanager.getCart(testClearCartId)).isNotNull();
+  }
+
   @Test
   public void testGetCartFromData() {
     String testGetCartId = "testGetCartId";
     String testGetCartItemId1 = "testGetCartItemId1";
     String testGetCartItemId2 = "testGetCartItemId2";
-    Entity testGetCartItem1 = new Entity("CartItem");
-    testGetCartItem1.setProperty("cart_id", testGetCartId);
+    Key cartKey = KeyFactory.createKey("Cart", testGetCartId);
+    Entity testGetCartItem1 = new Entity("CartItem", testGetCartItemId1, cartKey);
     testGetCartItem1.setProperty("item_id", testGetCartItemId1);
     testGetCartItem1.setProperty("count", 1);
-    Entity testGetCartItem2 = new Entity("CartItem");
-    testGetCartItem2.setProperty("cart_id", testGetCartId);
+    Entity testGetCartItem2 = new Entity("CartItem", testGetCartItemId2, cartKey);
     testGetCartItem2.setProperty("item_id", testGetCartItemId2);
     testGetCartItem2.setProperty("count", 1);
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
@@ -183,6 +306,59 @@ public class DataManagerTest {
     assertThat(testCart.size()).isEqualTo(2);
   }
 
+  @Test
+  public void testUpdateCartDocument() {
+    String testDocumentCartId = "testDocumentCartId";
+
+    datamanager.addItemToCartDocument(testDocumentCartId, "testItemId1", "testItemTitle1");
+    datamanager.addItemToCartDocument(testDocumentCartId, "testItemId1", "testItemTitle1");
+    datamanager.addItemToCartDocument(testDocumentCartId, "testItemId2", "testItemTitle2");
+    Entity testCart = datamanager.deleteItemFromCartDocument(testDocumentCartId, "testItemId2");
+
+    assertThat(DataManager.isCartDocument(testCart)).isTrue();
+    Entity storedCart = datamanager.getCart(testDocumentCartId);
+    List<EmbeddedEntity> items = DataManager.getDocumentItems(storedCart);
+    assertThat(items).hasSize(1);
+    assertThat((String) items.get(0).getProperty("item_id")).isEqualTo("testItemId1");
+    assertThat(((Long) items.get(0).getProperty("count")).intValue()).isEqualTo(2);
+  }
+
+  @Test
+  public void testConvertCart() {
+    String testConvertCartId = "testConvertCartId";
+    datamanager.saveCart(testConvertCartId, testConvertCartId);
+    datamanager.addItemToCart(testConvertCartId, "testItemId1", "testItemTitle1");
+    datamanager.addItemToCart(testConvertCartId, "testItemId2", "testItemTitle2");
+
+    Entity testDocument = datamanager.convertToDocument(testConvertCartId);
+
+    assertThat(DataManager.getDocumentItems(testDocument)).hasSize(2);
+    assertThat(datamanager.getCartFromData(testConvertCartId)).isEmpty();
+
+    Entity testEntities = datamanager.convertToEntities(testConvertCartId);
+
+    assertThat(DataManager.isCartDocument(testEntities)).isFalse();
+    assertThat(datamanager.getCartFromData(testConvertCartId)).hasSize(2);
+  }
+
+  @Test
+  public void testMutationsConvertMismatchedCart() {
+    String testMixedCartId = "testMixedCartId";
+    datamanager.saveCart(testMixedCartId, testMixedCartId);
+    datamanager.addItemToCart(testMixedCartId, "testItemId1", "testItemTitle1");
+
+    Entity testDocument =
+        datamanager.addItemToCartDocument(testMixedCartId, "testItemId2", "testItemTitle2");
+
+    assertThat(DataManager.getDocumentItems(testDocument)).hasSize(2);
+    assertThat(datamanager.getCartFromData(testMixedCartId)).isEmpty();
+
+    datamanager.addItemToCart(testMixedCartId, "testItemId3", "testItemTitle3");
+
+    assertThat(DataManager.isCartDocument(datamanager.getCart(testMixedCartId))).isFalse();
+    assertThat(datamanager.getCartFromData(testMixedCartId)).hasSize(3);
+  }
+
   @After
   public void cleanUp() {
     helper.tearDown();
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.Cart;
+import com.google.businessmessages.cart.InMemoryCartStore;
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import org.junit.Test;
+
+public class InMemoryCartStoreTest {
+
+  private final InMemoryCartStore store = new InMemoryCartStore();
+
+  @Test
+  public void testGetOrCreateCart_isCreatedOnce() {
+    Cart created = store.getOrCreateCart("testCart");
+    Cart read = store.getOrCreateCart("testCart");
+
+    assertThat(created.getItems()).isEmpty();
+    assertThat(read).isSameAs(created);
+    assertThat(store.getCartCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testApplyItemDeltas() {
+    Cart cart = store.getOrCreateCart("testCart");
+
+    Cart updated =
+        store.applyItemDeltas(
+            cart,
+            ImmutableMap.of("item1", 2, "item2", 1),
+            ImmutableMap.of("item1", "title1", "item2", "title2"),
+            null);
+    updated =
+        store.applyItemDeltas(updated, ImmutableMap.of("item2", -1), Collections.emptyMap(), null);
+
+    assertThat(updated.getVersion()).isEqualTo(cart.getVersion() + 2);
+    assertThat(updated.getItems()).hasSize(1);
+    assertThat(updated.getItems().get(0).getTitle()).isEqualTo("title1");
+    assertThat(updated.getItems().get(0).getCount()).isEqualTo(2);
+    assertThat(store.getOrCreateCart("testCart")).isSameAs(updated);
+  }
+
+  @Test
+  public void testApplyItemDeltas_appliedOnceForMutationId() {
+    Cart cart = store.getOrCreateCart("testCart");
+
+    Cart first =
+        store.applyItemDeltas(
+            cart, ImmutableMap.of("item1", 1), ImmutableMap.of("item1", "title1"), "message1");
+    Cart redelivered =
+        store.applyItemDeltas(
+            cart, ImmutableMap.of("item1", 1), ImmutableMap.of("item1", "title1"), "message1");
+
+    assertThat(redelivered).isSameAs(first);
+    assertThat(redelivered.getItems().get(0).getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testClearCart() {
+    Cart cart =
+        store.applyItemDeltas(
+            store.getOrCreateCart("testCart"),
+            ImmutableMap.of("item1", 3),
+            ImmutableMap.of("item1", "title1"),
+            null);
+
+    Cart cleared = store.clearCart(cart, null);
+
+    assertThat(cleared.getItems()).isEmpty();
+    assertThat(cleared.getVersion()).isEqualTo(cart.getVersion() + 1);
+  }
+}
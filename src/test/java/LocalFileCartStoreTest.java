@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.Cart;
+import com.google.businessmessages.cart.LocalFileCartStore;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalFileCartStoreTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path logPath;
+  private LocalFileCartStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    logPath = folder.getRoot().toPath().resolve("carts.log");
+    store = new LocalFileCartStore(logPath, 0);
+  }
+
+  @Test
+  public void testCartsAreRecoveredOnReopen() throws IOException {
+    Cart cart = store.getOrCreateCart("testCart");
+    cart =
+        store.applyItemDeltas(
+            cart,
+            ImmutableMap.of("item1", 2, "item2", 1),
+            ImmutableMap.of("item1", "title1", "item2", "title2"),
+            "message1");
+    store.close();
+
+    store = new LocalFileCartStore(logPath, 0);
+    Cart recovered = store.getOrCreateCart("testCart");
+
+    assertThat(recovered.getVersion()).isEqualTo(cart.getVersion());
+    assertThat(recovered.getItems()).hasSize(2);
+    assertThat(recovered.getItems().get(0).getCount()).isEqualTo(2);
+    assertThat(recovered.getItems().get(1).getTitle()).isEqualTo("title2");
+    assertThat(store.getRecords()).isEqualTo(2);
+
+    // the redelivered change is not made again after the restart
+    Cart redelivered =
+        store.applyItemDeltas(
+            recovered, ImmutableMap.of("item1", 2), ImmutableMap.of("item1", "title1"), "message1");
+    assertThat(redelivered.getVersion()).isEqualTo(cart.getVersion());
+  }
+
+  @Test
+  public void testCompact_keepsLatestCarts() throws IOException {
+    Cart cart = store.getOrCreateCart("testCart");
+    for (int i = 0; i < 5; i++) {
+      cart =
+          store.applyItemDeltas(
+              cart, ImmutableMap.of("item1", 1), ImmutableMap.of("item1", "title1"), null);
+    }
+    store.getOrCreateCart("otherCart");
+
+    assertThat(store.compactIfNeeded()).isTrue();
+    assertThat(store.getRecords()).isEqualTo(2);
+    assertThat(store.getCompactions()).isEqualTo(1);
+    assertThat(store.compactIfNeeded()).isFalse();
+
+    cart = store.clearCart(cart, null);
+    store.close();
+
+    store = new LocalFileCartStore(logPath, 0);
+    assertThat(store.getCartCount()).isEqualTo(2);
+    assertThat(store.getRecords()).isEqualTo(3);
+    assertThat(store.getOrCreateCart("testCart").getVersion()).isEqualTo(cart.getVersion());
+    assertThat(store.getOrCreateCart("testCart").getItems()).isEmpty();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+  }
+}
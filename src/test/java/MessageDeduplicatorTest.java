@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.MessageDeduplicator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageDeduplicatorTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @Test
+  public void testMarkSeen_redeliveryCaughtLocally() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(100, 60);
+
+    assertThat(deduplicator.markSeen("testLocalMessageId")).isTrue();
+    assertThat(deduplicator.markSeen("testLocalMessageId")).isFalse();
+
+    assertThat(deduplicator.getMisses()).isEqualTo(1);
+    assertThat(deduplicator.getLocalHits()).isEqualTo(1);
+    assertThat(deduplicator.getSharedHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMarkSeen_redeliveryCaughtByOtherInstance() {
+    MessageDeduplicator firstInstance = new MessageDeduplicator(100, 60);
+    MessageDeduplicator secondInstance = new MessageDeduplicator(100, 60);
+
+    assertThat(firstInstance.markSeen("testSharedMessageId")).isTrue();
+    assertThat(secondInstance.markSeen("testSharedMessageId")).isFalse();
+
+    assertThat(secondInstance.getSharedHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testForget_allowsRedelivery() {
+    MessageDeduplicator deduplicator = new MessageDeduplicator(100, 60);
+    deduplicator.markSeen("testForgetMessageId");
+
+    deduplicator.forget("testForgetMessageId");
+
+    assertThat(deduplicator.markSeen("testForgetMessageId")).isTrue();
+  }
+
+  @After
+  public void cleanUp() {
+    helper.tearDown();
+  }
+}
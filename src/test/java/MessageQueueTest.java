@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.MessageQueue;
+import com.google.businessmessages.cart.MessageQueue.OverflowPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+
+public class MessageQueueTest {
+
+  private MessageQueue queue;
+
+  // Released to let the task blocking the single worker finish
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Test
+  public void testSubmit_queuesUpToCapacity() throws InterruptedException {
+    queue = new MessageQueue(1, 2, OverflowPolicy.REJECT);
+    blockWorker("testBlockingConversationId");
+
+    assertThat(queue.submit("testConversationId1", () -> {})).isTrue();
+    assertThat(queue.submit("testConversationId2", () -> {})).isTrue();
+
+    assertThat(queue.getQueueDepth()).isEqualTo(2);
+    assertThat(queue.getRejectedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSubmit_rejectsWhenFull() throws InterruptedException {
+    queue = new MessageQueue(1, 1, OverflowPolicy.REJECT);
+    blockWorker("testBlockingConversationId");
+    AtomicBoolean ran = new AtomicBoolean();
+
+    assertThat(queue.submit("testConversationId", () -> {})).isTrue();
+    assertThat(queue.submit("testConversationId", () -> ran.set(true))).isFalse();
+
+    release.countDown();
+    assertThat(queue.shutdown(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran.get()).isFalse();
+    assertThat(queue.getRejectedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSubmit_callerRunsAfterQueuedTasksOfConversation() throws InterruptedException {
+    queue = new MessageQueue(1, 1, OverflowPolicy.CALLER_RUNS);
+    List<String> testOrder = Collections.synchronizedList(new ArrayList<>());
+    blockWorker("testConversationId");
+    assertThat(queue.submit("testConversationId", () -> testOrder.add("queued"))).isTrue();
+
+    CountDownLatch submitted = new CountDownLatch(1);
+    Thread caller =
+        new Thread(
+            () -> {
+              queue.submit("testConversationId", () -> testOrder.add("overflow"));
+              submitted.countDown();
+            });
+    caller.start();
+
+    // the caller waits for its turn rather than overtaking the queued task
+    assertThat(submitted.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(testOrder).isEmpty();
+
+    release.countDown();
+    assertThat(submitted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(testOrder).containsExactly("queued", "overflow").inOrder();
+    assertThat(queue.getCallerRunsCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testShutdown_drainsQueuedTasks() throws InterruptedException {
+    queue = new MessageQueue(2, 100, OverflowPolicy.REJECT);
+    blockWorker("testBlockingConversationId");
+    List<Integer> testDone = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 50; i++) {
+      int index = i;
+      assertThat(queue.submit("testConversationId" + (i % 5), () -> testDone.add(index)))
+          .isTrue();
+    }
+
+    release.countDown();
+
+    assertThat(queue.shutdown(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(testDone).hasSize(50);
+    assertThat(queue.getQueueDepth()).isEqualTo(0);
+    assertThat(queue.submit("testConversationId", () -> {})).isFalse();
+  }
+
+  /** Occupies a worker until the test releases it. */
+  private void blockWorker(String conversationId) throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    queue.submit(
+        conversationId,
+        () -> {
+          started.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @After
+  public void cleanUp() {
+    release.countDown();
+    queue.shutdown(10, TimeUnit.SECONDS);
+  }
+}
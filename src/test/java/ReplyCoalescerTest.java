@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesMessage;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesRichCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesStandaloneCard;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestedReply;
+import com.google.api.services.businessmessages.v1.model.BusinessMessagesSuggestion;
+import com.google.businessmessages.cart.ReplyCoalescer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReplyCoalescerTest {
+
+  private final List<BusinessMessagesMessage> sent =
+      Collections.synchronizedList(new ArrayList<>());
+  private ReplyCoalescer coalescer;
+
+  @Test
+  public void testSend_mergesTextRepliesWithinWindow() throws InterruptedException {
+    CountDownLatch posted = new CountDownLatch(1);
+    coalescer = new ReplyCoalescer(recordingSender(posted), 100, 1000);
+
+    coalescer.send(text("testFirstText", "testFirstChip"), "testConversationId");
+    coalescer.send(text("testSecondText", "testSecondChip"), "testConversationId");
+
+    assertThat(posted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0).getText()).isEqualTo("testFirstText\n\ntestSecondText");
+    assertThat(coalescer.getRepliesReceived()).isEqualTo(2);
+    assertThat(coalescer.getMessagesSent()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSend_keepsSuggestionsOfLatestReply() throws InterruptedException {
+    CountDownLatch posted = new CountDownLatch(1);
+    coalescer = new ReplyCoalescer(recordingSender(posted), 100, 1000);
+
+    coalescer.send(text("testFirstText", "testFirstChip"), "testConversationId");
+    coalescer.send(text("testSecondText", "testSecondChip"), "testConversationId");
+
+    assertThat(posted.await(10, TimeUnit.SECONDS)).isTrue();
+    List<BusinessMessagesSuggestion> suggestions = sent.get(0).getSuggestions();
+    assertThat(suggestions).hasSize(1);
+    assertThat(suggestions.get(0).getReply().getText()).isEqualTo("testSecondChip");
+  }
+
+  @Test
+  public void testSend_richCardGoesAfterPendingText() {
+    coalescer = new ReplyCoalescer(recordingSender(new CountDownLatch(2)), 60000, 60000);
+    BusinessMessagesMessage card =
+        new BusinessMessagesMessage()
+            .setRichCard(
+                new BusinessMessagesRichCard()
+                    .setStandaloneCard(new BusinessMessagesStandaloneCard()));
+
+    coalescer.send(text("testText", "testChip"), "testConversationId");
+    coalescer.send(card, "testConversationId");
+
+    // the card flushes the pending text first, both on the sending thread
+    assertThat(sent).hasSize(2);
+    assertThat(sent.get(0).getText()).isEqualTo("testText");
+    assertThat(sent.get(1)).isSameAs(card);
+  }
+
+  @Test
+  public void testSend_slowPostDoesNotHoldUpOtherConversations() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch otherPosted = new CountDownLatch(1);
+    coalescer =
+        new ReplyCoalescer(
+            (message, conversationId) -> {
+              if (conversationId.equals("testSlowConversationId")) {
+                try {
+                  release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              } else {
+                otherPosted.countDown();
+              }
+            },
+            50,
+            1000);
+
+    coalescer.send(text("testSlowText", "testChip"), "testSlowConversationId");
+    Thread.sleep(200);
+    coalescer.send(text("testOtherText", "testChip"), "testOtherConversationId");
+
+    assertThat(otherPosted.await(5, TimeUnit.SECONDS)).isTrue();
+    release.countDown();
+  }
+
+  @Test
+  public void testShutdown_sendsPendingReplies() {
+    coalescer = new ReplyCoalescer(recordingSender(new CountDownLatch(1)), 60000, 60000);
+
+    coalescer.send(text("testText", "testChip"), "testConversationId");
+    coalescer.shutdown();
+
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0).getText()).isEqualTo("testText");
+  }
+
+  private ReplyCoalescer.Sender recordingSender(CountDownLatch posted) {
+    return (message, conversationId) -> {
+      sent.add(message);
+      posted.countDown();
+    };
+  }
+
+  private static BusinessMessagesMessage text(String text, String chip) {
+    List<BusinessMessagesSuggestion> suggestions = new ArrayList<>();
+    suggestions.add(
+        new BusinessMessagesSuggestion()
+            .setReply(new BusinessMessagesSuggestedReply().setText(chip).setPostbackData(chip)));
+    return new BusinessMessagesMessage()
+        .setText(text)
+        .setFallback(text)
+        .setSuggestions(suggestions);
+  }
+
+  @After
+  public void cleanUp() {
+    coalescer.shutdown();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.TransactionRunner;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionRunnerTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private Key counterKey;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    counterKey = KeyFactory.createKey("Counter", "testCounter");
+    datastore.put(newCounter());
+  }
+
+  @Test
+  public void testRun_retriesAfterContention() throws EntityNotFoundException {
+    TransactionRunner runner = new TransactionRunner(datastore, 3, 0, 0);
+    AtomicInteger attempts = new AtomicInteger();
+
+    long count =
+        runner.run(
+            transaction -> {
+              Entity counter = getCounter(transaction);
+              if (attempts.incrementAndGet() == 1) {
+                // another writer commits to the same entity group first
+                datastore.put(newCounter());
+              }
+              counter.setProperty("count", (Long) counter.getProperty("count") + 1);
+              datastore.put(transaction, counter);
+              return (Long) counter.getProperty("count");
+            });
+
+    assertThat(attempts.get()).isEqualTo(2);
+    assertThat(count).isEqualTo(1L);
+    assertThat(datastore.get(counterKey).getProperty("count")).isEqualTo(1L);
+    assertThat(runner.getTransactions()).isEqualTo(1);
+    assertThat(runner.getContentions()).isEqualTo(1);
+    assertThat(runner.getRetries()).isEqualTo(1);
+    assertThat(runner.getExhausted()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRun_givesUpAfterMaxAttempts() {
+    TransactionRunner runner = new TransactionRunner(datastore, 2, 0, 0);
+
+    try {
+      runner.run(
+          transaction -> {
+            Entity counter = getCounter(transaction);
+            datastore.put(newCounter());
+            datastore.put(transaction, counter);
+            return null;
+          });
+      fail("Expected the transaction to run out of attempts.");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+
+    assertThat(runner.getContentions()).isEqualTo(2);
+    assertThat(runner.getRetries()).isEqualTo(1);
+    assertThat(runner.getExhausted()).isEqualTo(1);
+  }
+
+  private Entity newCounter() {
+    Entity counter = new Entity(counterKey);
+    counter.setProperty("count", 0L);
+    return counter;
+  }
+
+  private Entity getCounter(Transaction transaction) {
+    try {
+      return datastore.get(transaction, counterKey);
+    } catch (EntityNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.businessmessages.v1.Businessmessages;
+import com.google.businessmessages.cart.TypingIndicator;
+import com.google.businessmessages.cart.TypingIndicator.Policy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+public class TypingIndicatorTest {
+
+  private static final String STARTED = "TYPING_STARTED";
+  private static final String STOPPED = "TYPING_STOPPED";
+
+  // How long events sent in the background are waited for
+  private static final long EVENT_TIMEOUT_MILLIS = 10000;
+  // How long to wait before checking that no further event was sent
+  private static final long QUIET_MILLIS = 200;
+
+  // The types of the events the indicator sent, in order
+  private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+  private TypingIndicator indicator;
+
+  @Test
+  public void testAlways_deliveredReplyEndsIndicator() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.ALWAYS, 0);
+
+    indicator.replyStarted("testConversationId");
+    awaitStarted();
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", true);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).containsExactly(STARTED);
+    assertThat(indicator.getCallsMade()).isEqualTo(1);
+    assertThat(indicator.getCallsSaved()).isEqualTo(1);
+  }
+
+  @Test
+  public void testAlways_failedReplyStopsIndicator() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.ALWAYS, 0);
+
+    indicator.replyStarted("testConversationId");
+    awaitStarted();
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", false);
+
+    awaitEvents(2);
+    assertThat(events).containsExactly(STARTED, STOPPED).inOrder();
+    assertThat(indicator.getCallsSaved()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAlways_replyHeldBackSharesIndicator() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.ALWAYS, 0);
+
+    indicator.replyStarted("testConversationId");
+    awaitStarted();
+    // a second message arrives while the first reply is held back to be merged
+    indicator.replyStarted("testConversationId");
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", true);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).containsExactly(STARTED);
+  }
+
+  @Test
+  public void testDeadline_replyBeforeDeadlineSendsNothing() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.DEADLINE, EVENT_TIMEOUT_MILLIS);
+
+    indicator.replyStarted("testConversationId");
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", true);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).isEmpty();
+    assertThat(indicator.getCallsSaved()).isEqualTo(2);
+  }
+
+  @Test
+  public void testDeadline_slowReplyStartsIndicator() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.DEADLINE, 50);
+
+    indicator.replyStarted("testConversationId");
+    awaitStarted();
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", true);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).containsExactly(STARTED);
+    assertThat(indicator.getCallsSaved()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDeadline_noReplyCancelsIndicator() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.DEADLINE, 100);
+
+    indicator.replyStarted("testConversationId");
+    indicator.replyFinished("testConversationId", false);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).isEmpty();
+    assertThat(indicator.getCallsSaved()).isEqualTo(2);
+  }
+
+  @Test
+  public void testNever_sendsNothing() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.NEVER, 0);
+
+    indicator.replyStarted("testConversationId");
+    indicator.replySending("testConversationId");
+    indicator.replyFinished("testConversationId", true);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).isEmpty();
+    assertThat(indicator.getCallsSaved()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReplyFinished_ignoresFinishedReply() throws InterruptedException {
+    indicator = new TypingIndicator(recordingApi(), Policy.ALWAYS, 0);
+
+    indicator.replyStarted("testConversationId");
+    awaitStarted();
+    indicator.replyFinished("testConversationId", true);
+    indicator.replyFinished("testConversationId", false);
+
+    Thread.sleep(QUIET_MILLIS);
+    assertThat(events).containsExactly(STARTED);
+  }
+
+  /** Creates a BM API client whose requests record the type of the event they send. */
+  private Businessmessages recordingApi() {
+    MockHttpTransport transport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() throws IOException {
+                String content = getContentAsString();
+                events.add(content.contains(STARTED) ? STARTED : STOPPED);
+                return new MockLowLevelHttpResponse()
+                    .setContentType(Json.MEDIA_TYPE)
+                    .setContent("{}");
+              }
+            };
+          }
+        };
+    return new Businessmessages.Builder(transport, JacksonFactory.getDefaultInstance(), null)
+        .setApplicationName("testApplication")
+        .build();
+  }
+
+  /** Waits until TYPING_STARTED was sent and the indicator has recorded it as sent. */
+  private void awaitStarted() throws InterruptedException {
+    awaitEvents(1);
+    Thread.sleep(QUIET_MILLIS);
+  }
+
+  private void awaitEvents(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MILLIS;
+    while (events.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(events.size()).isAtLeast(count);
+  }
+
+  @After
+  public void cleanUp() {
+    indicator.shutdown();
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.DataManager;
+import com.google.businessmessages.cart.UnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnitOfWorkTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  DataManager datamanager;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datamanager = DataManager.getInstance();
+  }
+
+  @Test
+  public void testReadsEachEntityOnce() {
+    String cartId = "testUnitCartId";
+    datamanager.saveCart(cartId, cartId);
+    datamanager.addItemToCart(cartId, "testItemId1", "testItemTitle1");
+
+    try (UnitOfWork work = UnitOfWork.begin()) {
+      assertThat(datamanager.getCart(cartId)).isNotNull();
+      assertThat(datamanager.getCart(cartId)).isNotNull();
+      assertThat(datamanager.getCartFromData(cartId)).hasSize(1);
+      assertThat(datamanager.getExistingItem(cartId, "testItemId1")).isNotNull();
+      assertThat(datamanager.getExistingItem(cartId, "testItemId2")).isNull();
+
+      assertThat(work.getRpcs()).isEqualTo(2);
+      assertThat(work.getHits()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void testMutationDropsCart() {
+    String cartId = "testUnitMutationCartId";
+    datamanager.saveCart(cartId, cartId);
+
+    try (UnitOfWork work = UnitOfWork.begin()) {
+      assertThat(datamanager.getCartFromData(cartId)).isEmpty();
+      datamanager.addItemToCart(cartId, "testItemId1", "testItemTitle1");
+      int rpcs = work.getRpcs();
+
+      assertThat(datamanager.getExistingItem(cartId, "testItemId1")).isNotNull();
+      assertThat(work.getRpcs()).isEqualTo(rpcs + 1);
+    }
+  }
+
+  @Test
+  public void testClose_endsUnit() {
+    UnitOfWork work = UnitOfWork.begin();
+    work.close();
+
+    assertThat(UnitOfWork.current()).isNull();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+}
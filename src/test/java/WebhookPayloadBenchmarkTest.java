@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.servlets.WebhookPayload;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+/**
+ * Times the streaming webhook parser against the path AgentCallback used before it, reading the
+ * body into a String line by line and building a Gson tree, on the payloads of WebhookPayloadTest.
+ * Both paths must extract the same fields, and the streaming parser must not be the slower one.
+ */
+public class WebhookPayloadBenchmarkTest {
+
+  private static final int WARMUP_ITERATIONS = 20_000;
+  private static final int MEASURED_ITERATIONS = 50_000;
+  // The fastest of several rounds is compared, which filters out GC pauses and other noise
+  private static final int ROUNDS = 5;
+  // Allowance for timer noise on a busy machine
+  private static final double MARGIN = 1.2;
+
+  private static final String[] PAYLOADS = {
+    WebhookPayloadTest.MESSAGE_PAYLOAD,
+    WebhookPayloadTest.SUGGESTION_PAYLOAD,
+    WebhookPayloadTest.RECEIPTS_PAYLOAD
+  };
+
+  // Keeps the JIT from eliminating the parsing work
+  private static int sink;
+
+  @Test
+  public void testParse_extractsSameFieldsAsTree() throws IOException {
+    for (String payload : PAYLOADS) {
+      assertThat(parseStreaming(payload)).isEqualTo(parseTree(payload));
+    }
+  }
+
+  @Test
+  public void testParse_noSlowerThanTree() throws IOException {
+    for (String payload : PAYLOADS) {
+      time(false, payload, WARMUP_ITERATIONS);
+      time(true, payload, WARMUP_ITERATIONS);
+
+      long treeNanos = Long.MAX_VALUE;
+      long streamingNanos = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        treeNanos = Math.min(treeNanos, time(false, payload, MEASURED_ITERATIONS));
+        streamingNanos = Math.min(streamingNanos, time(true, payload, MEASURED_ITERATIONS));
+      }
+
+      assertThat((double) streamingNanos).isAtMost(treeNanos * MARGIN);
+    }
+    assertThat(sink).isNotEqualTo(0);
+  }
+
+  private static long time(boolean streaming, String payload, int iterations)
+      throws IOException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += streaming ? parseStreaming(payload) : parseTree(payload);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static int parseTree(String payload) {
+    String body =
+        new BufferedReader(new StringReader(payload))
+            .lines()
+            .collect(Collectors.joining(System.lineSeparator()));
+    JsonObject obj = new JsonParser().parse(body).getAsJsonObject();
+    String conversationId = obj.get("conversationId").getAsString();
+    if (obj.has("message")) {
+      return conversationId.length()
+          + obj.get("message").getAsJsonObject().get("text").getAsString().length();
+    } else if (obj.has("suggestionResponse")) {
+      return conversationId.length()
+          + obj.get("suggestionResponse")
+              .getAsJsonObject()
+              .get("postbackData")
+              .getAsString()
+              .length();
+    }
+    return conversationId.length()
+        + obj.get("receipts").getAsJsonObject().getAsJsonArray("receipts").size();
+  }
+
+  private static int parseStreaming(String payload) throws IOException {
+    WebhookPayload parsed = WebhookPayload.parse(new StringReader(payload));
+    if (parsed.hasMessage()) {
+      return parsed.getConversationId().length() + parsed.getMessageText().length();
+    } else if (parsed.hasSuggestionResponse()) {
+      return parsed.getConversationId().length() + parsed.getPostbackData().length();
+    }
+    return parsed.getConversationId().length() + parsed.getReceipts().size();
+  }
+}
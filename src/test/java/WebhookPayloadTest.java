@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.businessmessages.cart.servlets.WebhookPayload;
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+public class WebhookPayloadTest {
+
+  static final String MESSAGE_PAYLOAD =
+      "{\"agent\":\"brands/1234/agents/5678\","
+          + "\"conversationId\":\"testConversationId\","
+          + "\"customAgentId\":\"\","
+          + "\"requestId\":\"testRequestId\","
+          + "\"message\":{\"name\":\"conversations/testConversationId/messages/testMessageId\","
+          + "\"text\":\"Help\",\"createTime\":\"2020-08-03T22:01:55.839025Z\","
+          + "\"messageId\":\"testMessageId\"},"
+          + "\"context\":{\"entryPoint\":\"PLACESHEET\",\"placeId\":\"testPlaceId\","
+          + "\"userInfo\":{\"displayName\":\"Test User\",\"userDeviceLocale\":\"en-US\"},"
+          + "\"resolvedLocale\":\"en\"},"
+          + "\"sendTime\":\"2020-08-03T22:01:56.164029Z\"}";
+
+  static final String SUGGESTION_PAYLOAD =
+      "{\"agent\":\"brands/1234/agents/5678\","
+          + "\"conversationId\":\"testConversationId\","
+          + "\"requestId\":\"testRequestId\","
+          + "\"suggestionResponse\":{\"message\":\"conversations/testConversationId/messages/1\","
+          + "\"postbackData\":\"add-cart-testItemId\",\"createTime\":\"2020-08-03T22:02:10Z\","
+          + "\"text\":\"\\u2795\",\"suggestionType\":\"REPLY\"},"
+          + "\"context\":{\"entryPoint\":\"PLACESHEET\",\"resolvedLocale\":\"en\"},"
+          + "\"sendTime\":\"2020-08-03T22:02:10.505934Z\"}";
+
+  static final String RECEIPTS_PAYLOAD =
+      "{\"agent\":\"brands/1234/agents/5678\","
+          + "\"conversationId\":\"testConversationId\","
+          + "\"requestId\":\"testRequestId\","
+          + "\"receipts\":{\"receipts\":["
+          + "{\"message\":\"testReceiptMessageId1\",\"receiptType\":\"DELIVERED\"},"
+          + "{\"message\":\"testReceiptMessageId2\",\"receiptType\":\"READ\"}],"
+          + "\"createTime\":\"2020-08-03T22:02:11.000Z\"},"
+          + "\"sendTime\":\"2020-08-03T22:02:11.500Z\"}";
+
+  @Test
+  public void testParse_message() throws IOException {
+    WebhookPayload payload = WebhookPayload.parse(new StringReader(MESSAGE_PAYLOAD));
+
+    assertThat(payload.getConversationId()).isEqualTo("testConversationId");
+    assertThat(payload.getRequestId()).isEqualTo("testRequestId");
+    assertThat(payload.hasMessage()).isTrue();
+    assertThat(payload.getMessageId()).isEqualTo("testMessageId");
+    assertThat(payload.getMessageText()).isEqualTo("Help");
+    assertThat(payload.hasSuggestionResponse()).isFalse();
+    assertThat(payload.hasReceipts()).isFalse();
+  }
+
+  @Test
+  public void testParse_suggestionResponse() throws IOException {
+    WebhookPayload payload = WebhookPayload.parse(new StringReader(SUGGESTION_PAYLOAD));
+
+    assertThat(payload.hasMessage()).isFalse();
+    assertThat(payload.hasSuggestionResponse()).isTrue();
+    assertThat(payload.getPostbackData()).isEqualTo("add-cart-testItemId");
+  }
+
+  @Test
+  public void testParse_receipts() throws IOException {
+    WebhookPayload payload = WebhookPayload.parse(new StringReader(RECEIPTS_PAYLOAD));
+
+    assertThat(payload.hasReceipts()).isTrue();
+    assertThat(payload.getReceipts()).hasSize(2);
+    assertThat(payload.getReceipts().get(0).getReceiptType()).isEqualTo("DELIVERED");
+    assertThat(payload.getReceipts().get(0).getMessageId()).isEqualTo("testReceiptMessageId1");
+    assertThat(payload.getReceipts().get(1).getReceiptType()).isEqualTo("READ");
+  }
+
+  @Test
+  public void testParse_userStatus() throws IOException {
+    WebhookPayload payload =
+        WebhookPayload.parse(
+            new StringReader(
+                "{\"conversationId\":\"testConversationId\","
+                    + "\"userStatus\":{\"isTyping\":true,\"createTime\":\"2020-08-03T22:02Z\"}}"));
+
+    assertThat(payload.hasUserStatus()).isTrue();
+    assertThat(payload.isUserTyping()).isTrue();
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.businessmessages.cart.Cart;
+import com.google.businessmessages.cart.DataManager;
+import com.google.businessmessages.cart.DatastoreCartStore;
+import com.google.businessmessages.cart.WriteBehindCartStore;
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindCartStoreTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+  private WriteBehindCartStore store;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    // a long window, so only the test flushes
+    store = new WriteBehindCartStore(new DatastoreCartStore(), 60000, 100);
+  }
+
+  @Test
+  public void testApplyItemDeltas_coalescedUntilFlush() {
+    Cart cart = store.getOrCreateCart("testCartId");
+    for (int i = 0; i < 3; i++) {
+      cart = add(cart, "item1", 1);
+    }
+    cart = add(cart, "item1", -1);
+
+    assertThat(cart.getItems().get(0).getCount()).isEqualTo(2);
+    assertThat(store.getOrCreateCart("testCartId")).isSameAs(cart);
+    assertThat(DataManager.getInstance().getExistingItem("testCartId", "item1")).isNull();
+    assertThat(store.getBufferedChanges()).isEqualTo(4);
+
+    store.flush();
+
+    Entity item = DataManager.getInstance().getExistingItem("testCartId", "item1");
+    assertThat(item.getProperty("count")).isEqualTo(2L);
+    assertThat(store.getBufferedChanges()).isEqualTo(0);
+    assertThat(store.getChangesSaved()).isEqualTo(3);
+    assertThat(store.getFlushes()).isEqualTo(1);
+    assertThat(store.getAverageBatchSize()).isWithin(0.001).of(1);
+  }
+
+  @Test
+  public void testClearCart_writtenBeforeLaterItems() {
+    Cart cart = add(store.getOrCreateCart("testCartId"), "item1", 2);
+    store.flush();
+
+    cart = store.clearCart(cart, null);
+    cart = add(cart, "item2", 1);
+    store.flush();
+
+    DataManager dataManager = DataManager.getInstance();
+    assertThat(dataManager.getExistingItem("testCartId", "item1")).isNull();
+    assertThat(dataManager.getExistingItem("testCartId", "item2")).isNotNull();
+    assertThat(store.getFlushes()).isEqualTo(2);
+  }
+
+  @Test
+  public void testClose_flushesForOtherInstances() {
+    add(store.getOrCreateCart("testCartId"), "item1", 1);
+    store.close();
+
+    WriteBehindCartStore otherInstance =
+        new WriteBehindCartStore(new DatastoreCartStore(), 60000, 100);
+    Cart cart = otherInstance.getOrCreateCart("testCartId");
+    otherInstance.close();
+
+    assertThat(cart.getItems()).hasSize(1);
+    assertThat(otherInstance.getRemoteWaits()).isEqualTo(0);
+  }
+
+  @Test
+  public void testApplyItemDeltas_redeliveryToOtherInstanceIsNotApplied() {
+    store.applyItemDeltas(
+        store.getOrCreateCart("testCartId"),
+        ImmutableMap.of("item1", 1),
+        ImmutableMap.of("item1", "title"),
+        "testMessageId");
+    store.flush();
+
+    WriteBehindCartStore otherInstance =
+        new WriteBehindCartStore(new DatastoreCartStore(), 60000, 100);
+    Cart cart =
+        otherInstance.applyItemDeltas(
+            otherInstance.getOrCreateCart("testCartId"),
+            ImmutableMap.of("item1", 1),
+            ImmutableMap.of("item1", "title"),
+            "testMessageId");
+    otherInstance.close();
+
+    assertThat(cart.getItems().get(0).getCount()).isEqualTo(1);
+    Entity item = DataManager.getInstance().getExistingItem("testCartId", "item1");
+    assertThat(item.getProperty("count")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testApplyItemDeltas_incompleteCartIsWrittenThrough() {
+    Map<String, Integer> deltas = new HashMap<>();
+    for (int i = 0; i < 60; i++) {
+      deltas.put(String.format("item%02d", i), 1);
+    }
+    DataManager.getInstance().saveCart("testCartId", "testCartId");
+    DataManager.getInstance().applyItemDeltas("testCartId", deltas, new HashMap<>(), null);
+    Cart cart = store.getOrCreateCart("testCartId");
+
+    cart = add(cart, "item59", -1);
+
+    assertThat(DataManager.getInstance().getExistingItem("testCartId", "item59")).isNull();
+    assertThat(store.getBufferedChanges()).isEqualTo(0);
+  }
+
+  private Cart add(Cart cart, String itemId, int delta) {
+    return store.applyItemDeltas(
+        cart,
+        ImmutableMap.of(itemId, delta),
+        delta > 0 ? ImmutableMap.of(itemId, "title") : Collections.emptyMap(),
+        null);
+  }
+
+  @After
+  public void tearDown() {
+    store.close();
+    helper.tearDown();
+  }
+}